@@ -0,0 +1,118 @@
+package org.ggp.base.apps.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.GameRepository;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+
+/**
+ * ProverThroughputBenchmark measures how well a single ProverStateMachine
+ * scales when it is shared between threads. For each thread count, it runs
+ * random playouts from the initial state on every thread for a fixed time,
+ * all against the same machine, and reports the total number of playouts
+ * and states per second.
+ *
+ * Usage: ProverThroughputBenchmark [gameKey] [secondsPerRun] [maxThreads]
+ *
+ * The thread counts tried are the powers of two up to maxThreads, which
+ * defaults to twice the number of available processors. One untimed run
+ * comes first, so that the results aren't skewed by the JIT or by the
+ * prover's cache of answers that don't depend on the state.
+ */
+public class ProverThroughputBenchmark {
+	public static void main(String[] args) throws InterruptedException {
+		String gameKey = (args.length > 0) ? args[0] : "ticTacToe";
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		int maxThreads = (args.length > 2) ? Integer.parseInt(args[2]) : 2 * Runtime.getRuntime().availableProcessors();
+
+		Game theGame = GameRepository.getDefaultRepository().getGame(gameKey);
+		StateMachine theMachine = new ProverStateMachine();
+		theMachine.initialize(theGame.getRules());
+		measure(theMachine, 1, seconds * 1000L);
+		for (int nThreads = 1; nThreads <= maxThreads; nThreads *= 2) {
+			Result theResult = measure(theMachine, nThreads, seconds * 1000L);
+			System.out.println(gameKey + " with " + nThreads + " threads: " + theResult);
+		}
+	}
+
+	/**
+	 * Runs random playouts on the given machine from the given number of
+	 * threads at once, for the given time, and returns their throughput.
+	 */
+	public static Result measure(final StateMachine theMachine, int nThreads, long millis) throws InterruptedException {
+		final AtomicLong nPlayouts = new AtomicLong();
+		final AtomicLong nStates = new AtomicLong();
+		final long start = System.currentTimeMillis();
+		final long deadline = start + millis;
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> theThreads = new ArrayList<Thread>();
+		for (int i = 0; i < nThreads; i++) {
+			final long seed = i;
+			theThreads.add(new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					try {
+						while (System.currentTimeMillis() < deadline) {
+							MachineState theState = theMachine.getInitialState();
+							int nDepth = 0;
+							while (!theMachine.isTerminal(theState)) {
+								List<Move> theJointMove = new ArrayList<Move>();
+								for (Role theRole : theMachine.getRoles()) {
+									List<Move> theMoves = theMachine.getLegalMoves(theState, theRole);
+									theJointMove.add(theMoves.get(random.nextInt(theMoves.size())));
+								}
+								theState = theMachine.getNextState(theState, theJointMove);
+								nDepth++;
+							}
+							theMachine.getGoals(theState);
+							nPlayouts.incrementAndGet();
+							nStates.addAndGet(nDepth + 1);
+						}
+					} catch (Exception e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			});
+		}
+		for (Thread theThread : theThreads) {
+			theThread.start();
+		}
+		for (Thread theThread : theThreads) {
+			theThread.join();
+		}
+		if (!failures.isEmpty()) {
+			throw new RuntimeException("A playout failed", failures.get(0));
+		}
+		double elapsedSeconds = (System.currentTimeMillis() - start) / 1000.0;
+		return new Result(nPlayouts.get() / elapsedSeconds, nStates.get() / elapsedSeconds);
+	}
+
+	/**
+	 * The throughput of one run of the benchmark.
+	 */
+	public static class Result {
+		public final double playoutsPerSecond;
+		public final double statesPerSecond;
+
+		public Result(double playoutsPerSecond, double statesPerSecond) {
+			this.playoutsPerSecond = playoutsPerSecond;
+			this.statesPerSecond = statesPerSecond;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.1f playouts/s, %.1f states/s", playoutsPerSecond, statesPerSecond);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.ggp.base.util.statemachine.MachineState;
+
+/**
+ * A fixed-size table of search statistics (visit counts and total values)
+ * for game states, keyed by {@link MachineState#longHash()}, that any number
+ * of search threads can read and update at once without locking.
+ * <p>
+ * The table is open-addressed: a state is stored in one of a few slots
+ * starting from its hash, and its statistics are kept in primitive arrays
+ * that are updated atomically. When all the slots a state could go in are
+ * taken, the state in them with the fewest visits is replaced, so the table
+ * never grows but keeps the states that have been searched the most.
+ * <p>
+ * Like any transposition table, it trades exactness for speed and bounded
+ * memory: two states with the same 64-bit hash share statistics, and an
+ * update racing with the replacement of its state's slot may be lost or
+ * credited to the new state. Search algorithms tolerate both, since they
+ * are rare and only perturb the statistics slightly.
+ * <p>
+ * Gamers typically create one at metagame time with
+ * {@link #createForHeap(double)}, so it's sized to the memory available.
+ */
+public final class TranspositionTable
+{
+    /** The number of slots a state may be stored in. */
+    private static final int MAX_PROBES = 8;
+    /** The memory used by one slot: a key, a visit count and a value. */
+    private static final int BYTES_PER_SLOT = 3 * 8;
+    private static final int MIN_CAPACITY = 1 << 10;
+    private static final int MAX_CAPACITY = 1 << 26;
+    /** Marks an empty slot; a state that hashes to it is stored under another key. */
+    private static final long EMPTY = 0L;
+    private static final long EMPTY_REPLACEMENT = 0x9E3779B97F4A7C15L;
+
+    private final int mask;
+    private final AtomicLongArray keys;
+    private final AtomicLongArray visits;
+    private final AtomicLongArray values;
+    private final AtomicLong replacements = new AtomicLong();
+
+    /**
+     * Creates a table with at least the given number of slots, rounded up to
+     * a power of two.
+     */
+    public TranspositionTable(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES));
+        if (size < capacity) {
+            size *= 2;
+        }
+        mask = size - 1;
+        keys = new AtomicLongArray(size);
+        visits = new AtomicLongArray(size);
+        values = new AtomicLongArray(size);
+    }
+
+    /**
+     * Creates a table that takes up about the given fraction of the heap
+     * that is still available to the JVM.
+     */
+    public static TranspositionTable createForHeap(double heapFraction)
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        long slots = (long) (available * heapFraction) / BYTES_PER_SLOT;
+        slots = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, slots));
+        // Round down, so that the table stays within the budget
+        return new TranspositionTable(Integer.highestOneBit((int) slots));
+    }
+
+    private static long getKey(MachineState state)
+    {
+        long key = state.longHash();
+        return (key == EMPTY) ? EMPTY_REPLACEMENT : key;
+    }
+
+    private int getStart(long key)
+    {
+        // The low bits of a Zobrist hash are already well mixed; fold in the
+        // high bits anyway, for hashes that aren't
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the slot holding the given key, or -1 if there isn't one.
+     */
+    private int find(long key)
+    {
+        int start = getStart(key);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (start + i) & mask;
+            long slotKey = keys.get(slot);
+            if (slotKey == key) {
+                return slot;
+            } else if (slotKey == EMPTY) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot holding the given key, claiming one for it if there
+     * isn't one, or -1 if another thread took the slot it would have gone in.
+     */
+    private int findOrAdd(long key)
+    {
+        int start = getStart(key);
+        int victim = start;
+        long victimVisits = Long.MAX_VALUE;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = (start + i) & mask;
+            long slotKey = keys.get(slot);
+            if (slotKey == EMPTY) {
+                if (keys.compareAndSet(slot, EMPTY, key)) {
+                    return slot;
+                }
+                slotKey = keys.get(slot);
+            }
+            if (slotKey == key) {
+                return slot;
+            }
+            long slotVisits = visits.get(slot);
+            if (slotVisits < victimVisits) {
+                victim = slot;
+                victimVisits = slotVisits;
+            }
+        }
+
+        long victimKey = keys.get(victim);
+        if (victimKey != key && keys.compareAndSet(victim, victimKey, key)) {
+            visits.set(victim, 0);
+            values.set(victim, 0);
+            replacements.incrementAndGet();
+            return victim;
+        }
+        return (keys.get(victim) == key) ? victim : -1;
+    }
+
+    /**
+     * Returns whether the table has statistics for the given state.
+     */
+    public boolean contains(MachineState state)
+    {
+        return find(getKey(state)) >= 0;
+    }
+
+    /**
+     * Returns the number of visits recorded for the given state, or 0 if it
+     * isn't in the table.
+     */
+    public long getVisits(MachineState state)
+    {
+        int slot = find(getKey(state));
+        return (slot < 0) ? 0 : visits.get(slot);
+    }
+
+    /**
+     * Returns the total value recorded for the given state, or 0 if it isn't
+     * in the table.
+     */
+    public long getValue(MachineState state)
+    {
+        int slot = find(getKey(state));
+        return (slot < 0) ? 0 : values.get(slot);
+    }
+
+    /**
+     * Records a visit to the given state, adding the given value to its
+     * total.
+     */
+    public void update(MachineState state, long value)
+    {
+        int slot = findOrAdd(getKey(state));
+        if (slot >= 0) {
+            visits.incrementAndGet(slot);
+            values.addAndGet(slot, value);
+        }
+    }
+
+    /**
+     * Records a visit to the given state, without changing its total value.
+     */
+    public void addVisit(MachineState state)
+    {
+        update(state, 0);
+    }
+
+    /**
+     * Adds the given value to the total for the given state, without
+     * counting a visit.
+     */
+    public void addValue(MachineState state, long value)
+    {
+        int slot = findOrAdd(getKey(state));
+        if (slot >= 0) {
+            values.addAndGet(slot, value);
+        }
+    }
+
+    /**
+     * Replaces the total value of the given state.
+     */
+    public void setValue(MachineState state, long value)
+    {
+        int slot = findOrAdd(getKey(state));
+        if (slot >= 0) {
+            values.set(slot, value);
+        }
+    }
+
+    /**
+     * Returns the number of slots in the table.
+     */
+    public int getCapacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of states that have been replaced to make room for
+     * others.
+     */
+    public long getReplacements()
+    {
+        return replacements.get();
+    }
+
+    /**
+     * Removes every state from the table. This should not race with updates.
+     */
+    public void clear()
+    {
+        for (int i = 0; i <= mask; i++) {
+            keys.set(i, EMPTY);
+            visits.set(i, 0);
+            values.set(i, 0);
+        }
+        replacements.set(0);
+    }
+}
@@ -0,0 +1,197 @@
+package org.ggp.base.player.gamer.statemachine.mcts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * Runs a Monte Carlo tree search on several threads, one per state machine
+ * it's given, each of which must be a separate instance for the same game.
+ * <p>
+ * In {@link Mode#ROOT} mode each thread grows a tree of its own, and the
+ * trees' statistics for the moves out of the root are added together to
+ * choose a move. In {@link Mode#TREE} mode all the threads grow one shared
+ * tree, using virtual losses to keep out of each other's way.
+ * <p>
+ * The number of iterations each thread ran per second is logged after each
+ * search, and can be read with {@link #getIterationsPerSecond()}.
+ */
+public final class ParallelSearch
+{
+    public enum Mode {
+        /** A separate tree per thread, merged when choosing a move. */
+        ROOT,
+        /** One tree shared by every thread. */
+        TREE
+    }
+
+    private final Mode mode;
+    private final List<StateMachine> machines;
+    private final List<SearchTree> trees = new ArrayList<SearchTree>();
+    private final double[] iterationsPerSecond;
+
+    public ParallelSearch(Mode mode, List<StateMachine> machines, MachineState rootState) throws GoalDefinitionException
+    {
+        if (machines.isEmpty()) {
+            throw new IllegalArgumentException("A parallel search needs at least one state machine");
+        }
+        this.mode = mode;
+        this.machines = new ArrayList<StateMachine>(machines);
+        if (mode == Mode.ROOT) {
+            for (StateMachine machine : machines) {
+                trees.add(new SearchTree(machine, rootState));
+            }
+        } else {
+            trees.add(new SearchTree(machines.get(0), rootState));
+            for (StateMachine machine : machines.subList(1, machines.size())) {
+                machine.updateRoot(rootState);
+            }
+        }
+        iterationsPerSecond = new double[machines.size()];
+    }
+
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * Moves the root of every tree to the given state, keeping the subtrees
+     * for it where there are any.
+     */
+    public void reroot(MachineState newState) throws GoalDefinitionException
+    {
+        for (SearchTree tree : trees) {
+            tree.reroot(newState);
+        }
+        if (mode == Mode.TREE) {
+            for (StateMachine machine : machines.subList(1, machines.size())) {
+                machine.updateRoot(newState);
+            }
+        }
+    }
+
+    /**
+     * Searches on every thread until the given time, and then waits for all
+     * of them to finish. If any thread fails, the first failure is thrown
+     * once they're all done. If the calling thread is interrupted while
+     * waiting, it stops waiting, keeps its interrupt status, and reports
+     * only the threads that were done.
+     */
+    public void search(long end) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < machines.size(); i++) {
+            SearchTree tree = trees.get(mode == Mode.ROOT ? i : 0);
+            Worker worker = new Worker(tree, machines.get(i), end);
+            worker.setName("ParallelSearch-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+
+        Arrays.fill(iterationsPerSecond, 0.0);
+        Throwable failure = null;
+        StringBuilder report = new StringBuilder("Iterations per second by thread:");
+        for (int i = 0; i < workers.size(); i++) {
+            Worker worker = workers.get(i);
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                // The workers still stop on their own by the end time
+                Thread.currentThread().interrupt();
+                report.append(" (interrupted)");
+                break;
+            }
+            iterationsPerSecond[i] = worker.getIterationsPerSecond();
+            report.append(' ').append(Math.round(iterationsPerSecond[i]));
+            if (failure == null) {
+                failure = worker.failure;
+            }
+        }
+        GamerLogger.log("GamePlayer", report.toString());
+
+        if (failure instanceof MoveDefinitionException) {
+            throw (MoveDefinitionException) failure;
+        } else if (failure instanceof TransitionDefinitionException) {
+            throw (TransitionDefinitionException) failure;
+        } else if (failure instanceof GoalDefinitionException) {
+            throw (GoalDefinitionException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    /**
+     * Returns the number of iterations per second each thread ran during the
+     * last search, in the order of the state machines.
+     */
+    public double[] getIterationsPerSecond()
+    {
+        return iterationsPerSecond.clone();
+    }
+
+    /**
+     * Returns the given role's move with the best mean value over all the
+     * trees.
+     */
+    public Move getBestMove(Role role) throws MoveDefinitionException
+    {
+        return SearchTree.getBestMove(role, trees);
+    }
+
+    List<SearchTree> getTrees()
+    {
+        return trees;
+    }
+
+    private static final class Worker extends Thread
+    {
+        private final SearchTree tree;
+        private final StateMachine machine;
+        private final long end;
+
+        private long iterations;
+        private long elapsed;
+        private Throwable failure;
+
+        public Worker(SearchTree tree, StateMachine machine, long end)
+        {
+            this.tree = tree;
+            this.machine = machine;
+            this.end = end;
+        }
+
+        @Override
+        public void run()
+        {
+            long start = System.currentTimeMillis();
+            try {
+                while (System.currentTimeMillis() < end) {
+                    tree.iterate(ThreadLocalRandom.current(), machine);
+                    iterations++;
+                }
+            } catch (Throwable t) {
+                // Recorded for search to throw, so that no worker dies unnoticed
+                failure = t;
+            }
+            elapsed = System.currentTimeMillis() - start;
+        }
+
+        public double getIterationsPerSecond()
+        {
+            return (elapsed == 0) ? 0.0 : iterations * 1000.0 / elapsed;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package org.ggp.base.player.gamer.statemachine.mcts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * A node of a {@link SearchTree}: a game state, the joint moves that lead
+ * out of it, the child nodes those moves lead to, once they've been
+ * visited, and the number of visits and the total goal value of each role
+ * over the playouts that went through it.
+ * <p>
+ * Once expanded, a node also keeps statistics for each role's own legal
+ * moves: the visits and that role's total goal value over the playouts in
+ * which it played the move. This lets each role choose its move by its own
+ * values in simultaneous-move games. The joint moves are the cross product
+ * of the roles' legal moves, with the first role's move varying slowest, so
+ * a joint move's index is made of its roles' move indices.
+ * <p>
+ * Nodes don't point to their parents, so that the rest of the tree can be
+ * collected once the search moves on to one of its subtrees.
+ * <p>
+ * Several threads can search through a node at once: it is expanded only
+ * once, each child is created by whichever thread gets there first, and its
+ * statistics are updated atomically. A thread passing through a node adds a
+ * virtual loss to it until its playout is done, so that other threads see
+ * it as visited without a win and spread out to other children.
+ */
+public final class SearchNode
+{
+    private final MachineState state;
+    private final int[] terminalGoals;
+
+    private volatile List<List<Move>> jointMoves;
+    private AtomicReferenceArray<SearchNode> children;
+    private List<List<Move>> roleMoves;
+    /** For each role, how far apart in the joint moves its moves are. */
+    private int[] strides;
+    private AtomicLongArray[] moveVisits;
+    private AtomicLongArray[] moveValueTotals;
+    private AtomicIntegerArray[] moveVirtualLosses;
+
+    private final AtomicLong visits = new AtomicLong();
+    private final AtomicLongArray valueTotals;
+    private final AtomicInteger virtualLosses = new AtomicInteger();
+
+    SearchNode(MachineState state, StateMachine machine) throws GoalDefinitionException
+    {
+        this.state = state;
+        int nRoles = machine.getRoles().size();
+        if (machine.isTerminal(state)) {
+            terminalGoals = new int[nRoles];
+            for (int i = 0; i < nRoles; i++) {
+                terminalGoals[i] = machine.getGoal(state, machine.getRoles().get(i));
+            }
+        } else {
+            terminalGoals = null;
+        }
+        valueTotals = new AtomicLongArray(nRoles);
+    }
+
+    public MachineState getState()
+    {
+        return state;
+    }
+
+    public boolean isTerminal()
+    {
+        return terminalGoals != null;
+    }
+
+    /**
+     * Returns the goal values of a terminal node, in role order.
+     */
+    int[] getTerminalGoals()
+    {
+        return terminalGoals;
+    }
+
+    public boolean isExpanded()
+    {
+        return jointMoves != null;
+    }
+
+    /**
+     * Finds the legal moves of each role and the joint moves out of this
+     * node. Its children are only created as they are first visited.
+     */
+    synchronized void expand(StateMachine machine) throws MoveDefinitionException
+    {
+        if (jointMoves != null) {
+            return;
+        }
+        List<Role> roles = machine.getRoles();
+        int nRoles = roles.size();
+        roleMoves = new ArrayList<List<Move>>(nRoles);
+        strides = new int[nRoles];
+        moveVisits = new AtomicLongArray[nRoles];
+        moveValueTotals = new AtomicLongArray[nRoles];
+        moveVirtualLosses = new AtomicIntegerArray[nRoles];
+        for (int i = 0; i < nRoles; i++) {
+            List<Move> moves = machine.getLegalMoves(state, roles.get(i));
+            roleMoves.add(moves);
+            moveVisits[i] = new AtomicLongArray(moves.size());
+            moveValueTotals[i] = new AtomicLongArray(moves.size());
+            moveVirtualLosses[i] = new AtomicIntegerArray(moves.size());
+        }
+        int nJointMoves = 1;
+        for (int i = nRoles - 1; i >= 0; i--) {
+            strides[i] = nJointMoves;
+            nJointMoves *= roleMoves.get(i).size();
+        }
+        List<List<Move>> legalJointMoves = new ArrayList<List<Move>>(nJointMoves);
+        for (int index = 0; index < nJointMoves; index++) {
+            List<Move> jointMove = new ArrayList<Move>(nRoles);
+            for (int i = 0; i < nRoles; i++) {
+                jointMove.add(roleMoves.get(i).get(getMoveIndex(i, index)));
+            }
+            legalJointMoves.add(jointMove);
+        }
+        children = new AtomicReferenceArray<SearchNode>(nJointMoves);
+        // Publishing the joint moves last makes the rest visible with them
+        jointMoves = legalJointMoves;
+    }
+
+    public List<List<Move>> getJointMoves()
+    {
+        return jointMoves;
+    }
+
+    /**
+     * Returns the legal moves of the role with the given index.
+     */
+    public List<Move> getMoves(int roleIndex)
+    {
+        return roleMoves.get(roleIndex);
+    }
+
+    /**
+     * Returns the index of the joint move made of the given moves, one per
+     * role, given by their indices in the roles' legal moves.
+     */
+    int getJointMoveIndex(int[] moveIndices)
+    {
+        int index = 0;
+        for (int i = 0; i < moveIndices.length; i++) {
+            index += moveIndices[i] * strides[i];
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index, in the given role's legal moves, of its move in the
+     * joint move with the given index.
+     */
+    int getMoveIndex(int roleIndex, int jointMoveIndex)
+    {
+        return (jointMoveIndex / strides[roleIndex]) % roleMoves.get(roleIndex).size();
+    }
+
+    /**
+     * Returns the number of playouts in which the given role played the
+     * given move out of this node.
+     */
+    public long getMoveVisits(int roleIndex, int moveIndex)
+    {
+        return moveVisits[roleIndex].get(moveIndex);
+    }
+
+    /**
+     * Returns the given role's total goal value over the playouts in which
+     * it played the given move out of this node.
+     */
+    public long getMoveValueTotal(int roleIndex, int moveIndex)
+    {
+        return moveValueTotals[roleIndex].get(moveIndex);
+    }
+
+    /**
+     * Returns the number of playouts still running in which the given role
+     * played the given move out of this node.
+     */
+    int getMoveVirtualLosses(int roleIndex, int moveIndex)
+    {
+        return moveVirtualLosses[roleIndex].get(moveIndex);
+    }
+
+    /**
+     * Returns the child reached by the given joint move, or null if it
+     * hasn't been created yet.
+     */
+    public SearchNode getChild(int index)
+    {
+        return children.get(index);
+    }
+
+    /**
+     * Returns the child reached by the given joint move, creating it if
+     * needed.
+     */
+    SearchNode getOrCreateChild(int index, StateMachine machine) throws TransitionDefinitionException, GoalDefinitionException
+    {
+        SearchNode child = children.get(index);
+        if (child == null) {
+            child = new SearchNode(machine.getNextState(state, jointMoves.get(index)), machine);
+            if (!children.compareAndSet(index, null, child)) {
+                child = children.get(index);
+            }
+        }
+        return child;
+    }
+
+    public long getVisits()
+    {
+        return visits.get();
+    }
+
+    public long getValueTotal(int roleIndex)
+    {
+        return valueTotals.get(roleIndex);
+    }
+
+    /**
+     * Returns the number of playouts through this node that are still
+     * running.
+     */
+    int getVirtualLosses()
+    {
+        return virtualLosses.get();
+    }
+
+    void addVirtualLoss()
+    {
+        virtualLosses.incrementAndGet();
+    }
+
+    void removeVirtualLoss()
+    {
+        virtualLosses.decrementAndGet();
+    }
+
+    /**
+     * Adds a virtual loss to each role's move in the given joint move.
+     */
+    void addVirtualLoss(int jointMoveIndex)
+    {
+        for (int i = 0; i < moveVirtualLosses.length; i++) {
+            moveVirtualLosses[i].incrementAndGet(getMoveIndex(i, jointMoveIndex));
+        }
+    }
+
+    void removeVirtualLoss(int jointMoveIndex)
+    {
+        for (int i = 0; i < moveVirtualLosses.length; i++) {
+            moveVirtualLosses[i].decrementAndGet(getMoveIndex(i, jointMoveIndex));
+        }
+    }
+
+    /**
+     * Returns the average goal value of the given role over the playouts
+     * through this node, or 0 if there haven't been any.
+     */
+    public double getMeanValue(int roleIndex)
+    {
+        long n = visits.get();
+        return (n == 0) ? 0.0 : (double) valueTotals.get(roleIndex) / n;
+    }
+
+    /**
+     * Records a playout through this node that ended with the given goal
+     * values, in role order.
+     */
+    void update(int[] goals)
+    {
+        for (int i = 0; i < goals.length; i++) {
+            valueTotals.addAndGet(i, goals[i]);
+        }
+        visits.incrementAndGet();
+    }
+
+    /**
+     * Records a playout through this node, like {@link #update(int[])}, and
+     * takes back the virtual loss added when it started.
+     */
+    void updateAndRemoveVirtualLoss(int[] goals)
+    {
+        update(goals);
+        removeVirtualLoss();
+    }
+
+    /**
+     * Records a playout that left this node by the given joint move, and
+     * ended with the given goal values, in the statistics of each role's
+     * move in it, and takes back the moves' virtual losses.
+     */
+    void updateMovesAndRemoveVirtualLoss(int jointMoveIndex, int[] goals)
+    {
+        for (int i = 0; i < goals.length; i++) {
+            int moveIndex = getMoveIndex(i, jointMoveIndex);
+            moveValueTotals[i].addAndGet(moveIndex, goals[i]);
+            moveVisits[i].incrementAndGet(moveIndex);
+            moveVirtualLosses[i].decrementAndGet(moveIndex);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.ggp.base.player.gamer.statemachine.mcts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * A Monte Carlo search tree, rooted at the current state of a match.
+ * <p>
+ * Each call to {@link #iterate(Random)} walks down from the root until it
+ * reaches a node that hasn't been visited. At each node, every role picks
+ * its own move by UCT over its own statistics for its legal moves there, and
+ * the walk follows the joint move they make up (decoupled UCT). It adds the
+ * node it reaches to the tree, plays a random playout from it, and adds the
+ * resulting goal values to every node and move on the way down.
+ * <p>
+ * When the match moves on, {@link #reroot(MachineState)} makes the subtree
+ * for the new state the root, so the search done for the last turn carries
+ * over to the next.
+ * <p>
+ * Several threads can iterate on one tree at once, each with its own state
+ * machine. Nodes on a path count as visited, with a loss, until the path's
+ * playout is done, so that concurrent iterations spread out over the tree.
+ */
+public final class SearchTree
+{
+    /** The weight of exploration against exploitation in UCT. */
+    private static final double EXPLORATION = Math.sqrt(2);
+    /** The largest goal value, used to scale mean values into [0, 1]. */
+    private static final double MAX_GOAL = 100.0;
+
+    private final StateMachine machine;
+    private SearchNode root;
+
+    public SearchTree(StateMachine machine, MachineState rootState) throws GoalDefinitionException
+    {
+        this.machine = machine;
+        this.root = new SearchNode(rootState, machine);
+        machine.updateRoot(rootState);
+    }
+
+    public SearchNode getRoot()
+    {
+        return root;
+    }
+
+    /**
+     * Moves the root of the tree to the given state. If it's one of the
+     * current root's children, its subtree is kept, and the rest of the tree
+     * is dropped; otherwise the tree starts over from the given state.
+     *
+     * @return whether a subtree was kept.
+     */
+    public boolean reroot(MachineState newState) throws GoalDefinitionException
+    {
+        machine.updateRoot(newState);
+        if (root.getState().equals(newState)) {
+            return true;
+        }
+        if (root.isExpanded()) {
+            for (int i = 0; i < root.getJointMoves().size(); i++) {
+                SearchNode child = root.getChild(i);
+                if (child != null && child.getState().equals(newState)) {
+                    root = child;
+                    return true;
+                }
+            }
+        }
+        root = new SearchNode(newState, machine);
+        return false;
+    }
+
+    /**
+     * Runs one iteration of the search: selection, expansion, a playout and
+     * backpropagation.
+     */
+    public void iterate(Random random) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        iterate(random, machine);
+    }
+
+    /**
+     * Runs one iteration of the search, using the given state machine, which
+     * must be for the same game, for everything it asks about the game.
+     */
+    public void iterate(Random random, StateMachine workerMachine) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        List<SearchNode> path = new ArrayList<SearchNode>();
+        // The index of the joint move followed out of each node on the path but the last
+        List<Integer> jointMoveIndices = new ArrayList<Integer>();
+        SearchNode node = root;
+        node.addVirtualLoss();
+        path.add(node);
+        try {
+            while (!node.isTerminal() && node.getVisits() > 0) {
+                if (!node.isExpanded()) {
+                    node.expand(workerMachine);
+                }
+                int jointMoveIndex = selectJointMove(node);
+                node.addVirtualLoss(jointMoveIndex);
+                jointMoveIndices.add(jointMoveIndex);
+                node = node.getOrCreateChild(jointMoveIndex, workerMachine);
+                node.addVirtualLoss();
+                path.add(node);
+            }
+
+            int[] goals;
+            if (node.isTerminal()) {
+                goals = node.getTerminalGoals();
+            } else {
+                goals = workerMachine.depthCharge(node.getState(), random, null);
+            }
+            for (int i = 0; i < path.size(); i++) {
+                path.get(i).updateAndRemoveVirtualLoss(goals);
+                if (i < jointMoveIndices.size()) {
+                    path.get(i).updateMovesAndRemoveVirtualLoss(jointMoveIndices.get(i), goals);
+                }
+            }
+        } catch (RuntimeException e) {
+            removeVirtualLosses(path, jointMoveIndices);
+            throw e;
+        } catch (MoveDefinitionException e) {
+            removeVirtualLosses(path, jointMoveIndices);
+            throw e;
+        } catch (TransitionDefinitionException e) {
+            removeVirtualLosses(path, jointMoveIndices);
+            throw e;
+        } catch (GoalDefinitionException e) {
+            removeVirtualLosses(path, jointMoveIndices);
+            throw e;
+        }
+    }
+
+    private static void removeVirtualLosses(List<SearchNode> path, List<Integer> jointMoveIndices)
+    {
+        for (int i = 0; i < path.size(); i++) {
+            path.get(i).removeVirtualLoss();
+            if (i < jointMoveIndices.size()) {
+                path.get(i).removeVirtualLoss(jointMoveIndices.get(i));
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the joint move to follow out of the given node,
+     * made of the move each role picks with {@link #selectMove(SearchNode, int)}.
+     */
+    private static int selectJointMove(SearchNode node)
+    {
+        int[] moveIndices = new int[node.getJointMoves().get(0).size()];
+        for (int i = 0; i < moveIndices.length; i++) {
+            moveIndices[i] = selectMove(node, i);
+        }
+        return node.getJointMoveIndex(moveIndices);
+    }
+
+    /**
+     * Returns the index of the given role's move out of the given node: one
+     * it hasn't tried yet, if there is one, and otherwise the one with the
+     * best UCT score by its own values. Playouts still running count as
+     * visits with a goal value of 0.
+     */
+    private static int selectMove(SearchNode node, int roleIndex)
+    {
+        int nMoves = node.getMoves(roleIndex).size();
+        if (nMoves == 1) {
+            return 0;
+        }
+        double logVisits = Math.log(node.getVisits() + node.getVirtualLosses());
+        int bestIndex = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < nMoves; i++) {
+            long moveVisits = node.getMoveVisits(roleIndex, i) + node.getMoveVirtualLosses(roleIndex, i);
+            if (moveVisits == 0) {
+                return i;
+            }
+            double meanValue = (double) node.getMoveValueTotal(roleIndex, i) / moveVisits;
+            double score = meanValue / MAX_GOAL + EXPLORATION * Math.sqrt(logVisits / moveVisits);
+            if (score > bestScore) {
+                bestIndex = i;
+                bestScore = score;
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * Returns the given role's move from the root with the best mean value
+     * for it, over the playouts in which it played the move.
+     */
+    public Move getBestMove(Role role) throws MoveDefinitionException
+    {
+        return getBestMove(role, Collections.singletonList(this));
+    }
+
+    /**
+     * Returns the given role's move with the best mean value over the roots
+     * of all the given trees, which must share the same root state.
+     */
+    public static Move getBestMove(Role role, List<SearchTree> trees) throws MoveDefinitionException
+    {
+        Map<Move, long[]> totals = new HashMap<Move, long[]>();
+        for (SearchTree tree : trees) {
+            tree.addMoveTotals(role, totals);
+        }
+
+        Move bestMove = null;
+        double bestValue = -1.0;
+        for (Map.Entry<Move, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            double value = (total[0] == 0) ? -1.0 : (double) total[1] / total[0];
+            if (bestMove == null || value > bestValue) {
+                bestMove = entry.getKey();
+                bestValue = value;
+            }
+        }
+        return bestMove;
+    }
+
+    /**
+     * Adds the root's visits and value total for each of the given role's
+     * moves to the totals for that move.
+     */
+    private void addMoveTotals(Role role, Map<Move, long[]> totals) throws MoveDefinitionException
+    {
+        int roleIndex = machine.getRoleIndices().get(role);
+        if (!root.isExpanded()) {
+            root.expand(machine);
+        }
+        List<Move> moves = root.getMoves(roleIndex);
+        for (int i = 0; i < moves.size(); i++) {
+            Move move = moves.get(i);
+            long[] total = totals.get(move);
+            if (total == null) {
+                total = new long[2];
+                totals.put(move, total);
+            }
+            total[0] += root.getMoveVisits(roleIndex, i);
+            total[1] += root.getMoveValueTotal(roleIndex, i);
+        }
+    }
+}
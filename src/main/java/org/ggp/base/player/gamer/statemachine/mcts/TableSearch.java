@@ -0,0 +1,212 @@
+package org.ggp.base.player.gamer.statemachine.mcts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.player.gamer.statemachine.TranspositionTable;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * A Monte Carlo search whose statistics are kept in a
+ * {@link TranspositionTable}, keyed by state, rather than in a tree. Each
+ * state's entry holds its visits and the total value one role got over them.
+ * <p>
+ * {@link #search(Role, MachineState, long)} runs UCT: it follows the children
+ * with the best scores down from the root to a state that hasn't been
+ * visited, estimates that state's value with a playout, and adds the value
+ * to every state on the way down. {@link #sample(Role, MachineState, long)}
+ * just plays out from each of the root's children in turn. Either way,
+ * {@link #getBestMove(Role, MachineState)} then picks the move leading to the
+ * child with the best mean value.
+ * <p>
+ * A playout either records every state it passes through in the table, or,
+ * with {@link #setBatchedPlayouts(int)}, runs a batch of depth charges and
+ * records only the state it started from. Terminal states are recorded like
+ * any other, with a visit and their goal value each time they're reached.
+ * <p>
+ * Neither selection nor playouts recurse, so their stack depth doesn't grow
+ * with the length of the game, and both reuse the same path buffers on every
+ * iteration. A search isn't thread-safe; use one per thread.
+ */
+public final class TableSearch
+{
+    private final StateMachine machine;
+    private final TranspositionTable table;
+    private final Random random = new Random();
+
+    private int batchedPlayouts = 0;
+    private long[] goalTotals;
+
+    private final List<MachineState> path = new ArrayList<MachineState>();
+    private final List<MachineState> playout = new ArrayList<MachineState>();
+
+    public TableSearch(StateMachine machine, TranspositionTable table)
+    {
+        this.machine = machine;
+        this.table = table;
+    }
+
+    /**
+     * Makes each playout estimate the value of the state it starts from with
+     * the given number of depth charges, as a batch, without recording the
+     * states they pass through. Machines that run depth charges in parallel,
+     * like the bit-sliced propnet, make this much faster.
+     */
+    public void setBatchedPlayouts(int count)
+    {
+        if (count < 1) {
+            throw new IllegalArgumentException("A batch needs at least one playout");
+        }
+        batchedPlayouts = count;
+    }
+
+    /**
+     * Runs UCT iterations from the given state until the given time, and
+     * returns the number of iterations run.
+     */
+    public long search(Role role, MachineState root, long end) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        int roleIndex = machine.getRoleIndices().get(role);
+        long iterations = 0;
+        do {
+            select(root);
+            int value = explore(path.get(path.size() - 1), roleIndex);
+            // The frontier state was already recorded by the playout
+            for (int i = 0; i < path.size() - 1; i++) {
+                table.update(path.get(i), value);
+            }
+            iterations++;
+        } while (System.currentTimeMillis() < end);
+        return iterations;
+    }
+
+    /**
+     * Plays out from each of the given state's children in turn until the
+     * given time, and returns the number of playouts run.
+     */
+    public long sample(Role role, MachineState root, long end) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        int roleIndex = machine.getRoleIndices().get(role);
+        List<List<Move>> jointMoves = machine.getLegalJointMoves(root);
+        long playouts = 0;
+        while (System.currentTimeMillis() < end) {
+            for (List<Move> jointMove : jointMoves) {
+                explore(machine.getNextState(root, jointMove), roleIndex);
+                playouts++;
+                if (System.currentTimeMillis() >= end) {
+                    break;
+                }
+            }
+        }
+        return playouts;
+    }
+
+    /**
+     * Fills the path buffer with the states from the given one down to the
+     * first that hasn't been visited, or is terminal, following the unvisited
+     * child, or else the one with the best UCT score, at each step.
+     */
+    private void select(MachineState root) throws MoveDefinitionException, TransitionDefinitionException
+    {
+        path.clear();
+        MachineState state = root;
+        path.add(state);
+        while (table.getVisits(state) > 0 && !machine.isTerminal(state)) {
+            long parentVisits = table.getVisits(state);
+            MachineState bestChild = null;
+            double bestScore = 0.0;
+            for (List<Move> jointMove : machine.getLegalJointMoves(state)) {
+                MachineState child = machine.getNextState(state, jointMove);
+                long childVisits = table.getVisits(child);
+                if (childVisits == 0) {
+                    bestChild = child;
+                    break;
+                }
+                double score = (double) table.getValue(child) / childVisits + Math.sqrt(2 * Math.log(parentVisits) / childVisits);
+                if (bestChild == null || score > bestScore) {
+                    bestChild = child;
+                    bestScore = score;
+                }
+            }
+            state = bestChild;
+            path.add(state);
+        }
+    }
+
+    /**
+     * Estimates the value of the given state for the role with the given
+     * index, with a playout, and records it in the table.
+     */
+    private int explore(MachineState state, int roleIndex) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        if (machine.isTerminal(state)) {
+            return recordTerminal(state, roleIndex);
+        }
+        if (batchedPlayouts > 0) {
+            goalTotals = machine.depthCharges(state, random, batchedPlayouts, goalTotals);
+            int value = (int) (goalTotals[roleIndex] / batchedPlayouts);
+            table.update(state, value);
+            return value;
+        }
+
+        playout.clear();
+        List<Role> roles = machine.getRoles();
+        while (!machine.isTerminal(state)) {
+            playout.add(state);
+            List<Move> jointMove = new ArrayList<Move>(roles.size());
+            for (Role role : roles) {
+                List<Move> legals = machine.getLegalMoves(state, role);
+                jointMove.add(legals.get(random.nextInt(legals.size())));
+            }
+            state = machine.getNextState(state, jointMove);
+        }
+        int value = recordTerminal(state, roleIndex);
+        for (MachineState visited : playout) {
+            table.update(visited, value);
+        }
+        return value;
+    }
+
+    private int recordTerminal(MachineState state, int roleIndex) throws GoalDefinitionException
+    {
+        int reward = machine.getGoal(state, machine.getRoles().get(roleIndex));
+        table.update(state, reward);
+        return reward;
+    }
+
+    /**
+     * Returns the given role's move out of the given state that leads to the
+     * child with the best mean value. Terminal children that haven't been
+     * visited count as having their goal value, and other unvisited children
+     * as having a value of 0.
+     */
+    public Move getBestMove(Role role, MachineState state) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+    {
+        int roleIndex = machine.getRoleIndices().get(role);
+        Move bestMove = null;
+        double bestValue = 0.0;
+        for (List<Move> jointMove : machine.getLegalJointMoves(state)) {
+            MachineState child = machine.getNextState(state, jointMove);
+            // A state's visits can be lost if it was replaced in the table
+            long visits = table.getVisits(child);
+            double value;
+            if (visits == 0 && machine.isTerminal(child)) {
+                value = machine.getGoal(child, role);
+            } else {
+                value = (double) table.getValue(child) / Math.max(visits, 1);
+            }
+            if (bestMove == null || value > bestValue) {
+                bestMove = jointMove.get(roleIndex);
+                bestValue = value;
+            }
+        }
+        return bestMove;
+    }
+}
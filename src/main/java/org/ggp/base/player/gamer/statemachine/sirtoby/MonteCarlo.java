@@ -1,15 +1,14 @@
 package org.ggp.base.player.gamer.statemachine.sirtoby;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ThreadLocalRandom;
 
 import org.ggp.base.apps.player.detail.DetailPanel;
 import org.ggp.base.apps.player.detail.SimpleDetailPanel;
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
 import org.ggp.base.player.gamer.exception.GamePreviewException;
 import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
+import org.ggp.base.player.gamer.statemachine.TranspositionTable;
+import org.ggp.base.player.gamer.statemachine.mcts.TableSearch;
 import org.ggp.base.util.game.Game;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
@@ -25,8 +24,10 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 public final class MonteCarlo extends StateMachineGamer
 {
 
-	private Map<MachineState, Integer> utils = new HashMap<MachineState, Integer>();
-	private Map<MachineState, Integer> numVisits = new HashMap<MachineState, Integer>();
+	/** The share of the free heap that the search statistics may take up. */
+	private static final double TABLE_HEAP_FRACTION = 0.25;
+
+	private TableSearch search;
 
 	@Override
 	public String getName() {
@@ -50,70 +51,8 @@ public final class MonteCarlo extends StateMachineGamer
 	private Move bestMove(Role role, MachineState state, long end) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
 		// explore successor states until time is up to estimate which has best expected utility by
-		int sirTobyPlayerIndex = getStateMachine().getRoleIndices().get(role); // SirToby's index into moveSeq array below
-		Map<MachineState, Move> moves = new HashMap<MachineState, Move>();	// map from successor State -> Move from current state
-		while (true) {
-			for (List<Move> moveSeq : getStateMachine().getLegalJointMoves(state)) {
-				if (System.currentTimeMillis() >= end) { break; }
-				MachineState next = getStateMachine().getNextState(state, moveSeq);
-				explore(role, next);
-				if (!moves.containsKey(next)) {
-					moves.put(next, moveSeq.get(sirTobyPlayerIndex));	// remember which move leads us to next state
-				}
-			}
-
-			if (System.currentTimeMillis() >= end) { break; }
-		}
-
-		// evaluate options, return move that leads to state with highest utility
-		Move bestMove = null;
-		int bestUtil = 0;
-		for (MachineState key: moves.keySet()) {
-			int nVisits = 1;	// for terminal states
-			if (numVisits.containsKey(key)) {
-				nVisits = numVisits.get(key);
-			}
-
-			int averageUtil = utils.get(key) / nVisits;
-			if (bestMove == null || averageUtil > bestUtil) {
-				bestMove = moves.get(key);
-				bestUtil = averageUtil;
-			}
-		}
-
-		return bestMove;
-	}
-
-	private int explore(Role r, MachineState s) throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException {
-		if (getStateMachine().findTerminalp(s)) { // base condition: check if terminal state
-			int reward = getStateMachine().findReward(r,s);
-			utils.put(s, reward);
-			return reward;
-		}
-
-		// careful not to update this for terminal nodes because reward value
-		// shouldn't be dampened by numVisits. For the code in bestMove to work,
-		// we'll just use 1 as numVisits for terminal states when calculating best move
-		int currentStateNumVisits = 0;
-		if (numVisits.containsKey(s)) {
-			currentStateNumVisits = numVisits.get(s);
-		}
-		numVisits.put(s, currentStateNumVisits + 1);
-
-		// pick a random move and recursively move down game tree
-		List<List<Move>> allJointMoves = getStateMachine().getLegalJointMoves(s);
-		List<Move> randomMoves = allJointMoves.get(ThreadLocalRandom.current().nextInt(0, allJointMoves.size()));
-		MachineState next = getStateMachine().findNext(randomMoves, s);
-		int value = explore(r, next);
-
-		// update the total utility for this state based on exploration value
-		int stateCurrentUtil = 0;
-		if (utils.containsKey(s)) {
-			stateCurrentUtil = utils.get(s);
-		}
-		utils.put(s, stateCurrentUtil + value);
-
-		return value;	// propagate value upwards to previous states
+		search.sample(role, state, end);
+		return search.getBestMove(role, state);
 	}
 
 	@Override
@@ -129,7 +68,7 @@ public final class MonteCarlo extends StateMachineGamer
 	@Override
 	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
-		// Random gamer does no metagaming at the beginning of the match.
+		search = new TableSearch(getStateMachine(), TranspositionTable.createForHeap(TABLE_HEAP_FRACTION));
 	}
 
 	@Override
@@ -0,0 +1,104 @@
+package org.ggp.base.player.gamer.statemachine.sirtoby;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.apps.player.detail.DetailPanel;
+import org.ggp.base.apps.player.detail.SimpleDetailPanel;
+import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.player.gamer.exception.GamePreviewException;
+import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
+import org.ggp.base.player.gamer.statemachine.mcts.ParallelSearch;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+
+
+/**
+ * A Monte Carlo tree search gamer that searches on one thread per core, in
+ * either of the {@link ParallelSearch} modes. The gamer plays on a compiled
+ * propnet, and each thread searches on a fork of it, which shares the
+ * compiled net but has value buffers of its own.
+ */
+public abstract class ParallelMonteCarloTreeSearch extends StateMachineGamer
+{
+
+	private final ParallelSearch.Mode mode;
+	private CompiledPropNetStateMachine machine;
+	// Kept from turn to turn, like the single-threaded gamer's tree
+	private ParallelSearch search;
+
+	protected ParallelMonteCarloTreeSearch(ParallelSearch.Mode mode)
+	{
+		this.mode = mode;
+	}
+
+	@Override
+	public Move stateMachineSelectMove(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		long start = System.currentTimeMillis();
+		List<Move> moves = getStateMachine().getLegalMoves(getCurrentState(), getRole());
+		if (search == null) {
+			search = createSearch();
+		} else {
+			search.reroot(getCurrentState());
+		}
+
+		search.search(timeout - 1500);	// 1.5 second buffer
+		Move move = moves.get(0);
+		if (moves.size() > 1) {
+			move = search.getBestMove(getRole());
+		}
+		notifyObservers(new GamerSelectedMoveEvent(moves, move, System.currentTimeMillis() - start));
+		return move;
+	}
+
+	private ParallelSearch createSearch() throws GoalDefinitionException
+	{
+		// The gamer's own state machine isn't thread-safe, so every worker
+		// gets a fork of it
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		List<StateMachine> machines = new ArrayList<StateMachine>();
+		for (int i = 0; i < nThreads; i++) {
+			machines.add(machine.fork());
+		}
+		return new ParallelSearch(mode, machines, getCurrentState());
+	}
+
+	@Override
+	public StateMachine getInitialStateMachine() {
+		machine = new CompiledPropNetStateMachine();
+		return machine;
+	}
+
+	@Override
+	public void preview(Game g, long timeout) throws GamePreviewException {
+		// Random gamer does no game previewing.
+	}
+
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		search = createSearch();
+		search.search(timeout - 1500);
+	}
+
+	@Override
+	public void stateMachineStop() {
+		search = null;
+	}
+
+	@Override
+	public void stateMachineAbort() {
+		search = null;
+	}
+
+	@Override
+	public DetailPanel getDetailPanel() {
+		return new SimpleDetailPanel();
+	}
+}
@@ -0,0 +1,21 @@
+package org.ggp.base.player.gamer.statemachine.sirtoby;
+
+import org.ggp.base.player.gamer.statemachine.mcts.ParallelSearch;
+
+
+/**
+ * Searches with a separate tree per thread, merged when choosing a move.
+ */
+public final class RootParallelMonteCarloTreeSearch extends ParallelMonteCarloTreeSearch
+{
+
+	public RootParallelMonteCarloTreeSearch()
+	{
+		super(ParallelSearch.Mode.ROOT);
+	}
+
+	@Override
+	public String getName() {
+		return "SirTobyRootParallelMCTS";
+	}
+}
@@ -1,18 +1,17 @@
 package org.ggp.base.player.gamer.statemachine.sirtoby;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ThreadLocalRandom;
 
 import org.ggp.base.apps.player.detail.DetailPanel;
 import org.ggp.base.apps.player.detail.SimpleDetailPanel;
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
 import org.ggp.base.player.gamer.exception.GamePreviewException;
 import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
+import org.ggp.base.player.gamer.statemachine.TranspositionTable;
+import org.ggp.base.player.gamer.statemachine.mcts.TableSearch;
 import org.ggp.base.util.game.Game;
 import org.ggp.base.util.gdl.GdlUtils;
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -39,8 +38,10 @@ import com.google.common.collect.ImmutableList;
 public final class SubgoalOrdering extends StateMachineGamer
 {
 
-	private Map<MachineState, Integer> utils = new HashMap<MachineState, Integer>();
-	private Map<MachineState, Integer> numVisits = new HashMap<MachineState, Integer>();
+	/** The share of the free heap that the search statistics may take up. */
+	private static final double TABLE_HEAP_FRACTION = 0.25;
+
+	private TableSearch search;
 
 	@Override
 	public String getName() {
@@ -63,136 +64,8 @@ public final class SubgoalOrdering extends StateMachineGamer
 	private Move bestMove(Role role, MachineState state, long end) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
 		// explore successor states until time is up to estimate which has best expected utility by
-		while (true) {
-			// first heuristically select path to explore
-			List<MachineState> path = new ArrayList<MachineState>();
-			select(role, state, path);
-
-			// explore starting from the last state of this path
-			MachineState frontierState = path.get(path.size()-1);
-			print("exploring");
-			int value = explore(role, frontierState);
-
-			// backprop this explored value upwards to other states in path
-			for (MachineState s: path) {
-				// skip updating frontier state because it already happened inside
-				// explore function
-				if (s.equals(frontierState)) { continue; }
-
-				int stateCurrentUtil = 0;
-				if (utils.containsKey(s)) { stateCurrentUtil = utils.get(s); }
-				utils.put(s, stateCurrentUtil + value);
-
-				int nVisits = 0;
-				if (numVisits.containsKey(s)) { nVisits = numVisits.get(s); }
-				numVisits.put(s, nVisits + 1);
-			}
-
-			if (System.currentTimeMillis() >= end) { break; }
-		}
-
-		// evaluate options, return move that leads to state with highest utility
-		MachineState bestChild = null;
-		int bestUtil = 0;
-		Map<MachineState, Move> stateToMoveMap = new HashMap<MachineState, Move>();
-		for (MachineState next: getSuccessorStates(role, state, stateToMoveMap)) {
-
-			int util = 0;
-			int nVisits = 1;
-			if (getStateMachine().findTerminalp(next)) {
-				util = getStateMachine().findReward(role, next);
-				nVisits = 1;
-			} else if (utils.containsKey(next)) {
-				util = utils.get(next);
-				nVisits = numVisits.get(next);
-			}
-
-			int averageUtil = util / nVisits;
-			if (bestChild == null || averageUtil > bestUtil) {
-				bestChild = next;
-				bestUtil = averageUtil;
-			}
-		}
-
-		return stateToMoveMap.get(bestChild);
-	}
-
-	private Set<MachineState> getSuccessorStates(Role r, MachineState s, Map<MachineState, Move> moves) throws MoveDefinitionException, TransitionDefinitionException {
-		int playerIndex = getStateMachine().getRoleIndices().get(r);
-		Set<MachineState> successors = new HashSet<MachineState>();
-		for (List<Move> moveSeq: getStateMachine().getLegalJointMoves(s)) {
-			MachineState successor = getStateMachine().findNext(moveSeq, s);
-			successors.add(successor);
-			if (moves != null) {
-				moves.put(successor, moveSeq.get(playerIndex));
-			}
-		}
-		return successors;
-	}
-
-	private void select(Role r, MachineState s, List<MachineState> path) throws MoveDefinitionException, TransitionDefinitionException {
-
-		// if current node hasn't been visited, return it
-		if (!numVisits.containsKey(s) || getStateMachine().findTerminalp(s)) {
-			path.add(s);
-			return;
-		}
-
-		// if any children haven't been visited, return that
-		Set<MachineState> children = getSuccessorStates(r, s, null);
-		double bestScore = 0.0;
-		MachineState bestChild = null;
-		for (MachineState child: children) {
-			if (!numVisits.containsKey(child)) {
-				path.add(child);
-				return;
-			}
-
-			// compute scoring function for each child as we iterate through
-			// because if all have been visited, we use the scoring function to choose
-			// next child on path
-			double score = computeScore(child, numVisits.get(s));
-			if (bestChild == null || bestScore < score) {
-				bestChild = child;
-				bestScore = score;
-			}
-		}
-
-		// add next child and continue building path
-		path.add(bestChild);
-		select(r, bestChild, path);
-	}
-
-	private double computeScore(MachineState s, int nParentVisits) {
-		 int util = utils.get(s);
-		 double nVisits = (double) numVisits.get(s);
-		 return util / nVisits + Math.sqrt(2*Math.log(nParentVisits) / nVisits);
-	}
-
-	private int explore(Role r, MachineState s) throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException {
-		int currentStateNumVisits = 0;
-		if (numVisits.containsKey(s)) { currentStateNumVisits = numVisits.get(s); }
-		numVisits.put(s, currentStateNumVisits + 1);
-		print("recursing");
-		if (getStateMachine().findTerminalp(s)) { // base condition: check if terminal state
-			int reward = getStateMachine().findReward(r,s);
-			utils.put(s, reward);
-			print("found terminal");
-			return reward;
-		}
-
-		// pick a random move and recursively move down game tree
-		List<List<Move>> allJointMoves = getStateMachine().getLegalJointMoves(s);
-		List<Move> randomMoves = allJointMoves.get(ThreadLocalRandom.current().nextInt(0, allJointMoves.size()));
-		MachineState next = getStateMachine().findNext(randomMoves, s);
-		int value = explore(r, next);
-
-		// update the total utility for this state based on exploration value
-		int stateCurrentUtil = 0;
-		if (utils.containsKey(s)) { stateCurrentUtil = utils.get(s); }
-		utils.put(s, stateCurrentUtil + value);
-
-		return value;	// propagate value upwards to previous states
+		search.search(role, state, end);
+		return search.getBestMove(role, state);
 	}
 
 	private void print(String s) {
@@ -228,6 +101,7 @@ public final class SubgoalOrdering extends StateMachineGamer
 		StateMachine newStateMachine = getInitialStateMachine();
 		newStateMachine.initialize(newDesc);
 		switchStateMachine(newStateMachine);
+		search = new TableSearch(getStateMachine(), TranspositionTable.createForHeap(TABLE_HEAP_FRACTION));
 		System.out.println("Initialized new state machine");
 	}
 
@@ -0,0 +1,21 @@
+package org.ggp.base.player.gamer.statemachine.sirtoby;
+
+import org.ggp.base.player.gamer.statemachine.mcts.ParallelSearch;
+
+
+/**
+ * Searches with one tree shared by every thread, with virtual losses.
+ */
+public final class TreeParallelMonteCarloTreeSearch extends ParallelMonteCarloTreeSearch
+{
+
+	public TreeParallelMonteCarloTreeSearch()
+	{
+		super(ParallelSearch.Mode.TREE);
+	}
+
+	@Override
+	public String getName() {
+		return "SirTobyTreeParallelMCTS";
+	}
+}
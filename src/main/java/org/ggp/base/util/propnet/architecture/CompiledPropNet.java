@@ -0,0 +1,503 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.ZobristKeys;
+
+
+/**
+ * The CompiledPropNet class is an immutable, array-based representation of
+ * a {@link PropNet}, designed to be evaluated in a single tight loop rather
+ * than by walking Component objects.
+ *
+ * Every component is given a dense integer ID. IDs are assigned so that:
+ * <ul>
+ * <li>base propositions come first, with ID equal to their base ordinal
+ * (the bit that represents them in a PropNetMachineState);</li>
+ * <li>input propositions come next, in input ordinal order;</li>
+ * <li>the remaining sources (constants, INIT, and propositions with no
+ * inputs) follow;</li>
+ * <li>all other components follow in topological order. Components that do
+ * not depend on any input proposition ("state" components, which include
+ * every legal, goal and terminal proposition) come before the components
+ * that do ("move" components).</li>
+ * </ul>
+ * As a result, the values of a state can be computed by evaluating IDs
+ * [{@link #getFirstGateId()}, {@link #getFirstMoveGateId()}) in order, and
+ * the next state by additionally evaluating IDs
+ * [{@link #getFirstMoveGateId()}, {@link #getNumComponents()}).
+ *
+ * The edges between components are stored in CSR form: the inputs of
+ * component <tt>c</tt> are <tt>inputs[inputOffsets[c]]</tt> through
+ * <tt>inputs[inputOffsets[c + 1] - 1]</tt>, and likewise for outputs.
+ *
+ * The arrays returned by the getters of this class are shared; callers must
+ * not modify them.
+ */
+public final class CompiledPropNet
+{
+	/** Component types, as stored in {@link #getTypes()}. */
+	public static final byte TYPE_AND = 0;
+	public static final byte TYPE_OR = 1;
+	public static final byte TYPE_NOT = 2;
+	/** A proposition with a single input, which just copies that input. */
+	public static final byte TYPE_PROPOSITION = 3;
+	public static final byte TYPE_TRANSITION = 4;
+	public static final byte TYPE_BASE = 5;
+	public static final byte TYPE_INPUT = 6;
+	public static final byte TYPE_CONSTANT = 7;
+	/** INIT, or any other proposition without inputs. */
+	public static final byte TYPE_SOURCE = 8;
+
+	private final int numComponents;
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputs;
+	private final int[] outputOffsets;
+	private final int[] outputs;
+	/** The initial values of every component; only constants are true. */
+	private final boolean[] initialValues;
+	private final int firstGateId;
+	private final int firstMoveGateId;
+
+	private final int numBases;
+	private final GdlSentence[] baseSentences;
+	private final long[] baseKeys;
+	private final Map<GdlSentence, Integer> baseIndices;
+	/** For each base ordinal, the ID of the transition feeding the base. */
+	private final int[] transitionIds;
+
+	private final int numInputs;
+
+	private final List<Role> roles;
+	private final int[][] legalIds;
+	private final Move[][] legalMoves;
+	/** For each role and legal proposition, the ID of the matching input. */
+	private final int[][] legalInputIds;
+	private final int[][] goalIds;
+	private final int[][] goalValues;
+	/** For each role, maps each move to the ID of its input proposition. */
+	private final List<Map<Move, Integer>> inputIdsByMove;
+	private final int terminalId;
+	private final int initId;
+
+	/**
+	 * Compiles the given PropNet. The PropNet is not modified, and
+	 * may be discarded afterwards.
+	 */
+	public CompiledPropNet(PropNet propNet)
+	{
+		this.roles = propNet.getRoles();
+
+		// Classify the sources first: bases, inputs, then everything else
+		// that gets its value from outside the evaluation loop.
+		List<Component> sources = new ArrayList<Component>();
+		Set<Component> sourceSet = new HashSet<Component>();
+		List<GdlSentence> baseNames = new ArrayList<GdlSentence>(propNet.getBasePropositions().keySet());
+		for (GdlSentence name : baseNames) {
+			addSource(propNet.getBasePropositions().get(name), sources, sourceSet);
+		}
+		this.numBases = baseNames.size();
+		List<Proposition> inputProps = new ArrayList<Proposition>(propNet.getInputPropositions().values());
+		for (Proposition input : inputProps) {
+			addSource(input, sources, sourceSet);
+		}
+		this.numInputs = inputProps.size();
+		for (Component c : propNet.getComponents()) {
+			if (c instanceof Constant || (c instanceof Proposition && c.getInputs().isEmpty())) {
+				addSource(c, sources, sourceSet);
+			}
+		}
+		if (propNet.getInitProposition() != null) {
+			addSource(propNet.getInitProposition(), sources, sourceSet);
+		}
+
+		// Order everything else, then split it into components that depend
+		// on inputs and components that don't.
+		long orderingStart = System.currentTimeMillis();
+		List<Component> gates = propNet.getTopologicalOrdering(sourceSet);
+		Set<Component> moveDependent = getInputCone(inputProps, sourceSet);
+		long layoutStart = System.currentTimeMillis();
+		List<Component> ordered = new ArrayList<Component>(propNet.getComponents().size());
+		ordered.addAll(sources);
+		for (Component c : gates) {
+			if (!moveDependent.contains(c)) {
+				ordered.add(c);
+			}
+		}
+		int numStateGates = ordered.size() - sources.size();
+		for (Component c : gates) {
+			if (moveDependent.contains(c)) {
+				ordered.add(c);
+			}
+		}
+
+		this.numComponents = ordered.size();
+		this.firstGateId = sources.size();
+		this.firstMoveGateId = firstGateId + numStateGates;
+		Component[] components = ordered.toArray(new Component[numComponents]);
+		Map<Component, Integer> ids = new HashMap<Component, Integer>();
+		for (int i = 0; i < numComponents; i++) {
+			ids.put(components[i], i);
+		}
+
+		// Types, initial values and edges
+		this.types = new byte[numComponents];
+		this.initialValues = new boolean[numComponents];
+		this.inputOffsets = new int[numComponents + 1];
+		this.outputOffsets = new int[numComponents + 1];
+		int numInputEdges = 0;
+		int numOutputEdges = 0;
+		for (int i = 0; i < numComponents; i++) {
+			Component c = components[i];
+			types[i] = getType(c, i);
+			if (c instanceof Constant) {
+				initialValues[i] = c.getValue();
+			}
+			numInputEdges += c.getInputs().size();
+			numOutputEdges += c.getOutputs().size();
+		}
+		this.inputs = new int[numInputEdges];
+		this.outputs = new int[numOutputEdges];
+		int inputPos = 0;
+		int outputPos = 0;
+		for (int i = 0; i < numComponents; i++) {
+			inputOffsets[i] = inputPos;
+			for (Component in : components[i].getInputs()) {
+				inputs[inputPos++] = ids.get(in);
+			}
+			outputOffsets[i] = outputPos;
+			for (Component out : components[i].getOutputs()) {
+				outputs[outputPos++] = ids.get(out);
+			}
+		}
+		inputOffsets[numComponents] = inputPos;
+		outputOffsets[numComponents] = outputPos;
+
+		// Bases
+		this.baseSentences = baseNames.toArray(new GdlSentence[numBases]);
+		Map<GdlSentence, Integer> baseIndices = new HashMap<GdlSentence, Integer>();
+		this.transitionIds = new int[numBases];
+		for (int i = 0; i < numBases; i++) {
+			baseIndices.put(baseSentences[i], i);
+			transitionIds[i] = ids.get(components[i].getSingleInput());
+		}
+		this.baseIndices = Collections.unmodifiableMap(baseIndices);
+		this.baseKeys = ZobristKeys.get(baseSentences);
+
+		// Legals, goals and inputs, per role
+		int numRoles = roles.size();
+		this.legalIds = new int[numRoles][];
+		this.legalMoves = new Move[numRoles][];
+		this.goalIds = new int[numRoles][];
+		this.goalValues = new int[numRoles][];
+		this.inputIdsByMove = new ArrayList<Map<Move, Integer>>(numRoles);
+		for (int r = 0; r < numRoles; r++) {
+			Role role = roles.get(r);
+			List<Proposition> legals = getPropositions(propNet.getLegalPropositions(), role);
+			legalIds[r] = new int[legals.size()];
+			legalMoves[r] = new Move[legals.size()];
+			for (int i = 0; i < legals.size(); i++) {
+				legalIds[r][i] = ids.get(legals.get(i));
+				legalMoves[r][i] = new Move(legals.get(i).getName().get(1));
+			}
+			List<Proposition> goals = getPropositions(propNet.getGoalPropositions(), role);
+			goalIds[r] = new int[goals.size()];
+			goalValues[r] = new int[goals.size()];
+			for (int i = 0; i < goals.size(); i++) {
+				goalIds[r][i] = ids.get(goals.get(i));
+				goalValues[r][i] = getGoalValue(goals.get(i));
+			}
+			inputIdsByMove.add(new HashMap<Move, Integer>());
+		}
+		Map<Role, Integer> roleIndices = new HashMap<Role, Integer>();
+		for (int r = 0; r < numRoles; r++) {
+			roleIndices.put(roles.get(r), r);
+		}
+		for (Proposition input : inputProps) {
+			GdlSentence name = input.getName();
+			Integer r = roleIndices.get(new Role((GdlConstant) name.get(0)));
+			if (r != null) {
+				inputIdsByMove.get(r).put(new Move(name.get(1)), ids.get(input));
+			}
+		}
+		this.legalInputIds = new int[numRoles][];
+		for (int r = 0; r < numRoles; r++) {
+			legalInputIds[r] = new int[legalMoves[r].length];
+			for (int i = 0; i < legalMoves[r].length; i++) {
+				legalInputIds[r][i] = getInputId(r, legalMoves[r][i]);
+			}
+		}
+
+		this.terminalId = ids.get(propNet.getTerminalProposition());
+		this.initId = propNet.getInitProposition() == null ? -1 : ids.get(propNet.getInitProposition());
+
+		long end = System.currentTimeMillis();
+		GamerLogger.log("StateMachine", "Compiled propnet with " + numComponents + " components: ordering took " + (layoutStart - orderingStart) + " ms, array layout took " + (end - layoutStart) + " ms");
+	}
+
+	private static void addSource(Component c, List<Component> sources, Set<Component> sourceSet)
+	{
+		if (sourceSet.add(c)) {
+			sources.add(c);
+		}
+	}
+
+	private byte getType(Component c, int id)
+	{
+		if (id < numBases) {
+			return TYPE_BASE;
+		} else if (id < numBases + numInputs) {
+			return TYPE_INPUT;
+		} else if (c instanceof Constant) {
+			return TYPE_CONSTANT;
+		} else if (id < firstGateId) {
+			return TYPE_SOURCE;
+		} else if (c instanceof And) {
+			return TYPE_AND;
+		} else if (c instanceof Not) {
+			return TYPE_NOT;
+		} else if (c instanceof Transition) {
+			return TYPE_TRANSITION;
+		} else if (c instanceof Or || c.getInputs().size() > 1) {
+			// Propositions should never have multiple inputs, but if one
+			// does, treating it as a disjunction is the safe reading.
+			return TYPE_OR;
+		} else if (c instanceof Proposition) {
+			return TYPE_PROPOSITION;
+		}
+		throw new IllegalStateException("Unhandled component type " + c.getClass());
+	}
+
+	/**
+	 * Returns every non-source component whose value depends on an input
+	 * proposition.
+	 */
+	private static Set<Component> getInputCone(List<Proposition> inputProps, Set<Component> sources)
+	{
+		Set<Component> cone = new HashSet<Component>();
+		ArrayDeque<Component> toVisit = new ArrayDeque<Component>(inputProps);
+		while (!toVisit.isEmpty()) {
+			Component c = toVisit.poll();
+			for (Component out : c.getOutputs()) {
+				if (!sources.contains(out) && cone.add(out)) {
+					toVisit.add(out);
+				}
+			}
+		}
+		return cone;
+	}
+
+	/**
+	 * Returns the propositions of the given role, sorted by name so that
+	 * moves are listed in the same order on every run.
+	 */
+	private static List<Proposition> getPropositions(Map<Role, Set<Proposition>> propsByRole, Role role)
+	{
+		Set<Proposition> props = propsByRole.get(role);
+		if (props == null) {
+			return Collections.emptyList();
+		}
+		List<Proposition> sorted = new ArrayList<Proposition>(props);
+		Collections.sort(sorted, new Comparator<Proposition>() {
+			@Override
+			public int compare(Proposition a, Proposition b)
+			{
+				return a.getName().toString().compareTo(b.getName().toString());
+			}
+		});
+		return sorted;
+	}
+
+	private static int getGoalValue(Proposition goalProposition)
+	{
+		GdlRelation relation = (GdlRelation) goalProposition.getName();
+		GdlConstant constant = (GdlConstant) relation.get(1);
+		return Integer.parseInt(constant.toString());
+	}
+
+	public int getNumComponents()
+	{
+		return numComponents;
+	}
+
+	public byte[] getTypes()
+	{
+		return types;
+	}
+
+	public int[] getInputOffsets()
+	{
+		return inputOffsets;
+	}
+
+	public int[] getInputs()
+	{
+		return inputs;
+	}
+
+	public int[] getOutputOffsets()
+	{
+		return outputOffsets;
+	}
+
+	public int[] getOutputs()
+	{
+		return outputs;
+	}
+
+	/**
+	 * Returns a fresh copy of the values every component has before any
+	 * state is loaded: constants have their values, everything else is false.
+	 */
+	public boolean[] createValues()
+	{
+		return initialValues.clone();
+	}
+
+	/**
+	 * Returns the ID of the first component that is computed from its inputs.
+	 */
+	public int getFirstGateId()
+	{
+		return firstGateId;
+	}
+
+	/**
+	 * Returns the ID of the first component that depends on an input
+	 * proposition. Every component from here on is only needed to compute
+	 * the next state.
+	 */
+	public int getFirstMoveGateId()
+	{
+		return firstMoveGateId;
+	}
+
+	public int getNumBases()
+	{
+		return numBases;
+	}
+
+	/**
+	 * Returns the names of the base propositions, indexed by base ordinal
+	 * (which is also their component ID).
+	 */
+	public GdlSentence[] getBaseSentences()
+	{
+		return baseSentences;
+	}
+
+	public Map<GdlSentence, Integer> getBaseIndices()
+	{
+		return baseIndices;
+	}
+
+	/**
+	 * Returns the {@link ZobristKeys} of the base propositions, indexed by
+	 * base ordinal.
+	 */
+	public long[] getBaseKeys()
+	{
+		return baseKeys;
+	}
+
+	/**
+	 * Returns, for each base ordinal, the ID of the transition whose value
+	 * is the value of the base in the next state.
+	 */
+	public int[] getTransitionIds()
+	{
+		return transitionIds;
+	}
+
+	public int getNumInputs()
+	{
+		return numInputs;
+	}
+
+	public List<Role> getRoles()
+	{
+		return roles;
+	}
+
+	/**
+	 * Returns the IDs of the legal propositions of the role with the given index.
+	 */
+	public int[] getLegalIds(int roleIndex)
+	{
+		return legalIds[roleIndex];
+	}
+
+	/**
+	 * Returns the moves corresponding to {@link #getLegalIds(int)}.
+	 */
+	public Move[] getLegalMoves(int roleIndex)
+	{
+		return legalMoves[roleIndex];
+	}
+
+	/**
+	 * Returns the IDs of the input propositions corresponding to
+	 * {@link #getLegalIds(int)}, or -1 for legal moves that have no input.
+	 */
+	public int[] getLegalInputIds(int roleIndex)
+	{
+		return legalInputIds[roleIndex];
+	}
+
+	public int[] getGoalIds(int roleIndex)
+	{
+		return goalIds[roleIndex];
+	}
+
+	/**
+	 * Returns the goal values corresponding to {@link #getGoalIds(int)}.
+	 */
+	public int[] getGoalValues(int roleIndex)
+	{
+		return goalValues[roleIndex];
+	}
+
+	/**
+	 * Returns the ID of the input proposition for the given role making the
+	 * given move, or -1 if the move has no input proposition.
+	 */
+	public int getInputId(int roleIndex, Move move)
+	{
+		Integer id = inputIdsByMove.get(roleIndex).get(move);
+		return id == null ? -1 : id;
+	}
+
+	public int getTerminalId()
+	{
+		return terminalId;
+	}
+
+	/**
+	 * Returns the ID of the INIT proposition, or -1 if there is none.
+	 */
+	public int getInitId()
+	{
+		return initId;
+	}
+}
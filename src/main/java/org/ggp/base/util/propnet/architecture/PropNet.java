@@ -3,6 +3,7 @@ package org.ggp.base.util.propnet.architecture;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -491,6 +492,74 @@ public final class PropNet
 		return linkCount;
 	}
 
+	/**
+	 * Orders every component that isn't one of the given sources so that
+	 * each component comes after all of its inputs. Sources are treated as
+	 * having no inputs, which breaks the cycles that pass through base
+	 * propositions; pass at least the base propositions as sources.
+	 *
+	 * This uses Kahn's algorithm over array indices, so it takes time linear
+	 * in the number of components and links.
+	 *
+	 * @throws IllegalStateException if the non-source components contain a
+	 * cycle.
+	 */
+	public List<Component> getTopologicalOrdering(Set<? extends Component> sources)
+	{
+		Component[] byId = components.toArray(new Component[components.size()]);
+		Map<Component, Integer> ids = new HashMap<Component, Integer>(byId.length * 2);
+		for (int i = 0; i < byId.length; i++) {
+			ids.put(byId[i], i);
+		}
+		boolean[] isSource = new boolean[byId.length];
+		for (Component source : sources) {
+			Integer id = ids.get(source);
+			if (id != null) {
+				isSource[id] = true;
+			}
+		}
+
+		// Count the unordered inputs of every component, and start with the
+		// components that have none.
+		int[] remainingInputs = new int[byId.length];
+		int[] queue = new int[byId.length];
+		int queueEnd = 0;
+		int numToOrder = 0;
+		for (int i = 0; i < byId.length; i++) {
+			if (isSource[i]) {
+				continue;
+			}
+			numToOrder++;
+			int count = 0;
+			for (Component input : byId[i].getInputs()) {
+				Integer inputId = ids.get(input);
+				if (inputId != null && !isSource[inputId]) {
+					count++;
+				}
+			}
+			remainingInputs[i] = count;
+			if (count == 0) {
+				queue[queueEnd++] = i;
+			}
+		}
+
+		List<Component> ordering = new ArrayList<Component>(numToOrder);
+		for (int queueStart = 0; queueStart < queueEnd; queueStart++) {
+			Component c = byId[queue[queueStart]];
+			ordering.add(c);
+			for (Component output : c.getOutputs()) {
+				Integer id = ids.get(output);
+				if (id != null && !isSource[id] && --remainingInputs[id] == 0) {
+					queue[queueEnd++] = id;
+				}
+			}
+		}
+		if (ordering.size() != numToOrder) {
+			throw new IllegalStateException("PropNet has a cycle that doesn't pass through a source; " + (numToOrder - ordering.size()) + " components could not be ordered");
+		}
+		return ordering;
+	}
+
 	/**
 	 * Removes a component from the propnet. Be very careful when using
 	 * this method, as it is not thread-safe. It is highly recommended
@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -12,6 +13,10 @@ import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.ggp.base.util.Pair;
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
@@ -116,6 +121,31 @@ public class OptimizingPropNetFactory {
 	}
 
 	public static PropNet create(List<Gdl> description, boolean verbose) throws InterruptedException {
+		return create(description, verbose, null);
+	}
+
+	/**
+	 * Creates a PropNet for the game with the given description, using the
+	 * given executor to build independent sentence forms in parallel. The
+	 * result is equivalent to the one built by {@link #create(List)}.
+	 *
+	 * @throws InterruptedException if the thread is interrupted during
+	 * PropNet creation.
+	 */
+	public static PropNet create(List<Gdl> description, ExecutorService executor) throws InterruptedException {
+		return create(description, false, executor);
+	}
+
+	/**
+	 * Creates a PropNet for the game with the given description. If the
+	 * executor is not null, sentence forms that don't depend on one another
+	 * have their rules enumerated on it in parallel; otherwise, every form is
+	 * built on the calling thread.
+	 *
+	 * @throws InterruptedException if the thread is interrupted during
+	 * PropNet creation.
+	 */
+	public static PropNet create(List<Gdl> description, boolean verbose, ExecutorService executor) throws InterruptedException {
 		description = sanitizeDistinct(description);
 
 		long startTime = System.currentTimeMillis();
@@ -173,51 +203,13 @@ public class OptimizingPropNetFactory {
 		Constant falseComponent = new Constant(false);
 		Map<SentenceForm, FunctionInfo> functionInfoMap = new HashMap<SentenceForm, FunctionInfo>();
 		Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new HashMap<SentenceForm, Collection<GdlSentence>>();
-		for(SentenceForm form : topologicalOrdering) {
-			ConcurrencyUtils.checkForInterruption();
-
-			if(verbose) {
-				System.out.print("Adding sentence form " + form);
-				System.out.flush();
-			}
-			if(constantChecker.isConstantForm(form)) {
-				if(verbose)
-					System.out.println(" (constant)");
-				//Only add it if it's important
-				if(form.getName().equals(LEGAL)
-						|| form.getName().equals(GOAL)
-						|| form.getName().equals(INIT)) {
-					//Add it
-					for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
-						Proposition trueProp = new Proposition(trueSentence);
-						trueProp.addInput(trueComponent);
-						trueComponent.addOutput(trueProp);
-						components.put(trueSentence, trueComponent);
-					}
-				}
-
-				if(verbose)
-					System.out.println("Checking whether " + form + " is a functional constant...");
-				addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
-				addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
-
-				continue;
+		if(executor == null) {
+			for(SentenceForm form : topologicalOrdering) {
+				ConcurrencyUtils.checkForInterruption();
+				addForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, functionInfoMap, constantChecker, completedSentenceFormValues, verbose);
 			}
-			if(verbose)
-				System.out.println();
-			//TODO: Adjust "recursive forms" appropriately
-			//Add a temporary sentence form thingy? ...
-			Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
-			Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
-			addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues);
-			//TODO: Pass these over groups of multiple sentence forms
-			if(verbose && !temporaryComponents.isEmpty())
-				System.out.println("Processing temporary components...");
-			processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
-			addFormToCompletedValues(form, completedSentenceFormValues, components);
-			//if(verbose)
-				//TODO: Add this, but with the correct total number of components (not just Propositions)
-				//System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
+		} else {
+			addFormsInParallel(topologicalOrdering, dependencyGraph, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, functionInfoMap, constantChecker, completedSentenceFormValues, verbose, executor);
 		}
 		//Connect "next" to "true"
 		if(verbose)
@@ -251,6 +243,62 @@ public class OptimizingPropNetFactory {
 		return propnet;
 	}
 
+	/**
+	 * Adds the components for a single sentence form, once every form it
+	 * depends on has been added.
+	 */
+	private static void addForm(SentenceForm form, SentenceDomainModel model,
+			Map<GdlSentence, Component> components,
+			Map<GdlSentence, Component> negations,
+			Constant trueComponent, Constant falseComponent,
+			boolean usingBase, boolean usingInput,
+			Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
+			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+			boolean verbose) throws InterruptedException {
+		if(verbose) {
+			System.out.print("Adding sentence form " + form);
+			System.out.flush();
+		}
+		if(constantChecker.isConstantForm(form)) {
+			if(verbose)
+				System.out.println(" (constant)");
+			//Only add it if it's important
+			if(form.getName().equals(LEGAL)
+					|| form.getName().equals(GOAL)
+					|| form.getName().equals(INIT)) {
+				//Add it
+				for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
+					Proposition trueProp = new Proposition(trueSentence);
+					trueProp.addInput(trueComponent);
+					trueComponent.addOutput(trueProp);
+					components.put(trueSentence, trueComponent);
+				}
+			}
+
+			if(verbose)
+				System.out.println("Checking whether " + form + " is a functional constant...");
+			addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
+			addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
+
+			return;
+		}
+		if(verbose)
+			System.out.println();
+		//TODO: Adjust "recursive forms" appropriately
+		//Add a temporary sentence form thingy? ...
+		Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
+		Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
+		addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues);
+		//TODO: Pass these over groups of multiple sentence forms
+		if(verbose && !temporaryComponents.isEmpty())
+			System.out.println("Processing temporary components...");
+		processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
+		addFormToCompletedValues(form, completedSentenceFormValues, components);
+		//if(verbose)
+			//TODO: Add this, but with the correct total number of components (not just Propositions)
+			//System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
+	}
+
 	/*
 	public static IIPropNet createII(List<Gdl> description, boolean verbose) throws InterruptedException {
 		//System.out.println("Building propnet...");
@@ -986,26 +1034,9 @@ public class OptimizingPropNetFactory {
 		//proposition if it isn't actually possible, or replacing it with
 		//true/false if it's a constant.
 
-		Set<GdlSentence> alwaysTrueSentences = model.getSentencesListedAsTrue(form);
 		Set<GdlRule> rules = model.getRules(form);
 
-		for(GdlSentence alwaysTrueSentence : alwaysTrueSentences) {
-			//We add the sentence as a constant
-			if(alwaysTrueSentence.getName().equals(LEGAL)
-					|| alwaysTrueSentence.getName().equals(NEXT)
-					|| alwaysTrueSentence.getName().equals(GOAL)) {
-				Proposition prop = new Proposition(alwaysTrueSentence);
-				//Attach to true
-				trueComponent.addOutput(prop);
-				prop.addInput(trueComponent);
-				//Still want the same components;
-				//we just don't want this to be anonymized
-			}
-			//Assign as true
-			components.put(alwaysTrueSentence, trueComponent);
-			negations.put(alwaysTrueSentence, falseComponent);
-			continue;
-		}
+		addAlwaysTrueSentences(form, model, components, negations, trueComponent, falseComponent);
 
 		//For does/true, make nodes based on input/base, if available
 		if(usingInput && form.getName().equals(DOES)) {
@@ -1194,6 +1225,39 @@ public class OptimizingPropNetFactory {
 		}
 
 		//At the end, we hook up the conjuncts
+		addOrs(inputsToOr, components, falseComponent);
+
+		addFloatingPropositions(form, model, components);
+	}
+
+	private static void addAlwaysTrueSentences(SentenceForm form, SentenceDomainModel model,
+			Map<GdlSentence, Component> components,
+			Map<GdlSentence, Component> negations,
+			Constant trueComponent, Constant falseComponent) {
+		for(GdlSentence alwaysTrueSentence : model.getSentencesListedAsTrue(form)) {
+			//We add the sentence as a constant
+			if(alwaysTrueSentence.getName().equals(LEGAL)
+					|| alwaysTrueSentence.getName().equals(NEXT)
+					|| alwaysTrueSentence.getName().equals(GOAL)) {
+				Proposition prop = new Proposition(alwaysTrueSentence);
+				//Attach to true
+				trueComponent.addOutput(prop);
+				prop.addInput(trueComponent);
+				//Still want the same components;
+				//we just don't want this to be anonymized
+			}
+			//Assign as true
+			components.put(alwaysTrueSentence, trueComponent);
+			negations.put(alwaysTrueSentence, falseComponent);
+		}
+	}
+
+	/**
+	 * Adds a proposition for each sentence, true when any of the given
+	 * temporary "and" propositions is true.
+	 */
+	private static void addOrs(Map<GdlSentence, Set<Component>> inputsToOr,
+			Map<GdlSentence, Component> components, Constant falseComponent) throws InterruptedException {
 		for(Entry<GdlSentence, Set<Component>> entry : inputsToOr.entrySet()) {
 			ConcurrencyUtils.checkForInterruption();
 
@@ -1214,7 +1278,10 @@ public class OptimizingPropNetFactory {
 			orify(realInputs, prop, falseComponent);
 			components.put(sentence, prop);
 		}
+	}
 
+	private static void addFloatingPropositions(SentenceForm form, SentenceDomainModel model,
+			Map<GdlSentence, Component> components) throws InterruptedException {
 		//True/does sentences will have none of these rules, but
 		//still need to exist/"float"
 		//We'll do this if we haven't used base/input as a basis
@@ -1230,6 +1297,308 @@ public class OptimizingPropNetFactory {
 
 	}
 
+	/**
+	 * Adds every form in the ordering, one layer of mutually independent
+	 * forms at a time. Within a layer, constant and recursive forms are
+	 * added on this thread first, as usual. The rules of each remaining form
+	 * are then enumerated on the executor; this only reads the components
+	 * and maps built so far, and nothing modifies them until every
+	 * enumeration in the layer is done. The results are then connected to
+	 * the net on this thread, in topological order, so the net doesn't
+	 * depend on thread scheduling.
+	 */
+	private static void addFormsInParallel(List<SentenceForm> topologicalOrdering,
+			Multimap<SentenceForm, SentenceForm> dependencyGraph,
+			final SentenceDomainModel model,
+			final Map<GdlSentence, Component> components,
+			final Map<GdlSentence, Component> negations,
+			Constant trueComponent, final Constant falseComponent,
+			boolean usingBase, boolean usingInput,
+			final Map<SentenceForm, FunctionInfo> functionInfoMap, final ConstantChecker constantChecker,
+			final Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
+			boolean verbose, ExecutorService executor) throws InterruptedException {
+		for(List<SentenceForm> layer : getLayers(topologicalOrdering, dependencyGraph, usingBase, usingInput)) {
+			ConcurrencyUtils.checkForInterruption();
+
+			List<SentenceForm> parallelForms = new ArrayList<SentenceForm>();
+			for(SentenceForm form : layer) {
+				if(constantChecker.isConstantForm(form)
+						|| dependencyGraph.get(form).contains(form)
+						|| (usingInput && form.getName().equals(DOES))
+						|| (usingBase && form.getName().equals(TRUE))) {
+					addForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, functionInfoMap, constantChecker, completedSentenceFormValues, verbose);
+				} else {
+					parallelForms.add(form);
+				}
+			}
+
+			List<Future<FormConjunctions>> enumerations = new ArrayList<Future<FormConjunctions>>();
+			try {
+				for(final SentenceForm form : parallelForms) {
+					enumerations.add(executor.submit(new Callable<FormConjunctions>() {
+						@Override
+						public FormConjunctions call() throws InterruptedException {
+							return enumerateConjunctions(form, model, components, negations, falseComponent, functionInfoMap, constantChecker, completedSentenceFormValues);
+						}
+					}));
+				}
+
+				//The enumerations read the net, so it can't change until they're all done
+				List<FormConjunctions> results = new ArrayList<FormConjunctions>();
+				for(Future<FormConjunctions> enumeration : enumerations) {
+					results.add(getResult(enumeration));
+				}
+
+				for(int i = 0; i < parallelForms.size(); i++) {
+					SentenceForm form = parallelForms.get(i);
+					if(verbose)
+						System.out.println("Adding sentence form " + form + " (enumerated in parallel)");
+					addAlwaysTrueSentences(form, model, components, negations, trueComponent, falseComponent);
+					addConjunctions(results.get(i), components, negations, trueComponent, falseComponent);
+					addFloatingPropositions(form, model, components);
+					addFormToCompletedValues(form, completedSentenceFormValues, components);
+				}
+			} finally {
+				//Stop any enumerations left running by an exception
+				for(Future<FormConjunctions> enumeration : enumerations) {
+					enumeration.cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Groups the forms of a topological ordering into layers, such that each
+	 * form only depends on itself and on forms in earlier layers. Forms keep
+	 * their relative order within each layer.
+	 */
+	private static List<List<SentenceForm>> getLayers(List<SentenceForm> topologicalOrdering,
+			Multimap<SentenceForm, SentenceForm> dependencyGraph, boolean usingBase, boolean usingInput) {
+		Map<SentenceForm, Integer> layerIndices = new HashMap<SentenceForm, Integer>();
+		List<List<SentenceForm>> layers = new ArrayList<List<SentenceForm>>();
+		for(SentenceForm form : topologicalOrdering) {
+			List<SentenceForm> prerequisites = new ArrayList<SentenceForm>(dependencyGraph.get(form));
+			//The same extra constraints as in getTopologicalOrdering
+			if(usingBase && (form.getName().equals(TRUE) || form.getName().equals(NEXT) || form.getName().equals(INIT))) {
+				prerequisites.add(form.withName(BASE));
+			}
+			if(usingInput && (form.getName().equals(DOES) || form.getName().equals(LEGAL))) {
+				prerequisites.add(form.withName(INPUT));
+			}
+			int layerIndex = 0;
+			for(SentenceForm prerequisite : prerequisites) {
+				Integer prerequisiteIndex = layerIndices.get(prerequisite);
+				if(prerequisiteIndex != null && !prerequisite.equals(form)) {
+					layerIndex = Math.max(layerIndex, prerequisiteIndex + 1);
+				}
+			}
+			layerIndices.put(form, layerIndex);
+			if(layerIndex == layers.size()) {
+				layers.add(new ArrayList<SentenceForm>());
+			}
+			layers.get(layerIndex).add(form);
+		}
+		return layers;
+	}
+
+	private static <T> T getResult(Future<T> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if(cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * The rule instantiations of a non-recursive sentence form, found without
+	 * modifying the net.
+	 */
+	private static class FormConjunctions {
+		/** For each sentence, the conjuncts of each rule instantiation that can make it true. */
+		final Map<GdlSentence, List<List<Component>>> conjunctions = new LinkedHashMap<GdlSentence, List<List<Component>>>();
+		/**
+		 * The negations used by the conjuncts that weren't in the negations
+		 * map. A Not that isn't among the outputs of its input is new, and
+		 * hasn't been connected yet.
+		 */
+		final Map<GdlSentence, Not> negations = new LinkedHashMap<GdlSentence, Not>();
+	}
+
+	/**
+	 * Does the same enumeration as {@link #addSentenceForm} for a form that
+	 * isn't constant, recursive, or built from base/input, but only reads the
+	 * shared maps and components, so that it can run concurrently with the
+	 * enumerations of other forms.
+	 */
+	private static FormConjunctions enumerateConjunctions(SentenceForm form, SentenceDomainModel model,
+			Map<GdlSentence, Component> components,
+			Map<GdlSentence, Component> negations,
+			Constant falseComponent,
+			Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
+			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) throws InterruptedException {
+		FormConjunctions result = new FormConjunctions();
+		for(GdlRule rule : model.getRules(form)) {
+			Assignments assignments = AssignmentsFactory.getAssignmentsForRule(rule, model, functionInfoMap, completedSentenceFormValues);
+
+			Set<GdlVariable> varsInLiveConjuncts = getVarsInLiveConjuncts(rule, constantChecker.getConstantSentenceForms());
+			varsInLiveConjuncts.addAll(GdlUtils.getVariables(rule.getHead()));
+			Set<GdlVariable> varsInRule = new HashSet<GdlVariable>(GdlUtils.getVariables(rule));
+			boolean preventDuplicatesFromConstants =
+				(varsInRule.size() > varsInLiveConjuncts.size());
+
+			for(AssignmentIterator asnItr = assignments.getIterator(); asnItr.hasNext(); ) {
+				Map<GdlVariable, GdlConstant> assignment = asnItr.next();
+				if(assignment == null) continue;
+
+				ConcurrencyUtils.checkForInterruption();
+
+				GdlSentence sentence = CommonTransforms.replaceVariables(rule.getHead(), assignment);
+
+				List<Component> componentsToConnect = new ArrayList<Component>(rule.arity());
+				for(GdlLiteral literal : rule.getBody()) {
+					if(literal instanceof GdlSentence) {
+						GdlSentence transformed = CommonTransforms.replaceVariables((GdlSentence) literal, assignment);
+
+						SentenceForm conjunctForm = model.getSentenceForm(transformed);
+						if(constantChecker.isConstantForm(conjunctForm)) {
+							if(!constantChecker.isTrueConstant(transformed)) {
+								List<GdlVariable> varsToChange = getVarsInConjunct(literal);
+								asnItr.changeOneInNext(varsToChange, assignment);
+								componentsToConnect.add(null);
+							}
+							continue;
+						}
+
+						Component conj = components.get(transformed);
+						if(conj == null || isThisConstant(conj, falseComponent)) {
+							List<GdlVariable> varsInConjunct = getVarsInConjunct(literal);
+							asnItr.changeOneInNext(varsInConjunct, assignment);
+							componentsToConnect.add(null);
+							continue;
+						}
+
+						componentsToConnect.add(conj);
+					} else if(literal instanceof GdlNot) {
+						GdlSentence internal = (GdlSentence) ((GdlNot) literal).getBody();
+						GdlSentence transformed = CommonTransforms.replaceVariables(internal, assignment);
+
+						SentenceForm conjunctForm = model.getSentenceForm(transformed);
+						if(constantChecker.isConstantForm(conjunctForm)) {
+							if(constantChecker.isTrueConstant(transformed)) {
+								List<GdlVariable> varsToChange = getVarsInConjunct(literal);
+								asnItr.changeOneInNext(varsToChange, assignment);
+								componentsToConnect.add(null);
+							}
+							continue;
+						}
+
+						Component conj = negations.get(transformed);
+						if(isThisConstant(conj, falseComponent)) {
+							List<GdlVariable> varsInConjunct = getVarsInConjunct(internal);
+							asnItr.changeOneInNext(varsInConjunct, assignment);
+							componentsToConnect.add(null);
+							continue;
+						}
+						if(conj == null) {
+							conj = result.negations.get(transformed);
+						}
+						if(conj == null) {
+							Component positive = components.get(transformed);
+							if(positive == null) {
+								//The negation is always true; skip the conjunct
+								continue;
+							}
+							//Share an existing "not" if there is one; otherwise,
+							//leave the new one to be connected later
+							Not not = getNotOutput(positive);
+							if(not == null) {
+								not = new Not();
+								not.addInput(positive);
+							}
+							result.negations.put(transformed, not);
+							conj = not;
+						}
+						componentsToConnect.add(conj);
+					} else if(literal instanceof GdlDistinct) {
+						//Already handled; ignore
+					} else {
+						throw new RuntimeException("Unwanted GdlLiteral type");
+					}
+				}
+				if(!componentsToConnect.contains(null)) {
+					List<List<Component>> sentenceConjunctions = result.conjunctions.get(sentence);
+					if(sentenceConjunctions == null) {
+						sentenceConjunctions = new ArrayList<List<Component>>();
+						result.conjunctions.put(sentence, sentenceConjunctions);
+					}
+					sentenceConjunctions.add(componentsToConnect);
+					if(preventDuplicatesFromConstants) {
+						asnItr.changeOneInNext(varsInLiveConjuncts, assignment);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Connects the results of {@link #enumerateConjunctions} to the net.
+	 */
+	private static void addConjunctions(FormConjunctions conjunctions,
+			Map<GdlSentence, Component> components,
+			Map<GdlSentence, Component> negations,
+			Constant trueComponent, Constant falseComponent) throws InterruptedException {
+		//Another form in the same layer may have connected a "not" for the
+		//same sentence in the meantime; if so, use that one instead
+		Map<Component, Component> replacements = new HashMap<Component, Component>();
+		for(Entry<GdlSentence, Not> entry : conjunctions.negations.entrySet()) {
+			Not not = entry.getValue();
+			Component positive = not.getSingleInput();
+			Component existing = negations.get(entry.getKey());
+			if(existing == null) {
+				existing = positive.getOutputs().contains(not) ? not : getNotOutput(positive);
+			}
+			if(existing == null) {
+				positive.addOutput(not);
+				existing = not;
+			}
+			negations.put(entry.getKey(), existing);
+			if(existing != not) {
+				replacements.put(not, existing);
+			}
+		}
+
+		Map<GdlSentence, Set<Component>> inputsToOr = new HashMap<GdlSentence, Set<Component>>();
+		for(Entry<GdlSentence, List<List<Component>>> entry : conjunctions.conjunctions.entrySet()) {
+			Set<Component> inputs = new HashSet<Component>();
+			for(List<Component> conjuncts : entry.getValue()) {
+				ConcurrencyUtils.checkForInterruption();
+
+				List<Component> componentsToConnect = new ArrayList<Component>(conjuncts.size());
+				for(Component conjunct : conjuncts) {
+					Component replacement = replacements.get(conjunct);
+					componentsToConnect.add(replacement != null ? replacement : conjunct);
+				}
+				Proposition andComponent = new Proposition(TEMP);
+				andify(componentsToConnect, andComponent, trueComponent);
+				if(!isThisConstant(andComponent, falseComponent)) {
+					inputs.add(andComponent);
+				}
+			}
+			if(!inputs.isEmpty()) {
+				inputsToOr.put(entry.getKey(), inputs);
+			}
+		}
+		addOrs(inputsToOr, components, falseComponent);
+	}
+
 
 	private static Set<GdlVariable> getVarsInLiveConjuncts(
 			GdlRule rule, Set<SentenceForm> constantSentenceForms) {
@@ -1521,31 +1890,47 @@ public class OptimizingPropNetFactory {
 			}
     	}
 
+	    Map<Component, Boolean> constantValues = Maps.newHashMap();
+	    for(Entry<Component, Type> entry : reachability.entrySet()) {
+	        Type type = entry.getValue();
+	        if(type == Type.TRUE || type == Type.FALSE) {
+	            constantValues.put(entry.getKey(), type == Type.TRUE);
+	        }
+	    }
+	    replaceWithConstants(pn, constantValues);
+	}
+
+	/**
+	 * Replaces each of the given components, which are known to have the
+	 * given value in every state of the game, with that constant value. The
+	 * components they feed are then simplified as far as possible. Base
+	 * propositions that become constant are removed from the propnet.
+	 *
+	 * @param constantValues The value of each component to replace.
+	 */
+	public static void replaceWithConstants(PropNet pn, Map<? extends Component, Boolean> constantValues) {
 	    Constant trueConst = new Constant(true);
 	    Constant falseConst = new Constant(false);
 	    pn.addComponent(trueConst);
 	    pn.addComponent(falseConst);
 	    //Make them the input of all false/true components
-	    for(Entry<Component, Type> entry : reachability.entrySet()) {
-	        Type type = entry.getValue();
-	        if(type == Type.TRUE || type == Type.FALSE) {
-	            Component c = entry.getKey();
-	            if (c instanceof Constant) {
-	            	//Don't bother trying to remove this
-	            	continue;
-	            }
-	            //Disconnect from inputs
-	            for(Component input : c.getInputs()) {
-	                input.removeOutput(c);
-	            }
-	            c.removeAllInputs();
-	            if(type == Type.TRUE ^ (c instanceof Not)) {
-	                c.addInput(trueConst);
-	                trueConst.addOutput(c);
-	            } else {
-                    c.addInput(falseConst);
-                    falseConst.addOutput(c);
-	            }
+	    for(Entry<? extends Component, Boolean> entry : constantValues.entrySet()) {
+	        Component c = entry.getKey();
+	        if (c instanceof Constant) {
+	            //Don't bother trying to remove this
+	            continue;
+	        }
+	        //Disconnect from inputs
+	        for(Component input : c.getInputs()) {
+	            input.removeOutput(c);
+	        }
+	        c.removeAllInputs();
+	        if(entry.getValue() ^ (c instanceof Not)) {
+	            c.addInput(trueConst);
+	            trueConst.addOutput(c);
+	        } else {
+	            c.addInput(falseConst);
+	            falseConst.addOutput(c);
 	        }
 	    }
 
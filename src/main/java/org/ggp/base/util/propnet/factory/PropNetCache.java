@@ -0,0 +1,403 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.crypto.BaseHashing;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlProposition;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * PropNetCache stores built PropNets on disk, so that matches of a game that
+ * has been played before don't have to run {@link OptimizingPropNetFactory}
+ * again. Each PropNet is stored in its own file, named after the SHA1 hash of
+ * the game's rulesheet.
+ *
+ * The files use a compact binary format: a table of the GDL constants used
+ * by the PropNet, the proposition names built from them, and then one entry
+ * per component with its type and its inputs. They are read back through a
+ * memory-mapped buffer. Every name is rebuilt through the GdlPool when it is
+ * loaded, so cached PropNets remain valid after {@link GdlPool#drainPool()}.
+ *
+ * Files written with a different {@link #FORMAT_VERSION} are ignored and
+ * overwritten. Files are written to a temporary file first and then renamed,
+ * so that concurrent players sharing a cache directory never see a
+ * partially-written file.
+ */
+public final class PropNetCache
+{
+	/** Increment this whenever the file format changes. */
+	public static final int FORMAT_VERSION = 1;
+	private static final int MAGIC = 0x50724e43; // "PrNC"
+
+	private static final byte TYPE_AND = 0;
+	private static final byte TYPE_OR = 1;
+	private static final byte TYPE_NOT = 2;
+	private static final byte TYPE_TRANSITION = 3;
+	private static final byte TYPE_PROPOSITION = 4;
+	private static final byte TYPE_CONSTANT = 5;
+
+	private static final byte SENTENCE_PROPOSITION = 0;
+	private static final byte SENTENCE_RELATION = 1;
+	private static final byte TERM_CONSTANT = 0;
+	private static final byte TERM_FUNCTION = 1;
+
+	private final File directory;
+
+	public PropNetCache(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns a cache in the ".ggp-propnetcache" directory of the user's home
+	 * directory.
+	 */
+	public static PropNetCache getDefault()
+	{
+		return new PropNetCache(new File(System.getProperty("user.home"), ".ggp-propnetcache"));
+	}
+
+	/**
+	 * Returns the PropNet for the given game, loading it from the cache if
+	 * possible and building and caching it otherwise.
+	 */
+	public PropNet getPropNet(Game game) throws InterruptedException
+	{
+		return getPropNet(getKey(game.getRulesheet()), game.getRules());
+	}
+
+	/**
+	 * Returns the PropNet for the game with the given description, loading it
+	 * from the cache if possible and building and caching it otherwise. The
+	 * description is rendered back into a rulesheet to compute its key.
+	 */
+	public PropNet getPropNet(List<Gdl> description) throws InterruptedException
+	{
+		StringBuilder rulesheet = new StringBuilder("( ");
+		for (Gdl gdl : description) {
+			rulesheet.append(gdl).append(" ");
+		}
+		rulesheet.append(")");
+		return getPropNet(getKey(rulesheet.toString()), description);
+	}
+
+	private PropNet getPropNet(String key, List<Gdl> description) throws InterruptedException
+	{
+		long start = System.currentTimeMillis();
+		PropNet propNet = load(key);
+		if (propNet != null) {
+			GamerLogger.log("StateMachine", "Loaded cached propnet " + key + " in " + (System.currentTimeMillis() - start) + " ms");
+			return propNet;
+		}
+		propNet = OptimizingPropNetFactory.create(description);
+		save(key, propNet);
+		return propNet;
+	}
+
+	/**
+	 * Returns the cache key of the game with the given rulesheet.
+	 */
+	public static String getKey(String rulesheet)
+	{
+		return BaseHashing.computeSHA1Hash(rulesheet);
+	}
+
+	private File getFile(String key)
+	{
+		return new File(directory, key + ".propnet");
+	}
+
+	/**
+	 * Loads the PropNet stored under the given key, or returns null if there
+	 * isn't one or it can't be read.
+	 */
+	public PropNet load(String key)
+	{
+		File file = getFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = in.getChannel();
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				return read(buffer);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			GamerLogger.logError("StateMachine", "Could not read cached propnet " + file + ": " + e);
+		} catch (BufferUnderflowException e) {
+			GamerLogger.logError("StateMachine", "Cached propnet " + file + " is truncated");
+		} catch (RuntimeException e) {
+			GamerLogger.logError("StateMachine", "Cached propnet " + file + " is corrupt");
+			GamerLogger.logStackTrace("StateMachine", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the given PropNet under the given key. Failures are logged,
+	 * since the cache is only an optimization.
+	 */
+	public void save(String key, PropNet propNet)
+	{
+		File file = getFile(key);
+		File tempFile = new File(directory, key + "." + Thread.currentThread().getId() + "." + System.nanoTime() + ".tmp");
+		try {
+			directory.mkdirs();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				write(propNet, out);
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(file)) {
+				// Windows won't rename over an existing file
+				file.delete();
+				if (!tempFile.renameTo(file)) {
+					throw new IOException("Could not rename " + tempFile + " to " + file);
+				}
+			}
+		} catch (IOException e) {
+			GamerLogger.logError("StateMachine", "Could not write cached propnet " + file + ": " + e);
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Writes the given PropNet in the cache's binary format.
+	 */
+	public static void write(PropNet propNet, DataOutputStream out) throws IOException
+	{
+		List<GdlConstant> constants = new ArrayList<GdlConstant>();
+		Map<GdlConstant, Integer> constantIds = new HashMap<GdlConstant, Integer>();
+		List<GdlSentence> sentences = new ArrayList<GdlSentence>();
+		Map<GdlSentence, Integer> sentenceIds = new HashMap<GdlSentence, Integer>();
+		List<Component> components = new ArrayList<Component>(propNet.getComponents());
+		Map<Component, Integer> componentIds = new HashMap<Component, Integer>();
+		for (int i = 0; i < components.size(); i++) {
+			componentIds.put(components.get(i), i);
+			if (components.get(i) instanceof Proposition) {
+				GdlSentence name = ((Proposition) components.get(i)).getName();
+				if (!sentenceIds.containsKey(name)) {
+					sentenceIds.put(name, sentences.size());
+					sentences.add(name);
+					collectConstants(name.getName(), constants, constantIds);
+					for (GdlTerm term : name.getBody()) {
+						collectConstants(term, constants, constantIds);
+					}
+				}
+			}
+		}
+		for (Role role : propNet.getRoles()) {
+			collectConstants(role.getName(), constants, constantIds);
+		}
+
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(constants.size());
+		for (GdlConstant constant : constants) {
+			byte[] bytes = constant.getValue().getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		out.writeInt(propNet.getRoles().size());
+		for (Role role : propNet.getRoles()) {
+			out.writeInt(constantIds.get(role.getName()));
+		}
+		out.writeInt(sentences.size());
+		for (GdlSentence sentence : sentences) {
+			if (sentence instanceof GdlProposition) {
+				out.writeByte(SENTENCE_PROPOSITION);
+				out.writeInt(constantIds.get(sentence.getName()));
+			} else {
+				out.writeByte(SENTENCE_RELATION);
+				out.writeInt(constantIds.get(sentence.getName()));
+				writeTerms(sentence.getBody(), constantIds, out);
+			}
+		}
+		out.writeInt(components.size());
+		for (Component c : components) {
+			if (c instanceof Proposition) {
+				out.writeByte(TYPE_PROPOSITION);
+				out.writeInt(sentenceIds.get(((Proposition) c).getName()));
+			} else if (c instanceof Constant) {
+				out.writeByte(TYPE_CONSTANT);
+				out.writeBoolean(c.getValue());
+			} else if (c instanceof And) {
+				out.writeByte(TYPE_AND);
+			} else if (c instanceof Or) {
+				out.writeByte(TYPE_OR);
+			} else if (c instanceof Not) {
+				out.writeByte(TYPE_NOT);
+			} else if (c instanceof Transition) {
+				out.writeByte(TYPE_TRANSITION);
+			} else {
+				throw new IOException("Can't write component of type " + c.getClass());
+			}
+			out.writeInt(c.getInputs().size());
+			for (Component input : c.getInputs()) {
+				out.writeInt(componentIds.get(input));
+			}
+		}
+	}
+
+	/**
+	 * Reads a PropNet in the cache's binary format, or returns null if the
+	 * data was written with a different format version.
+	 */
+	public static PropNet read(ByteBuffer in) throws IOException
+	{
+		if (in.getInt() != MAGIC) {
+			throw new IOException("Not a cached propnet");
+		}
+		if (in.getInt() != FORMAT_VERSION) {
+			return null;
+		}
+		GdlConstant[] constants = new GdlConstant[in.getInt()];
+		for (int i = 0; i < constants.length; i++) {
+			byte[] bytes = new byte[in.getInt()];
+			in.get(bytes);
+			constants[i] = GdlPool.getConstant(new String(bytes, "UTF-8"));
+		}
+		List<Role> roles = new ArrayList<Role>();
+		int numRoles = in.getInt();
+		for (int i = 0; i < numRoles; i++) {
+			roles.add(new Role(constants[in.getInt()]));
+		}
+		GdlSentence[] sentences = new GdlSentence[in.getInt()];
+		for (int i = 0; i < sentences.length; i++) {
+			byte type = in.get();
+			GdlConstant name = constants[in.getInt()];
+			if (type == SENTENCE_PROPOSITION) {
+				sentences[i] = GdlPool.getProposition(name);
+			} else {
+				sentences[i] = GdlPool.getRelation(name, readTerms(constants, in));
+			}
+		}
+		Component[] components = new Component[in.getInt()];
+		int[][] inputs = new int[components.length][];
+		for (int i = 0; i < components.length; i++) {
+			byte type = in.get();
+			switch (type) {
+			case TYPE_PROPOSITION:
+				components[i] = new Proposition(sentences[in.getInt()]);
+				break;
+			case TYPE_CONSTANT:
+				components[i] = new Constant(in.get() != 0);
+				break;
+			case TYPE_AND:
+				components[i] = new And();
+				break;
+			case TYPE_OR:
+				components[i] = new Or();
+				break;
+			case TYPE_NOT:
+				components[i] = new Not();
+				break;
+			case TYPE_TRANSITION:
+				components[i] = new Transition();
+				break;
+			default:
+				throw new IOException("Unknown component type " + type);
+			}
+			inputs[i] = new int[in.getInt()];
+			for (int j = 0; j < inputs[i].length; j++) {
+				inputs[i][j] = in.getInt();
+			}
+		}
+		Set<Component> componentSet = new HashSet<Component>();
+		for (int i = 0; i < components.length; i++) {
+			for (int input : inputs[i]) {
+				components[i].addInput(components[input]);
+				components[input].addOutput(components[i]);
+			}
+			componentSet.add(components[i]);
+		}
+		return new PropNet(roles, componentSet);
+	}
+
+	private static void collectConstants(GdlTerm term, List<GdlConstant> constants, Map<GdlConstant, Integer> constantIds)
+	{
+		if (term instanceof GdlConstant) {
+			if (!constantIds.containsKey(term)) {
+				constantIds.put((GdlConstant) term, constants.size());
+				constants.add((GdlConstant) term);
+			}
+		} else if (term instanceof GdlFunction) {
+			GdlFunction function = (GdlFunction) term;
+			collectConstants(function.getName(), constants, constantIds);
+			for (GdlTerm arg : function.getBody()) {
+				collectConstants(arg, constants, constantIds);
+			}
+		} else {
+			throw new IllegalArgumentException("PropNet names must be ground, but found " + term);
+		}
+	}
+
+	private static void writeTerms(List<GdlTerm> terms, Map<GdlConstant, Integer> constantIds, DataOutputStream out) throws IOException
+	{
+		out.writeInt(terms.size());
+		for (GdlTerm term : terms) {
+			if (term instanceof GdlConstant) {
+				out.writeByte(TERM_CONSTANT);
+				out.writeInt(constantIds.get(term));
+			} else {
+				GdlFunction function = (GdlFunction) term;
+				out.writeByte(TERM_FUNCTION);
+				out.writeInt(constantIds.get(function.getName()));
+				writeTerms(function.getBody(), constantIds, out);
+			}
+		}
+	}
+
+	private static List<GdlTerm> readTerms(GdlConstant[] constants, ByteBuffer in) throws IOException
+	{
+		int numTerms = in.getInt();
+		List<GdlTerm> terms = new ArrayList<GdlTerm>(numTerms);
+		for (int i = 0; i < numTerms; i++) {
+			byte type = in.get();
+			GdlConstant name = constants[in.getInt()];
+			if (type == TERM_CONSTANT) {
+				terms.add(name);
+			} else if (type == TERM_FUNCTION) {
+				terms.add(GdlPool.getFunction(name, readTerms(constants, in)));
+			} else {
+				throw new IOException("Unknown term type " + type);
+			}
+		}
+		return terms;
+	}
+}
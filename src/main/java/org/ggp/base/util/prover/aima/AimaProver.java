@@ -3,11 +3,12 @@ package org.ggp.base.util.prover.aima;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import org.ggp.base.util.gdl.GdlUtils;
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlDistinct;
@@ -17,33 +18,92 @@ import org.ggp.base.util.gdl.grammar.GdlOr;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
-import org.ggp.base.util.gdl.grammar.GdlVariable;
 import org.ggp.base.util.gdl.transforms.DistinctAndNotMover;
 import org.ggp.base.util.prover.Prover;
 import org.ggp.base.util.prover.aima.cache.ProverCache;
 import org.ggp.base.util.prover.aima.knowledge.KnowledgeBase;
+import org.ggp.base.util.prover.aima.plan.RuleCostModel;
+import org.ggp.base.util.prover.aima.plan.RulePlan;
 import org.ggp.base.util.prover.aima.renamer.VariableRenamer;
 import org.ggp.base.util.prover.aima.substituter.Substituter;
 import org.ggp.base.util.prover.aima.substitution.Substitution;
 import org.ggp.base.util.prover.aima.unifier.Unifier;
 
 import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 
 
+/**
+ * A backward-chaining prover for GDL.
+ * <p>
+ * A prover can be shared between threads: the game's rules, their plans and
+ * the cache of answers that don't depend on the state are never modified
+ * after construction, or are safe for concurrent use. Everything else a
+ * query needs is kept per thread. Each thread keeps the context of its last
+ * query, with the answers found for it, so that the several queries usually
+ * asked about one state (legal moves for each role, terminal, goals) share
+ * their work.
+ */
 public final class AimaProver implements Prover
 {
 
+	/** Stands in for the answer to a query where only whether there is one matters. */
+	private static final GdlSentence PROVEN = GdlPool.getProposition(GdlPool.getConstant("proven"));
+
 	private final KnowledgeBase knowledgeBase;
+	/** The plans of the rules in the knowledge base, by their planned rules. */
+	private final Map<GdlRule, RulePlan> plans = new IdentityHashMap<GdlRule, RulePlan>();
 
 	private final ProverCache fixedAnswerCache = ProverCache.createMultiThreadedCache();
 
+	private final ThreadLocal<ContextState> contextStates = new ThreadLocal<ContextState>() {
+		@Override
+		protected ContextState initialValue()
+		{
+			return new ContextState();
+		}
+	};
+
 	public AimaProver(List<Gdl> description)
 	{
 		description = DistinctAndNotMover.run(description);
-		knowledgeBase = new KnowledgeBase(Sets.newHashSet(description));
+		RuleCostModel costModel = new RuleCostModel(description);
+		Set<GdlRule> rules = new HashSet<GdlRule>();
+		for (Gdl gdl : description)
+		{
+			if (gdl instanceof GdlRule)
+			{
+				RulePlan plan = RulePlan.create((GdlRule) gdl, costModel);
+				plans.put(plan.getRule(), plan);
+				rules.add(plan.getRule());
+			}
+			else
+			{
+				rules.add(GdlPool.getRule((GdlSentence) gdl));
+			}
+		}
+		knowledgeBase = new KnowledgeBase(rules);
+	}
+
+	/**
+	 * Returns the planned copy of the given rule for the given depth of a
+	 * proof. Rules that came from a query's context rather than from the
+	 * game are planned on the spot.
+	 */
+	private GdlRule getCopy(GdlRule rule, int depth)
+	{
+		RulePlan plan = plans.get(rule);
+		if (plan == null)
+		{
+			if (rule.isGround())
+			{
+				return rule;
+			}
+			plan = RulePlan.create(rule);
+		}
+		return plan.getCopy(depth);
 	}
 
 	private Set<GdlSentence> ask(GdlSentence query, Set<GdlSentence> context, boolean askOne)
@@ -51,51 +111,52 @@ public final class AimaProver implements Prover
 		LinkedList<GdlLiteral> goals = new LinkedList<GdlLiteral>();
 		goals.add(query);
 
-		Set<Substitution> answers = new HashSet<Substitution>();
-		ask(goals, new KnowledgeBase(context), new Substitution(), ProverCache.createSingleThreadedCache(),
-				new VariableRenamer(), askOne, answers, new RecursionHandler(), new IsConstant());
-
+		ContextState contextState = contextStates.get();
+		contextState.setContext(context);
 		Set<GdlSentence> results = new HashSet<GdlSentence>();
-		for (Substitution theta : answers)
-		{
-			results.add(Substituter.substitute(query, theta));
-		}
+		ask(goals, contextState.knowledgeBase, new Substitution(), contextState.cache,
+				0, askOne, query, results, new RecursionHandler(), new IsConstant());
 
 		return results;
 	}
 
-	private void ask(LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstant)
+	/*
+	 * Proves the given goals under theta, which is extended in place as the
+	 * search goes deeper and restored as it backtracks. Each proof adds the
+	 * target's instance to the results; the target is the sentence the goals
+	 * were taken from the body of, so its instances are always ground.
+	 */
+	private void ask(LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, int depth, boolean askOne, GdlSentence target, Set<GdlSentence> results, RecursionHandler recursionHandler, IsConstant isConstant)
 	{
 		if (goals.size() == 0)
 		{
-			results.add(theta);
+			results.add(Substituter.substitute(target, theta));
 			isConstant.value = true;
 			return;
 		}
 		else
 		{
 			GdlLiteral literal = goals.removeFirst();
-			GdlLiteral qPrime = Substituter.substitute(literal, theta);
 
-			if (qPrime instanceof GdlDistinct)
+			if (literal instanceof GdlDistinct)
 			{
-				GdlDistinct distinct = (GdlDistinct) qPrime;
-				askDistinct(distinct, goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstant);
+				GdlDistinct distinct = (GdlDistinct) literal;
+				askDistinct(distinct, goals, context, theta, cache, depth, askOne, target, results, recursionHandler, isConstant);
 			}
-			else if (qPrime instanceof GdlNot)
+			else if (literal instanceof GdlNot)
 			{
-				GdlNot not = (GdlNot) qPrime;
-				askNot(not, goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstant);
+				GdlNot not = (GdlNot) literal;
+				askNot(not, goals, context, theta, cache, depth, askOne, target, results, recursionHandler, isConstant);
 			}
-			else if (qPrime instanceof GdlOr)
+			else if (literal instanceof GdlOr)
 			{
-				GdlOr or = (GdlOr) qPrime;
-				askOr(or, goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstant);
+				GdlOr or = (GdlOr) literal;
+				askOr(or, goals, context, theta, cache, depth, askOne, target, results, recursionHandler, isConstant);
 			}
 			else
 			{
-				GdlSentence sentence = (GdlSentence) qPrime;
-				askSentence(sentence, goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstant);
+				GdlSentence sentence = (GdlSentence) literal;
+				askSentence(sentence, goals, context, theta, cache, depth, askOne, target, results, recursionHandler, isConstant);
 			}
 
 			goals.addFirst(literal);
@@ -108,29 +169,29 @@ public final class AimaProver implements Prover
 		return ask(query, context, false);
 	}
 
-	private void askDistinct(GdlDistinct distinct, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstant)
+	private void askDistinct(GdlDistinct distinct, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, int depth, boolean askOne, GdlSentence target, Set<GdlSentence> results, RecursionHandler recursionHandler, IsConstant isConstant)
 	{
-		if (!distinct.getArg1().equals(distinct.getArg2()))
+		if (!Unifier.equal(distinct.getArg1(), distinct.getArg2(), theta))
 		{
-			ask(goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstant);
+			ask(goals, context, theta, cache, depth, askOne, target, results, recursionHandler, isConstant);
 		} else {
 			isConstant.value = true;
 		}
 	}
 
-	private void askNot(GdlNot not, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstantRet)
+	private void askNot(GdlNot not, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, int depth, boolean askOne, GdlSentence target, Set<GdlSentence> results, RecursionHandler recursionHandler, IsConstant isConstantRet)
 	{
 		LinkedList<GdlLiteral> notGoals = new LinkedList<GdlLiteral>();
 		notGoals.add(not.getBody());
 
-		Set<Substitution> notResults = new HashSet<Substitution>();
+		Set<GdlSentence> notResults = new HashSet<GdlSentence>();
 		boolean isConstant = true;
-		ask(notGoals, context, theta, cache, renamer, true, notResults, recursionHandler, isConstantRet);
+		ask(notGoals, context, theta, cache, depth, true, PROVEN, notResults, recursionHandler, isConstantRet);
 		isConstant &= isConstantRet.value;
 
 		if (notResults.size() == 0)
 		{
-			ask(goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstantRet);
+			ask(goals, context, theta, cache, depth, askOne, target, results, recursionHandler, isConstantRet);
 			isConstant &= isConstantRet.value;
 		}
 		isConstantRet.value = isConstant;
@@ -143,13 +204,13 @@ public final class AimaProver implements Prover
 		return (results.size() > 0) ? results.iterator().next() : null;
 	}
 
-	private void askOr(GdlOr or, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstantRet)
+	private void askOr(GdlOr or, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, int depth, boolean askOne, GdlSentence target, Set<GdlSentence> results, RecursionHandler recursionHandler, IsConstant isConstantRet)
 	{
 		boolean isConstant = true;
 		for (int i = 0; i < or.arity(); i++)
 		{
 			goals.addFirst(or.get(i));
-			ask(goals, context, theta, cache, renamer, askOne, results, recursionHandler, isConstantRet);
+			ask(goals, context, theta, cache, depth, askOne, target, results, recursionHandler, isConstantRet);
 			isConstant &= isConstantRet.value;
 			goals.removeFirst();
 
@@ -161,16 +222,24 @@ public final class AimaProver implements Prover
 		isConstantRet.value = isConstant;
 	}
 
-	private void askSentence(GdlSentence sentence, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler,
+	private void askSentence(GdlSentence sentence, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, int depth, boolean askOne, GdlSentence target, Set<GdlSentence> results, RecursionHandler recursionHandler,
 			IsConstant isConstantRet) {
-		Collection<Substitution> sentenceResults = findSentenceResults(sentence,
-				context, theta, cache, renamer, recursionHandler, isConstantRet);
+		// The sentence is only ever built in its renamed form, which is
+		// what the answers are cached under
+		GdlSentence varRenamedSentence = new VariableRenamer().rename(sentence, theta);
+		Collection<GdlSentence> sentenceResults = findSentenceResults(varRenamedSentence,
+				context, cache, depth, recursionHandler, isConstantRet);
 
 		boolean isConstant = isConstantRet.value;
-		for (Substitution thetaPrime : sentenceResults)
+		for (GdlSentence answer : sentenceResults)
 		{
-			ask(goals, context, theta.compose(thetaPrime), cache, renamer, askOne, results, recursionHandler, isConstantRet);
-			isConstant &= isConstantRet.value;
+			int mark = theta.mark();
+			if (Unifier.unify(sentence, answer, theta))
+			{
+				ask(goals, context, theta, cache, depth, askOne, target, results, recursionHandler, isConstantRet);
+				isConstant &= isConstantRet.value;
+				theta.undo(mark);
+			}
 			if (askOne && (results.size() > 0))
 			{
 				break;
@@ -179,73 +248,37 @@ public final class AimaProver implements Prover
 		isConstantRet.value = isConstant;
 	}
 
-	private Collection<Substitution> findSentenceResults(GdlSentence sentence,
-			KnowledgeBase context, Substitution theta,
-			ProverCache cache, VariableRenamer renamer, RecursionHandler recursionHandler,
+	/*
+	 * Returns the answers to the given renamed sentence, as ground instances
+	 * of it.
+	 */
+	private Collection<GdlSentence> findSentenceResults(GdlSentence varRenamedSentence,
+			KnowledgeBase context, ProverCache cache, int depth, RecursionHandler recursionHandler,
 			IsConstant isConstantRet) {
-		GdlSentence varRenamedSentence = new VariableRenamer().rename(sentence);
 		if (!fixedAnswerCache.contains(varRenamedSentence) && !cache.contains(varRenamedSentence))
 		{
 			if (recursionHandler.alreadyAsking.contains(varRenamedSentence)) {
 				//Mark that we're in recursive mode and shouldn't cache results
 				recursionHandler.calledRecursively.add(varRenamedSentence);
 				//Return stuff that we've seen as an answer for this before
-				Collection<GdlSentence> previousResults = recursionHandler.previousResults.get(varRenamedSentence);
-				List<Substitution> results = Lists.newArrayListWithCapacity(previousResults.size());
-				for (GdlSentence knownResult : previousResults) {
-					results.add(Unifier.unify(sentence, knownResult));
-				}
-				return results;
+				return new ArrayList<GdlSentence>(recursionHandler.previousResults.get(varRenamedSentence));
 			}
 			recursionHandler.alreadyAsking.add(varRenamedSentence);
 			List<GdlRule> candidates = new ArrayList<GdlRule>();
-			candidates.addAll(knowledgeBase.fetch(sentence));
-			candidates.addAll(context.fetch(sentence));
-			boolean isConstant = !isTrueOrDoesSentence(sentence);
+			candidates.addAll(knowledgeBase.fetch(varRenamedSentence));
+			candidates.addAll(context.fetch(varRenamedSentence));
+			boolean isConstant = !isTrueOrDoesSentence(varRenamedSentence);
 
-			Set<Substitution> sentenceResults = new HashSet<Substitution>();
-			for (GdlRule rule : candidates)
-			{
-				GdlRule r = renamer.rename(rule);
-				Substitution thetaPrime = Unifier.unify(r.getHead(), sentence);
-
-				if (thetaPrime != null)
-				{
-					LinkedList<GdlLiteral> sentenceGoals = new LinkedList<GdlLiteral>();
-					for (int i = 0; i < r.arity(); i++)
-					{
-						sentenceGoals.add(r.get(i));
-					}
-
-					ask(sentenceGoals, context, theta.compose(thetaPrime), cache, renamer, false, sentenceResults, recursionHandler, isConstantRet);
-					isConstant &= isConstantRet.value;
-				}
-			}
+			Set<GdlSentence> sentenceResults = new HashSet<GdlSentence>();
+			isConstant &= askRules(varRenamedSentence, candidates, context, cache, depth, sentenceResults, recursionHandler, isConstantRet);
 
 			if (recursionHandler.calledRecursively.contains(varRenamedSentence)) {
-				Set<GdlSentence> sentencesFromResults = Sets.newHashSet();
-				for (Substitution result : sentenceResults) {
-					sentencesFromResults.add(Substituter.substitute(sentence, result));
-				}
-				while (sentencesFromResults.size() > recursionHandler.previousResults.get(varRenamedSentence).size()) {
+				while (sentenceResults.size() > recursionHandler.previousResults.get(varRenamedSentence).size()) {
 					recursionHandler.calledRecursively.remove(varRenamedSentence);
-					recursionHandler.previousResults.putAll(varRenamedSentence, sentencesFromResults);
+					recursionHandler.previousResults.putAll(varRenamedSentence, sentenceResults);
 
 					sentenceResults = Sets.newHashSet();
-					for (GdlRule rule : candidates) {
-						GdlRule r = renamer.rename(rule);
-						Substitution thetaPrime = Unifier.unify(r.getHead(), sentence);
-
-						if (thetaPrime != null) {
-							LinkedList<GdlLiteral> sentenceGoals = new LinkedList<GdlLiteral>();
-							for (int i = 0; i < r.arity(); i++) {
-								sentenceGoals.add(r.get(i));
-							}
-
-							ask(sentenceGoals, context, theta.compose(thetaPrime), cache, renamer, false, sentenceResults, recursionHandler, isConstantRet);
-							isConstant &= isConstantRet.value;
-						}
-					}
+					isConstant &= askRules(varRenamedSentence, candidates, context, cache, depth, sentenceResults, recursionHandler, isConstantRet);
 				}
 				recursionHandler.calledRecursively.remove(varRenamedSentence);
 			}
@@ -256,40 +289,48 @@ public final class AimaProver implements Prover
 			isConstantRet.value = isConstant;
 			if (recursionHandler.calledRecursively.isEmpty()) {
 				if (isConstant) {
-					fixedAnswerCache.put(sentence, varRenamedSentence, sentenceResults);
+					fixedAnswerCache.put(varRenamedSentence, sentenceResults);
 				} else {
-					cache.put(sentence, varRenamedSentence, sentenceResults);
+					cache.put(varRenamedSentence, sentenceResults);
 				}
 			}
 
-			/*
-			 * We filter results because they normally contain entries for all the variables
-			 * encountered in subqueries, not just the sentence we're interested in. For some
-			 * games (e.g. ruleDepthExponential) this is very expensive.
-			 */
-			return filterSentenceResults(sentence, sentenceResults);
+			return sentenceResults;
 		}
 
-		List<Substitution> cachedResults = fixedAnswerCache.get(sentence, varRenamedSentence);
+		Set<GdlSentence> cachedResults = fixedAnswerCache.get(varRenamedSentence);
 		isConstantRet.value = (cachedResults != null);
 		if (cachedResults == null) {
-			cachedResults = cache.get(sentence, varRenamedSentence);
+			cachedResults = cache.get(varRenamedSentence);
 		}
 		return cachedResults;
 	}
 
-	private Collection<Substitution> filterSentenceResults(
-			GdlSentence sentence, Set<Substitution> sentenceResults) {
-		Set<GdlVariable> varsInSentence = GdlUtils.getVariablesSet(sentence);
-		List<Substitution> results = Lists.newArrayListWithCapacity(sentenceResults.size());
-		for (Substitution result : sentenceResults) {
-			Substitution fixedResult = new Substitution();
-			for (GdlVariable var : varsInSentence) {
-				fixedResult.put(var, result.get(var));
+	/*
+	 * Proves the given renamed sentence with each of the candidate rules,
+	 * adding its answers to the results, and returns whether the answers
+	 * found are independent of the context. Each proof starts from an empty
+	 * substitution: the sentence has no bindings of its own, and its
+	 * answers are ground, so nothing the caller has bound is needed here.
+	 */
+	private boolean askRules(GdlSentence sentence, List<GdlRule> candidates,
+			KnowledgeBase context, ProverCache cache, int depth, Set<GdlSentence> results,
+			RecursionHandler recursionHandler, IsConstant isConstantRet) {
+		boolean isConstant = true;
+		Substitution theta = new Substitution();
+		for (GdlRule rule : candidates)
+		{
+			GdlRule r = getCopy(rule, depth);
+			if (Unifier.unify(r.getHead(), sentence, theta))
+			{
+				LinkedList<GdlLiteral> sentenceGoals = new LinkedList<GdlLiteral>(r.getBody());
+
+				ask(sentenceGoals, context, theta, cache, depth + 1, false, sentence, results, recursionHandler, isConstantRet);
+				isConstant &= isConstantRet.value;
+				theta.undo(0);
 			}
-			results.add(fixedResult);
 		}
-		return results;
+		return isConstant;
 	}
 
 	private boolean isTrueOrDoesSentence(GdlSentence sentence) {
@@ -303,6 +344,25 @@ public final class AimaProver implements Prover
 		return askOne(query, context) != null;
 	}
 
+	/*
+	 * The context of a thread's last query, indexed, and the answers that
+	 * depend on it. Answers are only cached once complete, so they can be
+	 * reused by any later query with an equal context.
+	 */
+	private static class ContextState {
+		private Set<GdlSentence> context;
+		private KnowledgeBase knowledgeBase;
+		private ProverCache cache;
+
+		public void setContext(Set<GdlSentence> newContext) {
+			if (!newContext.equals(context)) {
+				context = ImmutableSet.copyOf(newContext);
+				knowledgeBase = new KnowledgeBase(context);
+				cache = ProverCache.createSingleThreadedCache();
+			}
+		}
+	}
+
 	/*
 	 * Mutable value holder; gets modified by methods it's passed to, as a kind of
 	 * additional return value. Tracks whether queries involve "true" or "does" sentences;
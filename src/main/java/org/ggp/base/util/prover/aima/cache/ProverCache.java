@@ -1,17 +1,11 @@
 package org.ggp.base.util.prover.aima.cache;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.ggp.base.util.gdl.grammar.GdlSentence;
-import org.ggp.base.util.prover.aima.substituter.Substituter;
-import org.ggp.base.util.prover.aima.substitution.Substitution;
-import org.ggp.base.util.prover.aima.unifier.Unifier;
 
 
 public final class ProverCache
@@ -39,31 +33,23 @@ public final class ProverCache
 		return contents.containsKey(renamedSentence);
 	}
 
-	public List<Substitution> get(GdlSentence sentence, GdlSentence varRenamedSentence)
+	/**
+	 * Returns the answers to the given renamed sentence, as ground instances
+	 * of it, or null if there are none cached. The returned set must not be
+	 * modified.
+	 */
+	public Set<GdlSentence> get(GdlSentence renamedSentence)
 	{
-		Set<GdlSentence> cacheContents = contents.get(varRenamedSentence);
-		if (cacheContents == null) {
-			return null;
-		}
-		Set<Substitution> results = new HashSet<Substitution>();
-		for (GdlSentence answer : cacheContents)
-		{
-			results.add(Unifier.unify(sentence, answer));
-		}
-
-		return new ArrayList<Substitution>(results);
+		return contents.get(renamedSentence);
 	}
 
-	public void put(GdlSentence sentence, GdlSentence renamedSentence,
-			Set<Substitution> answers)
+	/**
+	 * Caches the answers to the given renamed sentence, as ground instances
+	 * of it. The set must not be modified afterwards.
+	 */
+	public void put(GdlSentence renamedSentence, Set<GdlSentence> answers)
 	{
-		Set<GdlSentence> results = new HashSet<GdlSentence>();
-		for (Substitution answer : answers)
-		{
-			results.add(Substituter.substitute(sentence, answer));
-		}
-
-		contents.put(renamedSentence, results);
+		contents.put(renamedSentence, answers);
 	}
 
 }
@@ -1,6 +1,8 @@
 package org.ggp.base.util.prover.aima.knowledge;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,42 +10,296 @@ import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
 
-
+/**
+ * The rules and facts of a game (or the sentences of a state), indexed for
+ * looking up the rules whose heads may unify with a query.
+ * <p>
+ * Rules are grouped by the relation name of their head, and within each
+ * relation, indexed on the constants in their head's arguments. A position
+ * is a path into the head's argument terms, e.g. the "b" in
+ * <tt>(true (cell 1 1 b))</tt> is at position 1.3 (the third argument of
+ * the first argument), and the function name "cell" is at position 1. Each
+ * position maps the
+ * constant (or function name) found there to the rules that have it, and
+ * separately lists the rules that have a variable there. A rule can only
+ * unify with a query that has constant <i>c</i> at some position if it has
+ * <i>c</i> there too, or a variable at that position or one that contains
+ * it. {@link #fetch(GdlSentence)} picks the most selective such position
+ * of the query. Relations with only a few rules are not worth indexing,
+ * and are always scanned in full.
+ */
 public final class KnowledgeBase
 {
-	private final Map<GdlConstant, List<GdlRule>> contents;
+	/** Positions deeper than this are not indexed. */
+	private static final int MAX_DEPTH = 7;
+	/** Argument indices at or above this are not indexed. */
+	private static final int MAX_ARITY = 255;
+	/** Relations with at most this many rules are not indexed. */
+	private static final int MIN_INDEXED_RULES = 8;
+
+	private final Map<GdlConstant, Relation> contents;
 
 	public KnowledgeBase(Set<? extends Gdl> description)
 	{
-		contents = new HashMap<GdlConstant, List<GdlRule>>();
+		contents = new HashMap<GdlConstant, Relation>();
 		for (Gdl gdl : description)
 		{
 			GdlRule rule = (gdl instanceof GdlRule) ? (GdlRule) gdl : GdlPool.getRule((GdlSentence) gdl);
 			GdlConstant key = rule.getHead().getName();
 
-			if (!contents.containsKey(key))
+			Relation relation = contents.get(key);
+			if (relation == null)
+			{
+				relation = new Relation();
+				contents.put(key, relation);
+			}
+			relation.add(rule);
+		}
+		for (Relation relation : contents.values())
+		{
+			if (relation.rules.size() > MIN_INDEXED_RULES)
 			{
-				contents.put(key, new ArrayList<GdlRule>());
+				relation.buildIndex();
 			}
-			contents.get(key).add(rule);
 		}
 	}
 
-	public synchronized List<GdlRule> fetch(GdlSentence sentence)
+	/**
+	 * Returns the rules whose heads may unify with the given sentence, in
+	 * the order they were added. Every rule that does unify is included,
+	 * but some of the returned rules may not. The returned list must not be
+	 * modified.
+	 */
+	public List<GdlRule> fetch(GdlSentence sentence)
+	{
+		Relation relation = contents.get(sentence.getName());
+		if (relation == null)
+		{
+			return Collections.emptyList();
+		}
+		return relation.fetch(sentence);
+	}
+
+	/**
+	 * The rules of one relation, with their argument index.
+	 */
+	private static final class Relation
 	{
-		GdlConstant key = sentence.getName();
+		private final List<GdlRule> rules = new ArrayList<GdlRule>();
+		/** Whether the index below has been built. */
+		private boolean indexed;
+		private final Map<GdlRule, Integer> order = new HashMap<GdlRule, Integer>();
+		/** For each position, the rules by the constant at that position. */
+		private final Map<Long, Map<GdlConstant, List<GdlRule>>> byConstant = new HashMap<Long, Map<GdlConstant, List<GdlRule>>>();
+		/** For each position, the rules with a variable at that position. */
+		private final Map<Long, List<GdlRule>> byVariable = new HashMap<Long, List<GdlRule>>();
 
-		if (contents.containsKey(key))
+		private final Comparator<GdlRule> inOrder = new Comparator<GdlRule>() {
+			@Override
+			public int compare(GdlRule a, GdlRule b)
+			{
+				return order.get(a) - order.get(b);
+			}
+		};
+
+		public void add(GdlRule rule)
+		{
+			rules.add(rule);
+		}
+
+		public void buildIndex()
 		{
-			return contents.get(key);
+			for (GdlRule rule : rules)
+			{
+				order.put(rule, order.size());
+				GdlSentence head = rule.getHead();
+				for (int i = 0; i < head.arity() && i < MAX_ARITY; i++)
+				{
+					index(rule, head.get(i), i + 1, 1);
+				}
+			}
+			indexed = true;
 		}
-		else
+
+		private void index(GdlRule rule, GdlTerm term, long position, int depth)
+		{
+			if (term instanceof GdlConstant)
+			{
+				add(byConstant, position, (GdlConstant) term, rule);
+			}
+			else if (term instanceof GdlFunction)
+			{
+				GdlFunction function = (GdlFunction) term;
+				add(byConstant, position, function.getName(), rule);
+				if (depth < MAX_DEPTH)
+				{
+					for (int i = 0; i < function.arity() && i < MAX_ARITY; i++)
+					{
+						index(rule, function.get(i), (position << 8) | (i + 1), depth + 1);
+					}
+				}
+			}
+			else
+			{
+				List<GdlRule> list = byVariable.get(position);
+				if (list == null)
+				{
+					list = new ArrayList<GdlRule>();
+					byVariable.put(position, list);
+				}
+				list.add(rule);
+			}
+		}
+
+		private static void add(Map<Long, Map<GdlConstant, List<GdlRule>>> index, long position, GdlConstant constant, GdlRule rule)
+		{
+			Map<GdlConstant, List<GdlRule>> rulesByConstant = index.get(position);
+			if (rulesByConstant == null)
+			{
+				rulesByConstant = new HashMap<GdlConstant, List<GdlRule>>();
+				index.put(position, rulesByConstant);
+			}
+			List<GdlRule> list = rulesByConstant.get(constant);
+			if (list == null)
+			{
+				list = new ArrayList<GdlRule>();
+				rulesByConstant.put(constant, list);
+			}
+			list.add(rule);
+		}
+
+		public List<GdlRule> fetch(GdlSentence sentence)
+		{
+			if (!indexed)
+			{
+				return rules;
+			}
+			Selection best = new Selection(rules.size());
+			for (int i = 0; i < sentence.arity() && i < MAX_ARITY; i++)
+			{
+				select(sentence.get(i), i + 1, 1, best);
+			}
+			if (best.position == 0)
+			{
+				return rules;
+			}
+			return collect(best.position, best.constant);
+		}
+
+		/**
+		 * Looks for a position within the given term of the query with fewer
+		 * candidates than the best one found so far.
+		 */
+		private void select(GdlTerm term, long position, int depth, Selection best)
+		{
+			GdlConstant constant;
+			if (term instanceof GdlConstant)
+			{
+				constant = (GdlConstant) term;
+			}
+			else if (term instanceof GdlFunction)
+			{
+				constant = ((GdlFunction) term).getName();
+			}
+			else
+			{
+				return;
+			}
+			int count = countCandidates(position, constant);
+			if (count < best.count)
+			{
+				best.count = count;
+				best.position = position;
+				best.constant = constant;
+			}
+			if (term instanceof GdlFunction && depth < MAX_DEPTH && best.count > 0)
+			{
+				GdlFunction function = (GdlFunction) term;
+				for (int i = 0; i < function.arity() && i < MAX_ARITY; i++)
+				{
+					select(function.get(i), (position << 8) | (i + 1), depth + 1, best);
+				}
+			}
+		}
+
+		private int countCandidates(long position, GdlConstant constant)
+		{
+			int count = 0;
+			Map<GdlConstant, List<GdlRule>> rulesByConstant = byConstant.get(position);
+			if (rulesByConstant != null)
+			{
+				List<GdlRule> list = rulesByConstant.get(constant);
+				if (list != null)
+				{
+					count += list.size();
+				}
+			}
+			for (long p = position; p != 0; p >>>= 8)
+			{
+				List<GdlRule> list = byVariable.get(p);
+				if (list != null)
+				{
+					count += list.size();
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Returns the rules that have the given constant at the given
+		 * position, or a variable at that position or one containing it.
+		 */
+		private List<GdlRule> collect(long position, GdlConstant constant)
+		{
+			List<List<GdlRule>> parts = new ArrayList<List<GdlRule>>();
+			Map<GdlConstant, List<GdlRule>> rulesByConstant = byConstant.get(position);
+			if (rulesByConstant != null && rulesByConstant.containsKey(constant))
+			{
+				parts.add(rulesByConstant.get(constant));
+			}
+			for (long p = position; p != 0; p >>>= 8)
+			{
+				if (byVariable.containsKey(p))
+				{
+					parts.add(byVariable.get(p));
+				}
+			}
+			if (parts.isEmpty())
+			{
+				return Collections.emptyList();
+			}
+			else if (parts.size() == 1)
+			{
+				return parts.get(0);
+			}
+			List<GdlRule> result = new ArrayList<GdlRule>();
+			for (List<GdlRule> part : parts)
+			{
+				result.addAll(part);
+			}
+			Collections.sort(result, inOrder);
+			return result;
+		}
+	}
+
+	/**
+	 * The most selective position found so far, and its candidate count.
+	 */
+	private static final class Selection
+	{
+		private int count;
+		private long position;
+		private GdlConstant constant;
+
+		private Selection(int count)
 		{
-			return new ArrayList<GdlRule>();
+			this.count = count;
 		}
 	}
-}
\ No newline at end of file
+}
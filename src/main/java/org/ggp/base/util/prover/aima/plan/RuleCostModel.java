@@ -0,0 +1,239 @@
+package org.ggp.base.util.prover.aima.plan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlDistinct;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
+import org.ggp.base.util.gdl.grammar.GdlNot;
+import org.ggp.base.util.gdl.grammar.GdlOr;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+
+/**
+ * Estimates how many answers a literal has, given which of its variables are
+ * already bound, from counts taken over a game description. It is cheap to
+ * build, unlike the estimates based on sentence domain models, so it can be
+ * used every time a prover is created.
+ * <p>
+ * A relation's size is its number of facts, plus a fixed cost for each rule
+ * that concludes it. <tt>true</tt> sentences are counted per fluent (the
+ * function inside them): from its <tt>base</tt> facts if there are any,
+ * else from its <tt>init</tt> facts, on the guess that it stays about as
+ * large as it starts, and else from its <tt>next</tt> rules.
+ * <tt>does</tt> has one answer per role. Each argument that is ground once
+ * the bound variables are substituted divides the size by the number of
+ * distinct values seen at its position, and each bound variable or constant
+ * in a partially bound argument divides it by a small constant.
+ */
+public final class RuleCostModel
+{
+	/** The cost of a rule relative to a fact. */
+	private static final double RULE_COST = 10.0;
+	/** How much a bound leaf of an argument narrows the answers. */
+	private static final double LEAF_SELECTIVITY = 3.0;
+
+	private final Map<List<GdlConstant>, Double> sizes = new HashMap<List<GdlConstant>, Double>();
+	private final Map<List<GdlConstant>, Double> initSizes = new HashMap<List<GdlConstant>, Double>();
+	private final Map<List<GdlConstant>, Double> baseSizes = new HashMap<List<GdlConstant>, Double>();
+	private final Map<List<GdlConstant>, List<Set<GdlTerm>>> values = new HashMap<List<GdlConstant>, List<Set<GdlTerm>>>();
+	private final double roles;
+
+	public RuleCostModel(List<? extends Gdl> description)
+	{
+		int roleCount = 0;
+		for (Gdl gdl : description)
+		{
+			if (gdl instanceof GdlRule)
+			{
+				GdlSentence head = ((GdlRule) gdl).getHead();
+				add(sizes, getKey(head), RULE_COST);
+			}
+			else if (gdl instanceof GdlSentence)
+			{
+				GdlSentence fact = (GdlSentence) gdl;
+				List<GdlConstant> key = getKey(fact);
+				add(fact.getName() == GdlPool.BASE ? baseSizes : fact.getName() == GdlPool.INIT ? initSizes : sizes, key, 1.0);
+				addValues(key, getArguments(fact));
+				if (fact.getName() == GdlPool.ROLE)
+				{
+					roleCount++;
+				}
+			}
+		}
+		sizes.putAll(initSizes);
+		sizes.putAll(baseSizes);
+		roles = Math.max(roleCount, 1);
+	}
+
+	/**
+	 * Returns the key that statistics about the given sentence are kept
+	 * under: its relation name, or for sentences about the state, the name
+	 * of <tt>true</tt> and the fluent's name.
+	 */
+	private static List<GdlConstant> getKey(GdlSentence sentence)
+	{
+		GdlConstant name = sentence.getName();
+		if (name == GdlPool.TRUE || name == GdlPool.INIT || name == GdlPool.NEXT || name == GdlPool.BASE)
+		{
+			if (sentence.arity() == 1)
+			{
+				GdlTerm fluent = sentence.get(0);
+				GdlConstant fluentName = (fluent instanceof GdlFunction) ? ((GdlFunction) fluent).getName() : (fluent instanceof GdlConstant) ? (GdlConstant) fluent : null;
+				return Arrays.asList(GdlPool.TRUE, fluentName);
+			}
+		}
+		return Arrays.asList(name, null);
+	}
+
+	/**
+	 * Returns the arguments of the given sentence that statistics are kept
+	 * for: those of the fluent for sentences about the state.
+	 */
+	private static List<GdlTerm> getArguments(GdlSentence sentence)
+	{
+		if (getKey(sentence).get(1) != null && sentence.get(0) instanceof GdlFunction)
+		{
+			return ((GdlFunction) sentence.get(0)).getBody();
+		}
+		return sentence.getBody();
+	}
+
+	private static void add(Map<List<GdlConstant>, Double> sizes, List<GdlConstant> key, double size)
+	{
+		Double oldSize = sizes.get(key);
+		sizes.put(key, (oldSize == null) ? size : oldSize + size);
+	}
+
+	private void addValues(List<GdlConstant> key, List<GdlTerm> arguments)
+	{
+		List<Set<GdlTerm>> positions = values.get(key);
+		if (positions == null)
+		{
+			positions = new ArrayList<Set<GdlTerm>>();
+			values.put(key, positions);
+		}
+		for (int i = 0; i < arguments.size(); i++)
+		{
+			if (positions.size() <= i)
+			{
+				positions.add(new HashSet<GdlTerm>());
+			}
+			positions.get(i).add(arguments.get(i));
+		}
+	}
+
+	/**
+	 * Returns the estimated number of answers to the given literal, when the
+	 * given variables are bound.
+	 */
+	public double estimate(GdlLiteral literal, Set<GdlVariable> bound)
+	{
+		if (literal instanceof GdlSentence)
+		{
+			return estimate((GdlSentence) literal, bound);
+		}
+		else if (literal instanceof GdlOr)
+		{
+			GdlOr or = (GdlOr) literal;
+			double total = 0.0;
+			for (int i = 0; i < or.arity(); i++)
+			{
+				total += estimate(or.get(i), bound);
+			}
+			return total;
+		}
+		// Filters never produce more than one answer
+		return 1.0;
+	}
+
+	private double estimate(GdlSentence sentence, Set<GdlVariable> bound)
+	{
+		if (sentence.getName() == GdlPool.DOES)
+		{
+			return bound.containsAll(GdlUtils.getVariables(sentence)) ? 1.0 : roles;
+		}
+		if (bound.containsAll(GdlUtils.getVariables(sentence)))
+		{
+			// A ground sentence is only ever checked
+			return Math.min(estimateAnswers(sentence, bound), 1.0);
+		}
+		return estimateAnswers(sentence, bound);
+	}
+
+	private double estimateAnswers(GdlSentence sentence, Set<GdlVariable> bound)
+	{
+		List<GdlConstant> key = getKey(sentence);
+		Double size = sizes.get(key);
+		double estimate = (size == null) ? 1.0 : size;
+		List<Set<GdlTerm>> positions = values.get(key);
+		List<GdlTerm> arguments = getArguments(sentence);
+		for (int i = 0; i < arguments.size(); i++)
+		{
+			GdlTerm term = arguments.get(i);
+			double selectivity = Math.pow(LEAF_SELECTIVITY, countBoundLeaves(term, bound));
+			if (bound.containsAll(GdlUtils.getVariables(term)) && positions != null && positions.size() > i)
+			{
+				selectivity = Math.max(selectivity, positions.get(i).size());
+			}
+			estimate /= selectivity;
+		}
+		return estimate;
+	}
+
+	private static int countBoundLeaves(GdlTerm term, Set<GdlVariable> bound)
+	{
+		if (term instanceof GdlFunction)
+		{
+			GdlFunction function = (GdlFunction) term;
+			int count = 0;
+			for (int i = 0; i < function.arity(); i++)
+			{
+				count += countBoundLeaves(function.get(i), bound);
+			}
+			return count;
+		}
+		else if (term instanceof GdlVariable)
+		{
+			return bound.contains(term) ? 1 : 0;
+		}
+		return 1;
+	}
+
+	/**
+	 * Returns whether the given literal can be evaluated once the given
+	 * variables are bound: negations and distinct literals need all their
+	 * variables bound, including inside disjunctions.
+	 */
+	public static boolean isReady(GdlLiteral literal, Set<GdlVariable> bound)
+	{
+		if (literal instanceof GdlNot || literal instanceof GdlDistinct)
+		{
+			return bound.containsAll(GdlUtils.getVariables(literal));
+		}
+		else if (literal instanceof GdlOr)
+		{
+			GdlOr or = (GdlOr) literal;
+			for (int i = 0; i < or.arity(); i++)
+			{
+				if (!isReady(or.get(i), bound))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,269 @@
+package org.ggp.base.util.prover.aima.plan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.grammar.GdlDistinct;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
+import org.ggp.base.util.gdl.grammar.GdlNot;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.prover.aima.substituter.Substituter;
+import org.ggp.base.util.prover.aima.substitution.Substitution;
+
+/**
+ * A rule compiled once for the prover: its body is put into the order in
+ * which it is cheapest to prove, and its variables are given one fixed
+ * renaming per depth of the proof, in place of a fresh renaming for every
+ * use.
+ * <p>
+ * A rule used at some depth of a proof only ever shares bindings with rules
+ * used at shallower depths, since the answers to each subquery are narrowed
+ * to the subquery's own variables before they are passed on. So one copy of
+ * the rule per depth is enough to keep its variables apart from all others
+ * in play, and those copies can be built once and reused by every query.
+ * <p>
+ * The order of the body's sentences is the one that tries the fewest
+ * partial answers in all, with answer counts estimated by a
+ * {@link RuleCostModel}; negations and distinct literals go as soon as all
+ * their variables are bound, since they only filter. Rules are often
+ * written in a sensible order already, and the estimates are rough, so the
+ * body as written is kept unless the plan is clearly cheaper.
+ */
+public final class RulePlan
+{
+	/** Bodies with more sentences than this are left as they are. */
+	private static final int MAX_PLANNED_SENTENCES = 10;
+	/** How much cheaper a plan must be estimated to be than the body as written. */
+	private static final double PLAN_GAIN = 2.0;
+	/** The estimated fraction of answers that a negation or distinct literal lets through. */
+	private static final double FILTER_SELECTIVITY = 0.5;
+
+	private final GdlRule rule;
+	private final GdlVariable[] variables;
+	private volatile GdlRule[] copies = new GdlRule[0];
+
+	private RulePlan(GdlRule rule)
+	{
+		this.rule = rule;
+		this.variables = GdlUtils.getVariablesSet(rule).toArray(new GdlVariable[0]);
+	}
+
+	/**
+	 * Plans the given rule with the given cost model.
+	 */
+	public static RulePlan create(GdlRule rule, RuleCostModel costModel)
+	{
+		return new RulePlan(reorder(rule, costModel));
+	}
+
+	/**
+	 * Plans the given rule without reordering its body.
+	 */
+	public static RulePlan create(GdlRule rule)
+	{
+		return new RulePlan(rule);
+	}
+
+	private static GdlRule reorder(GdlRule rule, RuleCostModel costModel)
+	{
+		List<GdlLiteral> generators = new ArrayList<GdlLiteral>();
+		List<GdlLiteral> filters = new ArrayList<GdlLiteral>();
+		for (GdlLiteral literal : rule.getBody())
+		{
+			if (literal instanceof GdlNot || literal instanceof GdlDistinct)
+			{
+				filters.add(literal);
+			}
+			else
+			{
+				generators.add(literal);
+			}
+		}
+		if (generators.size() < 2 || generators.size() > MAX_PLANNED_SENTENCES)
+		{
+			return rule;
+		}
+
+		// For each set of sentences, the cheapest way found to prove them
+		// first, and the sentence proven last in that way
+		int count = generators.size();
+		double[] costs = new double[1 << count];
+		double[] answers = new double[1 << count];
+		int[] lastSentences = new int[1 << count];
+		Arrays.fill(costs, Double.POSITIVE_INFINITY);
+		costs[0] = 0.0;
+		answers[0] = 1.0;
+		for (int set = 0; set < (1 << count); set++)
+		{
+			if (costs[set] == Double.POSITIVE_INFINITY)
+			{
+				continue;
+			}
+			Set<GdlVariable> bound = getVariables(generators, set);
+			for (int i = 0; i < count; i++)
+			{
+				if ((set & (1 << i)) != 0 || !RuleCostModel.isReady(generators.get(i), bound))
+				{
+					continue;
+				}
+				int next = set | (1 << i);
+				double cost = costs[set] + answers[set];
+				double nextAnswers = answers[set] * costModel.estimate(generators.get(i), bound);
+				Set<GdlVariable> nextBound = getVariables(generators, next);
+				for (GdlLiteral filter : filters)
+				{
+					if (!RuleCostModel.isReady(filter, bound) && RuleCostModel.isReady(filter, nextBound))
+					{
+						cost += nextAnswers;
+						nextAnswers *= FILTER_SELECTIVITY;
+					}
+				}
+				if (cost < costs[next])
+				{
+					costs[next] = cost;
+					answers[next] = nextAnswers;
+					lastSentences[next] = i;
+				}
+			}
+		}
+		int set = (1 << count) - 1;
+		if (costs[set] == Double.POSITIVE_INFINITY)
+		{
+			return rule;
+		}
+		LinkedList<GdlLiteral> order = new LinkedList<GdlLiteral>();
+		while (set != 0)
+		{
+			order.addFirst(generators.get(lastSentences[set]));
+			set &= ~(1 << lastSentences[set]);
+		}
+
+		// Each filter goes right after the sentences that bind its variables
+		List<GdlLiteral> body = new ArrayList<GdlLiteral>();
+		List<GdlLiteral> remainingFilters = new ArrayList<GdlLiteral>(filters);
+		Set<GdlVariable> bound = new HashSet<GdlVariable>();
+		addReadyFilters(remainingFilters, bound, body);
+		for (GdlLiteral generator : order)
+		{
+			body.add(generator);
+			bound.addAll(GdlUtils.getVariables(generator));
+			addReadyFilters(remainingFilters, bound, body);
+		}
+		body.addAll(remainingFilters);
+
+		if (getCost(body, costModel) * PLAN_GAIN < getCost(rule.getBody(), costModel))
+		{
+			return GdlPool.getRule(rule.getHead(), body);
+		}
+		return rule;
+	}
+
+	private static Set<GdlVariable> getVariables(List<GdlLiteral> literals, int set)
+	{
+		Set<GdlVariable> variables = new HashSet<GdlVariable>();
+		for (int i = 0; i < literals.size(); i++)
+		{
+			if ((set & (1 << i)) != 0)
+			{
+				variables.addAll(GdlUtils.getVariables(literals.get(i)));
+			}
+		}
+		return variables;
+	}
+
+	private static void addReadyFilters(List<GdlLiteral> filters, Set<GdlVariable> bound, List<GdlLiteral> body)
+	{
+		Iterator<GdlLiteral> iterator = filters.iterator();
+		while (iterator.hasNext())
+		{
+			GdlLiteral filter = iterator.next();
+			if (RuleCostModel.isReady(filter, bound))
+			{
+				body.add(filter);
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the estimated cost of proving the given body in the given
+	 * order: the number of partial answers that each literal is tried on.
+	 */
+	private static double getCost(List<GdlLiteral> body, RuleCostModel costModel)
+	{
+		double cost = 0.0;
+		double answers = 1.0;
+		Set<GdlVariable> bound = new HashSet<GdlVariable>();
+		for (GdlLiteral literal : body)
+		{
+			cost += answers;
+			if (literal instanceof GdlNot || literal instanceof GdlDistinct)
+			{
+				answers *= FILTER_SELECTIVITY;
+			}
+			else
+			{
+				answers *= costModel.estimate(literal, bound);
+				bound.addAll(GdlUtils.getVariables(literal));
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * Returns the planned rule, with its original variables.
+	 */
+	public GdlRule getRule()
+	{
+		return rule;
+	}
+
+	/**
+	 * Returns the planned rule with its variables renamed for use at the
+	 * given depth of a proof. The same copy is returned every time for the
+	 * same depth.
+	 */
+	public GdlRule getCopy(int depth)
+	{
+		if (variables.length == 0)
+		{
+			return rule;
+		}
+		GdlRule[] current = copies;
+		if (depth < current.length)
+		{
+			return current[depth];
+		}
+		return addCopies(depth);
+	}
+
+	private synchronized GdlRule addCopies(int depth)
+	{
+		GdlRule[] current = copies;
+		if (depth < current.length)
+		{
+			return current[depth];
+		}
+		GdlRule[] extended = new GdlRule[Math.max(depth + 1, current.length * 2)];
+		System.arraycopy(current, 0, extended, 0, current.length);
+		for (int d = current.length; d < extended.length; d++)
+		{
+			Substitution renaming = new Substitution();
+			for (int i = 0; i < variables.length; i++)
+			{
+				renaming.put(variables[i], GdlPool.getVariable("?R" + d + "_" + i));
+			}
+			extended[d] = Substituter.substitute(rule, renaming);
+		}
+		copies = extended;
+		return extended[depth];
+	}
+}
@@ -18,6 +18,7 @@ import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.prover.aima.substitution.Substitution;
 
 
 public class VariableRenamer
@@ -32,20 +33,30 @@ public class VariableRenamer
 
 	public GdlRule rename(GdlRule rule)
 	{
-		return renameRule(rule, new HashMap<GdlVariable, GdlVariable>());
+		return renameRule(rule, new HashMap<GdlVariable, GdlVariable>(), new Substitution());
 	}
 
 	public GdlSentence rename(GdlSentence sentence)
 	{
-		return renameSentence(sentence, new HashMap<GdlVariable, GdlVariable>());
+		return renameSentence(sentence, new HashMap<GdlVariable, GdlVariable>(), new Substitution());
 	}
 
-	private GdlConstant renameConstant(GdlConstant constant, Map<GdlVariable, GdlVariable> renamings)
+	/**
+	 * Renames the variables of the given sentence once the given substitution
+	 * is applied to it. Only the renamed sentence is built, and not the
+	 * substituted one.
+	 */
+	public GdlSentence rename(GdlSentence sentence, Substitution theta)
+	{
+		return renameSentence(sentence, new HashMap<GdlVariable, GdlVariable>(), theta);
+	}
+
+	private GdlConstant renameConstant(GdlConstant constant, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		return constant;
 	}
 
-	private GdlDistinct renameDistinct(GdlDistinct distinct, Map<GdlVariable, GdlVariable> renamings)
+	private GdlDistinct renameDistinct(GdlDistinct distinct, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		if (distinct.isGround())
 		{
@@ -53,14 +64,14 @@ public class VariableRenamer
 		}
 		else
 		{
-			GdlTerm arg1 = renameTerm(distinct.getArg1(), renamings);
-			GdlTerm arg2 = renameTerm(distinct.getArg2(), renamings);
+			GdlTerm arg1 = renameTerm(distinct.getArg1(), renamings, theta);
+			GdlTerm arg2 = renameTerm(distinct.getArg2(), renamings, theta);
 
 			return GdlPool.getDistinct(arg1, arg2);
 		}
 	}
 
-	private GdlFunction renameFunction(GdlFunction function, Map<GdlVariable, GdlVariable> renamings)
+	private GdlFunction renameFunction(GdlFunction function, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		if (function.isGround())
 		{
@@ -68,39 +79,39 @@ public class VariableRenamer
 		}
 		else
 		{
-			GdlConstant name = renameConstant(function.getName(), renamings);
+			GdlConstant name = renameConstant(function.getName(), renamings, theta);
 
 			List<GdlTerm> body = new ArrayList<GdlTerm>();
 			for (int i = 0; i < function.arity(); i++)
 			{
-				body.add(renameTerm(function.get(i), renamings));
+				body.add(renameTerm(function.get(i), renamings, theta));
 			}
 
 			return GdlPool.getFunction(name, body);
 		}
 	}
 
-	private GdlLiteral renameLiteral(GdlLiteral literal, Map<GdlVariable, GdlVariable> renamings)
+	private GdlLiteral renameLiteral(GdlLiteral literal, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		if (literal instanceof GdlDistinct)
 		{
-			return renameDistinct((GdlDistinct) literal, renamings);
+			return renameDistinct((GdlDistinct) literal, renamings, theta);
 		}
 		else if (literal instanceof GdlNot)
 		{
-			return renameNot((GdlNot) literal, renamings);
+			return renameNot((GdlNot) literal, renamings, theta);
 		}
 		else if (literal instanceof GdlOr)
 		{
-			return renameOr((GdlOr) literal, renamings);
+			return renameOr((GdlOr) literal, renamings, theta);
 		}
 		else
 		{
-			return renameSentence((GdlSentence) literal, renamings);
+			return renameSentence((GdlSentence) literal, renamings, theta);
 		}
 	}
 
-	private GdlNot renameNot(GdlNot not, Map<GdlVariable, GdlVariable> renamings)
+	private GdlNot renameNot(GdlNot not, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		if (not.isGround())
 		{
@@ -108,12 +119,12 @@ public class VariableRenamer
 		}
 		else
 		{
-			GdlLiteral body = renameLiteral(not.getBody(), renamings);
+			GdlLiteral body = renameLiteral(not.getBody(), renamings, theta);
 			return GdlPool.getNot(body);
 		}
 	}
 
-	private GdlOr renameOr(GdlOr or, Map<GdlVariable, GdlVariable> renamings)
+	private GdlOr renameOr(GdlOr or, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		if (or.isGround())
 		{
@@ -124,19 +135,19 @@ public class VariableRenamer
 			List<GdlLiteral> disjuncts = new ArrayList<GdlLiteral>();
 			for (int i = 0; i < or.arity(); i++)
 			{
-				disjuncts.add(renameLiteral(or.get(i), renamings));
+				disjuncts.add(renameLiteral(or.get(i), renamings, theta));
 			}
 
 			return GdlPool.getOr(disjuncts);
 		}
 	}
 
-	private GdlProposition renameProposition(GdlProposition proposition, Map<GdlVariable, GdlVariable> renamings)
+	private GdlProposition renameProposition(GdlProposition proposition, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		return proposition;
 	}
 
-	private GdlRelation renameRelation(GdlRelation relation, Map<GdlVariable, GdlVariable> renamings)
+	private GdlRelation renameRelation(GdlRelation relation, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		if (relation.isGround())
 		{
@@ -144,19 +155,19 @@ public class VariableRenamer
 		}
 		else
 		{
-			GdlConstant name = renameConstant(relation.getName(), renamings);
+			GdlConstant name = renameConstant(relation.getName(), renamings, theta);
 
 			List<GdlTerm> body = new ArrayList<GdlTerm>();
 			for (int i = 0; i < relation.arity(); i++)
 			{
-				body.add(renameTerm(relation.get(i), renamings));
+				body.add(renameTerm(relation.get(i), renamings, theta));
 			}
 
 			return GdlPool.getRelation(name, body);
 		}
 	}
 
-	private GdlRule renameRule(GdlRule rule, Map<GdlVariable, GdlVariable> renamings)
+	private GdlRule renameRule(GdlRule rule, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		if (rule.isGround())
 		{
@@ -164,48 +175,53 @@ public class VariableRenamer
 		}
 		else
 		{
-			GdlSentence head = renameSentence(rule.getHead(), renamings);
+			GdlSentence head = renameSentence(rule.getHead(), renamings, theta);
 
 			List<GdlLiteral> body = new ArrayList<GdlLiteral>();
 			for (int i = 0; i < rule.arity(); i++)
 			{
-				body.add(renameLiteral(rule.get(i), renamings));
+				body.add(renameLiteral(rule.get(i), renamings, theta));
 			}
 
 			return GdlPool.getRule(head, body);
 		}
 	}
 
-	private GdlSentence renameSentence(GdlSentence sentence, Map<GdlVariable, GdlVariable> renamings)
+	private GdlSentence renameSentence(GdlSentence sentence, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		if (sentence instanceof GdlProposition)
 		{
-			return renameProposition((GdlProposition) sentence, renamings);
+			return renameProposition((GdlProposition) sentence, renamings, theta);
 		}
 		else
 		{
-			return renameRelation((GdlRelation) sentence, renamings);
+			return renameRelation((GdlRelation) sentence, renamings, theta);
 		}
 	}
 
-	private GdlTerm renameTerm(GdlTerm term, Map<GdlVariable, GdlVariable> renamings)
+	private GdlTerm renameTerm(GdlTerm term, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
 		if (term instanceof GdlConstant)
 		{
-			return renameConstant((GdlConstant) term, renamings);
+			return renameConstant((GdlConstant) term, renamings, theta);
 		}
 		else if (term instanceof GdlVariable)
 		{
-			return renameVariable((GdlVariable) term, renamings);
+			return renameVariable((GdlVariable) term, renamings, theta);
 		}
 		else
 		{
-			return renameFunction((GdlFunction) term, renamings);
+			return renameFunction((GdlFunction) term, renamings, theta);
 		}
 	}
 
-	private GdlVariable renameVariable(GdlVariable variable, Map<GdlVariable, GdlVariable> renamings)
+	private GdlTerm renameVariable(GdlVariable variable, Map<GdlVariable, GdlVariable> renamings, Substitution theta)
 	{
+		GdlTerm term = theta.walk(variable);
+		if (term != variable)
+		{
+			return renameTerm(term, renamings, theta);
+		}
 		if (!renamings.containsKey(variable))
 		{
 			GdlVariable newName = GdlPool.getVariable("?R" + (nextName++));
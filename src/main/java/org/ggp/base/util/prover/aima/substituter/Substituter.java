@@ -183,23 +183,14 @@ public final class Substituter
 
 	private static GdlTerm substituteVariable(GdlVariable variable, Substitution theta)
 	{
-		if (!theta.contains(variable))
+		GdlTerm result = theta.walk(variable);
+		if (result instanceof GdlFunction)
 		{
-			return variable;
-		}
-		else
-		{
-			GdlTerm result = theta.get(variable);
-			GdlTerm betterResult = null;
-
-			while (!(betterResult = substituteTerm(result, theta)).equals(result))
-			{
-				result = betterResult;
-			}
-
-			theta.put(variable, result);
-			return result;
+			// Bindings are left as they are, so that they can still be
+			// undone; the function's own variables are followed here
+			return substituteFunction((GdlFunction) result, theta);
 		}
+		return result;
 	}
 
 	private static GdlRule substituteRule(GdlRule rule, Substitution theta)
@@ -1,35 +1,51 @@
 package org.ggp.base.util.prover.aima.substitution;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.gdl.grammar.GdlVariable;
 
 
+/**
+ * A set of variable bindings, kept as a trail: bindings are stored in the
+ * order they were made, in a pair of arrays, so that a search can extend a
+ * substitution in place and undo its bindings on backtracking with
+ * {@link #mark()} and {@link #undo(int)}, rather than copying it at every
+ * step.
+ * <p>
+ * The bindings are not resolved against each other: a variable may be bound
+ * to a term containing other bound variables. Use {@link #walk(GdlTerm)} or
+ * the Substituter to follow them.
+ */
 public final class Substitution
 {
 
-	private final Map<GdlVariable, GdlTerm> contents;
+	private GdlVariable[] variables;
+	private GdlTerm[] terms;
+	private int size;
 
 	public Substitution()
 	{
-		contents = new HashMap<GdlVariable, GdlTerm>();
+		variables = new GdlVariable[8];
+		terms = new GdlTerm[8];
+		size = 0;
 	}
 
 	public Substitution compose(Substitution thetaPrime)
 	{
-		Substitution result = new Substitution();
+		Substitution result = copy();
 
-		result.contents.putAll(contents);
-		result.contents.putAll(thetaPrime.contents);
+		for (int i = 0; i < thetaPrime.size; i++)
+		{
+			result.put(thetaPrime.variables[i], thetaPrime.terms[i]);
+		}
 
 		return result;
 	}
 
 	public boolean contains(GdlVariable variable)
 	{
-		return contents.containsKey(variable);
+		return indexOf(variable) >= 0;
 	}
 
 	@Override
@@ -38,7 +54,18 @@ public final class Substitution
 		if ((o != null) && (o instanceof Substitution))
 		{
 			Substitution substitution = (Substitution) o;
-			return substitution.contents.equals(contents);
+			if (substitution.size != size)
+			{
+				return false;
+			}
+			for (int i = 0; i < size; i++)
+			{
+				if (!terms[i].equals(substitution.get(variables[i])))
+				{
+					return false;
+				}
+			}
+			return true;
 		}
 
 		return false;
@@ -46,18 +73,95 @@ public final class Substitution
 
 	public GdlTerm get(GdlVariable variable)
 	{
-		return contents.get(variable);
+		int index = indexOf(variable);
+		return (index >= 0) ? terms[index] : null;
+	}
+
+	/**
+	 * Returns the given term with bound variables followed until an unbound
+	 * variable or a non-variable term is reached.
+	 */
+	public GdlTerm walk(GdlTerm term)
+	{
+		while (term instanceof GdlVariable)
+		{
+			int index = indexOf((GdlVariable) term);
+			if (index < 0)
+			{
+				break;
+			}
+			term = terms[index];
+		}
+		return term;
+	}
+
+	private int indexOf(GdlVariable variable)
+	{
+		// Substitutions are small, and recent bindings are the likeliest
+		// to be looked up
+		for (int i = size - 1; i >= 0; i--)
+		{
+			if (variables[i] == variable)
+			{
+				return i;
+			}
+		}
+		return -1;
 	}
 
 	@Override
 	public int hashCode()
 	{
-		return contents.hashCode();
+		// Matches the hash of the equivalent map, regardless of binding order
+		int hashCode = 0;
+		for (int i = 0; i < size; i++)
+		{
+			hashCode += variables[i].hashCode() ^ terms[i].hashCode();
+		}
+		return hashCode;
 	}
 
+	/**
+	 * Binds the given variable to the given term. A variable that is already
+	 * bound is rebound in place, which can't be undone.
+	 */
 	public void put(GdlVariable variable, GdlTerm term)
 	{
-		contents.put(variable, term);
+		int index = indexOf(variable);
+		if (index >= 0)
+		{
+			terms[index] = term;
+			return;
+		}
+		if (size == variables.length)
+		{
+			variables = Arrays.copyOf(variables, size * 2);
+			terms = Arrays.copyOf(terms, size * 2);
+		}
+		variables[size] = variable;
+		terms[size] = term;
+		size++;
+	}
+
+	/**
+	 * Returns a mark for the current bindings, to pass to {@link #undo(int)}.
+	 */
+	public int mark()
+	{
+		return size;
+	}
+
+	/**
+	 * Removes every binding added since the given mark was taken.
+	 */
+	public void undo(int mark)
+	{
+		for (int i = mark; i < size; i++)
+		{
+			variables[i] = null;
+			terms[i] = null;
+		}
+		size = mark;
 	}
 
 	/**
@@ -68,7 +172,9 @@ public final class Substitution
 	public Substitution copy()
 	{
 		Substitution copy = new Substitution();
-		copy.contents.putAll(contents);
+		copy.variables = Arrays.copyOf(variables, variables.length);
+		copy.terms = Arrays.copyOf(terms, terms.length);
+		copy.size = size;
 		return copy;
 	}
 
@@ -78,9 +184,9 @@ public final class Substitution
 		StringBuilder sb = new StringBuilder();
 
 		sb.append("{ ");
-		for (GdlVariable variable : contents.keySet())
+		for (int i = 0; i < size; i++)
 		{
-			sb.append(variable + "/" + contents.get(variable) + " ");
+			sb.append(variables[i] + "/" + terms[i] + " ");
 		}
 		sb.append("}");
 
@@ -1,6 +1,5 @@
 package org.ggp.base.util.prover.aima.unifier;
 
-import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlFunction;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
@@ -13,7 +12,7 @@ public final class Unifier
     public static Substitution unify(GdlSentence x, GdlSentence y)
     {
         Substitution theta = new Substitution();
-        boolean isGood = unifyTerm(x.toTerm(), y.toTerm(), theta);
+        boolean isGood = unify(x, y, theta);
 
         if(isGood)
             return theta;
@@ -21,33 +20,78 @@ public final class Unifier
             return null;
     }
 
-    private static boolean unifyTerm(GdlTerm x, GdlTerm y, Substitution theta)
+    /**
+     * Unifies the two sentences under the given substitution, adding the
+     * bindings needed to it in place. Neither sentence needs to have had the
+     * substitution applied first. If they don't unify, the substitution is
+     * left as it was.
+     */
+    public static boolean unify(GdlSentence x, GdlSentence y, Substitution theta)
     {
-    	if(x.equals(y))
-    		return true;
-        if ((x instanceof GdlConstant) && (y instanceof GdlConstant))
+        // Sentences are matched argument by argument, rather than through
+        // toTerm, which would pool a function for each of them
+        if (x.getName() != y.getName() || x.arity() != y.arity())
+            return false;
+
+        int mark = theta.mark();
+        for (int i = 0; i < x.arity(); i++)
         {
-            if (!x.equals(y))
+            if (! unifyTerm(x.get(i), y.get(i), theta))
             {
+                theta.undo(mark);
                 return false;
             }
         }
-        else if (x instanceof GdlVariable)
+        return true;
+    }
+
+    /**
+     * Returns whether the two terms are identical once the given
+     * substitution is applied to them.
+     */
+    public static boolean equal(GdlTerm x, GdlTerm y, Substitution theta)
+    {
+        x = theta.walk(x);
+        y = theta.walk(y);
+        if (x == y)
+            return true;
+        if ((x instanceof GdlFunction) && (y instanceof GdlFunction))
         {
-            if (!unifyVariable((GdlVariable) x, y, theta))
+            GdlFunction xFunction = (GdlFunction) x;
+            GdlFunction yFunction = (GdlFunction) y;
+            if (xFunction.getName() != yFunction.getName() || xFunction.arity() != yFunction.arity())
                 return false;
+
+            for (int i = 0; i < xFunction.arity(); i++)
+            {
+                if (! equal(xFunction.get(i), yFunction.get(i), theta))
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean unifyTerm(GdlTerm x, GdlTerm y, Substitution theta)
+    {
+        x = theta.walk(x);
+        y = theta.walk(y);
+        if(x.equals(y))
+            return true;
+        if (x instanceof GdlVariable)
+        {
+            theta.put((GdlVariable) x, y);
         }
         else if (y instanceof GdlVariable)
         {
-            if (!unifyVariable((GdlVariable) y, x, theta))
-                return false;
+            theta.put((GdlVariable) y, x);
         }
         else if ((x instanceof GdlFunction) && (y instanceof GdlFunction))
         {
             GdlFunction xFunction = (GdlFunction) x;
             GdlFunction yFunction = (GdlFunction) y;
 
-            if (! unifyTerm(xFunction.getName(), yFunction.getName(), theta))
+            if (! xFunction.getName().equals(yFunction.getName()) || xFunction.arity() != yFunction.arity())
                 return false;
 
             for (int i = 0; i < xFunction.arity(); i++)
@@ -64,21 +108,4 @@ public final class Unifier
         return true;
     }
 
-    private static boolean unifyVariable(GdlVariable var, GdlTerm x, Substitution theta)
-    {
-        if (theta.contains(var))
-        {
-            return unifyTerm(theta.get(var), x, theta);
-        }
-        else if ((x instanceof GdlVariable) && theta.contains((GdlVariable) x))
-        {
-            return unifyTerm(var, theta.get((GdlVariable) x), theta);
-        }
-        else
-        {
-            theta.put(var, x);
-            return true;
-        }
-    }
-
 }
@@ -29,7 +29,6 @@ import org.ggp.base.util.gdl.transforms.CommonTransforms;
 import org.ggp.base.util.reasoner.DifferentialForwardChainingReasoner;
 
 import com.google.common.collect.ImmutableMultimap;
-import com.google.common.collect.SetMultimap;
 
 /**
  * An implementation of a ForwardChainingReasoner that uses Gdl objects
@@ -66,7 +65,7 @@ public class GdlChainingReasoner implements
 		SentenceForm headForm = model.getSentenceForm(rule.getHead());
 		Map<GdlVariable, Set<GdlConstant>> varDomains = SentenceDomainModels.getVarDomains(rule, domainModel, VarDomainOpts.INCLUDE_HEAD);
 		Map<SentenceForm, ? extends FunctionInfo> functionInfoMap = sentencesSoFar.getFunctionInfo();
-		Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues = sentencesSoFar.getSentences().asMap();
+		Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues = sentencesSoFar.asMap();
 
 		AssignmentsImpl assignments = new AssignmentsImpl(rule, varDomains, functionInfoMap, completedSentenceFormValues);
 		AssignmentIterator asnItr = assignments.getIterator();
@@ -76,7 +75,7 @@ public class GdlChainingReasoner implements
 			boolean allSatisfied = true;
 			for (GdlLiteral literal : rule.getBody()) {
 				ConcurrencyUtils.checkForInterruption();
-				if (!satisfies(assignment, literal, sentencesSoFar.getSentences())) {
+				if (!satisfies(assignment, literal, sentencesSoFar)) {
 					asnItr.changeOneInNext(GdlUtils.getVariables(literal), assignment);
 					allSatisfied = false;
 					break;
@@ -92,7 +91,7 @@ public class GdlChainingReasoner implements
 	}
 
 	private boolean satisfies(Map<GdlVariable, GdlConstant> assignment,
-			GdlLiteral literal, SetMultimap<SentenceForm, GdlSentence> sentencesSoFar) {
+			GdlLiteral literal, GdlSentenceSet sentencesSoFar) {
 		if (literal instanceof GdlSentence) {
 			return satisfiesSentence(assignment, (GdlSentence) literal, sentencesSoFar);
 		} else if (literal instanceof GdlNot) {
@@ -119,10 +118,10 @@ public class GdlChainingReasoner implements
 
 	private boolean satisfiesSentence(Map<GdlVariable, GdlConstant> assignment,
 			GdlSentence sentence,
-			SetMultimap<SentenceForm, GdlSentence> sentencesSoFar) {
+			GdlSentenceSet sentencesSoFar) {
 		sentence = CommonTransforms.replaceVariables(sentence, assignment);
 		SentenceForm form = model.getSentenceForm(sentence);
-		return sentencesSoFar.get(form).contains(sentence);
+		return sentencesSoFar.containsSentence(form, sentence);
 	}
 
 	private boolean satisfiesDistinct(Map<GdlVariable, GdlConstant> assignment,
@@ -135,7 +134,7 @@ public class GdlChainingReasoner implements
 	public GdlSentenceSet getUnion(
 			GdlSentenceSet oldSentences,
 			GdlSentenceSet newSentences) {
-		oldSentences.putAll(newSentences.getSentences());
+		oldSentences.putAll(newSentences);
 		return oldSentences;
 	}
 
@@ -143,9 +142,11 @@ public class GdlChainingReasoner implements
 	public boolean isSubsetOf(
 			GdlSentenceSet oldSentences,
 			GdlSentenceSet newSentences) {
-		for (Entry<SentenceForm, GdlSentence> entry : newSentences.getSentences().entries()) {
-			if (!oldSentences.containsSentence(entry.getKey(), entry.getValue())) {
-				return false;
+		for (Entry<SentenceForm, Set<GdlSentence>> entry : newSentences.asMap().entrySet()) {
+			for (GdlSentence sentence : entry.getValue()) {
+				if (!oldSentences.containsSentence(entry.getKey(), sentence)) {
+					return false;
+				}
 			}
 		}
 		return true;
@@ -164,7 +165,7 @@ public class GdlChainingReasoner implements
 				addRuleResultsForChosenLiteral(
 						rule,
 						(GdlSentence) literal,
-						newSentences.getSentences().get(literalForm),
+						newSentences.getSentences(literalForm),
 						domainModel,
 						allSentences,
 						results);
@@ -183,7 +184,7 @@ public class GdlChainingReasoner implements
 		SentenceForm headForm = model.getSentenceForm(rule.getHead());
 		Map<GdlVariable, Set<GdlConstant>> varDomains = SentenceDomainModels.getVarDomains(rule, domainModel, VarDomainOpts.INCLUDE_HEAD);
 		Map<SentenceForm, AddibleFunctionInfo> functionInfoMap = allSentences.getFunctionInfo();
-		Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues = allSentences.getSentences().asMap();
+		Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues = allSentences.asMap();
 
 		for (GdlSentence chosenNewSentence : chosenNewSentences) {
 			Map<GdlVariable, GdlConstant> preassignments = GdlUtils.getAssignmentMakingLeftIntoRight(chosenLiteral, chosenNewSentence);
@@ -199,7 +200,7 @@ public class GdlChainingReasoner implements
 							//Already satisfied
 							continue;
 						}
-						if (!satisfies(assignment, literal, allSentences.getSentences())) {
+						if (!satisfies(assignment, literal, allSentences)) {
 							asnItr.changeOneInNext(GdlUtils.getVariables(literal), assignment);
 							allSatisfied = false;
 							break;
@@ -1,19 +1,26 @@
 package org.ggp.base.util.reasoner.gdl;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.model.SentenceForm;
 import org.ggp.base.util.gdl.model.assignments.AddibleFunctionInfo;
 import org.ggp.base.util.gdl.model.assignments.MutableFunctionInfo;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 
 /**
  * Contains a set of GdlSentences arranged by SentenceForm and the
@@ -24,16 +31,31 @@ import com.google.common.collect.SetMultimap;
  * Note that this class is not thread-safe.
  */
 public class GdlSentenceSet {
-	private final SetMultimap<SentenceForm, GdlSentence> sentences;
+	/** The set this was copied from, or null. Forms not added to since fall through to it. */
+	private final GdlSentenceSet base;
+	/** The sentences of each form added to in this set, including the base's. */
+	private final Map<SentenceForm, Set<GdlSentence>> sentences;
 	private final Map<SentenceForm, AddibleFunctionInfo> functionInfoMap;
 
-	private GdlSentenceSet() {
-		this.sentences = HashMultimap.create();
+	private GdlSentenceSet(GdlSentenceSet base) {
+		this.base = base;
+		this.sentences = Maps.newHashMap();
 		this.functionInfoMap = Maps.newHashMap();
 	}
 
 	public static GdlSentenceSet create() {
-		return new GdlSentenceSet();
+		return new GdlSentenceSet(null);
+	}
+
+	/**
+	 * Returns a new set with the same sentences as the given set, layered
+	 * over it: a form's sentences and FunctionInfo are read from the given
+	 * set until a sentence of that form is added to the new one, and only
+	 * then copied. This makes copying a large set, such as the constants of
+	 * a game, nearly free. The given set must not be modified afterwards.
+	 */
+	public static GdlSentenceSet copyOf(GdlSentenceSet base) {
+		return new GdlSentenceSet(base);
 	}
 
 	public static GdlSentenceSet create(Multimap<SentenceForm, GdlSentence> sentences) {
@@ -43,19 +65,68 @@ public class GdlSentenceSet {
 	}
 
 	/**
-	 * Returns an unmodifiable view of the sentences in this set.
-	 * Note that this view may change if the collection is concurrently
-	 * modified.
+	 * Returns the sentences of the given form in this set, or null if there
+	 * are none.
+	 */
+	private Set<GdlSentence> getSentenceSet(SentenceForm form) {
+		Set<GdlSentence> formSentences = sentences.get(form);
+		if (formSentences == null && base != null) {
+			return base.getSentenceSet(form);
+		}
+		return formSentences;
+	}
+
+	/**
+	 * Returns an unmodifiable copy of the sentences in this set. This has to
+	 * copy every sentence; prefer {@link #getSentences(SentenceForm)} and
+	 * {@link #asMap()} where they'll do.
 	 */
 	public SetMultimap<SentenceForm, GdlSentence> getSentences() {
-		return Multimaps.unmodifiableSetMultimap(sentences);
+		SetMultimap<SentenceForm, GdlSentence> result = HashMultimap.create();
+		for (Entry<SentenceForm, Set<GdlSentence>> entry : asMap().entrySet()) {
+			result.putAll(entry.getKey(), entry.getValue());
+		}
+		return Multimaps.unmodifiableSetMultimap(result);
+	}
+
+	/**
+	 * Returns an unmodifiable view of the sentences of the given form in
+	 * this set.
+	 */
+	public Set<GdlSentence> getSentences(SentenceForm form) {
+		Set<GdlSentence> formSentences = getSentenceSet(form);
+		if (formSentences == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(formSentences);
+	}
+
+	/**
+	 * Returns an unmodifiable view of the sentences in this set, by form.
+	 * Forms with no sentences are left out. The sets in the view must not
+	 * be modified, and the view may change if this set is concurrently
+	 * modified.
+	 */
+	public Map<SentenceForm, Set<GdlSentence>> asMap() {
+		if (base == null) {
+			return Collections.unmodifiableMap(sentences);
+		}
+		return Collections.unmodifiableMap(new LayeredMap<Set<GdlSentence>>(sentences, base.asMap()));
+	}
+
+	/**
+	 * Returns true iff there are no sentences in this set.
+	 */
+	public boolean isEmpty() {
+		return sentences.isEmpty() && (base == null || base.isEmpty());
 	}
 
 	/**
 	 * Returns true iff the given sentence is in this set of sentences.
 	 */
 	public boolean containsSentence(SentenceForm form, GdlSentence sentence) {
-		return sentences.containsEntry(form, sentence);
+		Set<GdlSentence> formSentences = getSentenceSet(form);
+		return formSentences != null && formSentences.contains(sentence);
 	}
 
 	public void putAll(Multimap<SentenceForm, GdlSentence> newSentences) {
@@ -64,20 +135,94 @@ public class GdlSentenceSet {
 		}
 	}
 
+	public void putAll(GdlSentenceSet newSentences) {
+		for (Entry<SentenceForm, Set<GdlSentence>> entry : newSentences.asMap().entrySet()) {
+			for (GdlSentence sentence : entry.getValue()) {
+				put(entry.getKey(), sentence);
+			}
+		}
+	}
+
 	public void put(SentenceForm form, GdlSentence sentence) {
-		if (!containsSentence(form, sentence)) {
-			sentences.put(form, sentence);
-			if (!functionInfoMap.containsKey(form)) {
+		if (containsSentence(form, sentence)) {
+			return;
+		}
+		Set<GdlSentence> formSentences = sentences.get(form);
+		if (formSentences == null) {
+			Set<GdlSentence> baseSentences = (base == null) ? null : base.getSentenceSet(form);
+			if (baseSentences == null) {
+				formSentences = Sets.newHashSet();
 				functionInfoMap.put(form, MutableFunctionInfo.create(form));
+			} else {
+				formSentences = Sets.newHashSet(baseSentences);
+				functionInfoMap.put(form, MutableFunctionInfo.create(form, baseSentences));
 			}
-			functionInfoMap.get(form).addSentence(sentence);
+			sentences.put(form, formSentences);
 		}
+		formSentences.add(sentence);
+		functionInfoMap.get(form).addSentence(sentence);
 	}
 
 	/**
 	 * Returns an unmodifiable view of the function information
 	 */
 	public Map<SentenceForm, AddibleFunctionInfo> getFunctionInfo() {
-		return Collections.unmodifiableMap(functionInfoMap);
+		if (base == null) {
+			return Collections.unmodifiableMap(functionInfoMap);
+		}
+		return Collections.unmodifiableMap(new LayeredMap<AddibleFunctionInfo>(functionInfoMap, base.getFunctionInfo()));
+	}
+
+	/**
+	 * A read-only view of one map over another, in which keys missing from
+	 * the top map fall through to the bottom one.
+	 */
+	private static final class LayeredMap<V> extends AbstractMap<SentenceForm, V> {
+		private final Map<SentenceForm, V> top;
+		private final Map<SentenceForm, V> bottom;
+
+		public LayeredMap(Map<SentenceForm, V> top, Map<SentenceForm, V> bottom) {
+			this.top = top;
+			this.bottom = bottom;
+		}
+
+		@Override
+		public V get(Object key) {
+			V value = top.get(key);
+			return (value == null) ? bottom.get(key) : value;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return top.containsKey(key) || bottom.containsKey(key);
+		}
+
+		@Override
+		public Set<Entry<SentenceForm, V>> entrySet() {
+			return new AbstractSet<Entry<SentenceForm, V>>() {
+				@Override
+				public Iterator<Entry<SentenceForm, V>> iterator() {
+					Iterator<Entry<SentenceForm, V>> bottomOnly = Iterators.filter(bottom.entrySet().iterator(),
+							new Predicate<Entry<SentenceForm, V>>() {
+								@Override
+								public boolean apply(Entry<SentenceForm, V> entry) {
+									return !top.containsKey(entry.getKey());
+								}
+							});
+					return Iterators.unmodifiableIterator(Iterators.concat(top.entrySet().iterator(), bottomOnly));
+				}
+
+				@Override
+				public int size() {
+					int size = top.size();
+					for (SentenceForm key : bottom.keySet()) {
+						if (!top.containsKey(key)) {
+							size++;
+						}
+					}
+					return size;
+				}
+			};
+		}
 	}
 }
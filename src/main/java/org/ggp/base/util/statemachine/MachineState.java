@@ -21,6 +21,9 @@ public class MachineState {
         this.contents = contents;
     }
 
+    /** The cached Zobrist hash, or 0 if it hasn't been computed yet. */
+    private volatile long longHash;
+
     /**
      * getContents returns the GDL sentences which determine the current state
      * of the game being played. Two given states with identical GDL sentences
@@ -36,11 +39,52 @@ public class MachineState {
         return new MachineState(new HashSet<GdlSentence>(contents));
     }
 
+    /**
+     * Returns a 64-bit Zobrist hash of this state: the XOR of the
+     * {@link ZobristKeys} of its sentences. Equal states have equal hashes,
+     * whichever state machine produced them, so the hash can stand in for
+     * the state as a transposition table key. It is computed once and then
+     * cached; state machines that know the hash of a state when creating it
+     * can set it with {@link #setLongHash(long)}.
+     */
+    public long longHash()
+    {
+        long hash = longHash;
+        if (hash == 0) {
+            hash = computeLongHash();
+            longHash = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Sets the hash that {@link #longHash()} returns, for state machines
+     * that maintain it incrementally. It must equal what
+     * {@link #computeLongHash()} would return.
+     */
+    protected void setLongHash(long hash)
+    {
+        longHash = hash;
+    }
+
+    /**
+     * Computes the Zobrist hash of this state from scratch.
+     */
+    protected long computeLongHash()
+    {
+        long hash = 0;
+        for (GdlSentence sentence : getContents()) {
+            hash ^= ZobristKeys.get(sentence);
+        }
+        return hash;
+    }
+
     /* Utility methods */
     @Override
     public int hashCode()
     {
-        return getContents().hashCode();
+        long hash = longHash();
+        return (int) (hash ^ (hash >>> 32));
     }
 
     @Override
@@ -59,6 +103,9 @@ public class MachineState {
         if ((o != null) && (o instanceof MachineState))
         {
             MachineState state = (MachineState) o;
+            if (state.longHash() != longHash()) {
+                return false;
+            }
             return state.getContents().equals(getContents());
         }
 
@@ -1,6 +1,7 @@
 package org.ggp.base.util.statemachine;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -459,6 +460,72 @@ public abstract class StateMachine
         return state;
     }
 
+    /**
+     * Plays random joint moves from the given state until reaching a terminal
+     * state, and returns the goal values of the roles in that state.
+     * <p>
+     * Unlike {@link #performDepthCharge(MachineState, int[])}, this doesn't
+     * return the terminal state, so implementations are free to run the whole
+     * playout in internal buffers. Implementations should override this to
+     * avoid allocating anything per ply; the default implementation plays
+     * through the regular methods of this class.
+     *
+     * @param random the source of randomness for choosing moves. Supplying
+     * one avoids creating a new Random at every ply, and lets callers make
+     * playouts reproducible.
+     * @param goalsOut an array of length {@link #getRoles()}.size() to write
+     * the goal values into, in role order. If this is null, a new array is
+     * allocated.
+     * @return the array of goal values.
+     */
+    public int[] depthCharge(MachineState state, Random random, int[] goalsOut) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        List<Role> roles = getRoles();
+        if (goalsOut == null) {
+            goalsOut = new int[roles.size()];
+        }
+        while (!isTerminal(state)) {
+            List<Move> jointMove = new ArrayList<Move>(roles.size());
+            for (Role role : roles) {
+                List<Move> legals = getLegalMoves(state, role);
+                jointMove.add(legals.get(random.nextInt(legals.size())));
+            }
+            state = getNextStateDestructively(state, jointMove);
+        }
+        for (int i = 0; i < roles.size(); i++) {
+            goalsOut[i] = getGoal(state, roles.get(i));
+        }
+        return goalsOut;
+    }
+
+    /**
+     * Plays the given number of random playouts from the given state, and
+     * returns the sum of the goal values each role gets at their ends.
+     * <p>
+     * Machines that can advance many playouts at once should override this;
+     * the default implementation calls
+     * {@link #depthCharge(MachineState, Random, int[])} repeatedly.
+     *
+     * @param goalTotalsOut an array of length {@link #getRoles()}.size() to
+     * write the totals into, in role order. If this is null, a new array is
+     * allocated.
+     * @return the array of goal value totals.
+     */
+    public long[] depthCharges(MachineState state, Random random, int count, long[] goalTotalsOut) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        int numRoles = getRoles().size();
+        if (goalTotalsOut == null) {
+            goalTotalsOut = new long[numRoles];
+        }
+        Arrays.fill(goalTotalsOut, 0);
+        int[] goals = new int[numRoles];
+        for (int i = 0; i < count; i++) {
+            depthCharge(state, random, goals);
+            for (int r = 0; r < numRoles; r++) {
+                goalTotalsOut[r] += goals[r];
+            }
+        }
+        return goalTotalsOut;
+    }
+
     public void getAverageDiscountedScoresFromRepeatedDepthCharges(final MachineState state, final double[] avgScores, final double[] avgDepth, final double discountFactor, final int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
         avgDepth[0] = 0;
         for (int j = 0; j < avgScores.length; j++) {
@@ -0,0 +1,71 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Assigns each GDL sentence a pseudo-random 64-bit key, for Zobrist hashing
+ * of states: the hash of a state is the XOR of the keys of its sentences, so
+ * adding or removing a sentence updates it with a single XOR.
+ * <p>
+ * A key is derived from the text of its sentence, so hashes are comparable
+ * between all states, whichever state machine produced them, and a sentence
+ * keeps its key when the {@link org.ggp.base.util.gdl.grammar.GdlPool} is
+ * drained and it is read in again. Keys are cached per sentence object, but
+ * only weakly, so the cache doesn't keep drained sentences alive.
+ *
+ * @see MachineState#longHash()
+ */
+public final class ZobristKeys
+{
+    // Weak keys are compared by identity, as pooled sentences are.
+    private static final ConcurrentMap<GdlSentence, Long> keys = new MapMaker().weakKeys().makeMap();
+
+    private ZobristKeys()
+    {
+    }
+
+    /**
+     * Returns the key of the given sentence.
+     */
+    public static long get(GdlSentence sentence)
+    {
+        Long key = keys.get(sentence);
+        if (key == null) {
+            key = computeKey(sentence);
+            keys.put(sentence, key);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the keys of the given sentences, in the same order.
+     */
+    public static long[] get(GdlSentence[] sentences)
+    {
+        long[] result = new long[sentences.length];
+        for (int i = 0; i < sentences.length; i++) {
+            result[i] = get(sentences[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Hashes the text of the sentence with 64-bit FNV-1a and spreads the
+     * result over all 64 bits with the SplitMix64 finalizer.
+     */
+    private static long computeKey(GdlSentence sentence)
+    {
+        String text = sentence.toString();
+        long z = 0xCBF29CE484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            z = (z ^ text.charAt(i)) * 0x100000001B3L;
+        }
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
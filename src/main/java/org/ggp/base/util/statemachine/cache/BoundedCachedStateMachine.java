@@ -0,0 +1,326 @@
+package org.ggp.base.util.statemachine.cache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * BoundedCachedStateMachine caches the answers of a backing state machine,
+ * like {@link CachedStateMachine}, but never holds more than a fixed number
+ * of states: once it is full, the least recently used state is evicted to
+ * make room for each new one. It can be shared by several search threads.
+ * <p>
+ * The cache is split into stripes by the hash of the state, each an
+ * access-ordered map with its own lock and its own share of the capacity, so
+ * threads only contend when they look up states in the same stripe. Answers
+ * for a state are computed while holding only that state's entry, so a slow
+ * call to the backing machine doesn't hold up the rest of its stripe.
+ * <p>
+ * The number of hits, misses and evictions are counted, and are logged on
+ * each call to {@link #doPerMoveWork()}.
+ */
+public final class BoundedCachedStateMachine extends StateMachine
+{
+    public static final int DEFAULT_MAX_STATES = 100000;
+    public static final int DEFAULT_STRIPES = 16;
+
+    private final StateMachine backingStateMachine;
+    private final Stripe[] stripes;
+    private final Map<Role, List<Move>> actions = new ConcurrentHashMap<Role, List<Move>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final class CacheEntry
+    {
+        public Integer[] goals;
+        public List<Move>[] moves;
+        public Map<List<Move>, MachineState> nexts;
+        public Boolean terminal;
+    }
+
+    @SuppressWarnings("serial")
+    private final class Stripe extends LinkedHashMap<MachineState, CacheEntry>
+    {
+        private final int capacity;
+
+        public Stripe(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<MachineState, CacheEntry> eldest)
+        {
+            if (size() > capacity)
+            {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public BoundedCachedStateMachine(StateMachine backingStateMachine)
+    {
+        this(backingStateMachine, DEFAULT_MAX_STATES, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param maxStates The most states to keep answers for at once.
+     * @param nStripes The number of independently locked parts to split the
+     * cache into; rounded up to a power of two.
+     */
+    public BoundedCachedStateMachine(StateMachine backingStateMachine, int maxStates, int nStripes)
+    {
+        if (maxStates < 1 || nStripes < 1)
+        {
+            throw new IllegalArgumentException("The cache needs room for at least one state and one stripe");
+        }
+        this.backingStateMachine = backingStateMachine;
+        int stripeCount = Integer.highestOneBit(Math.min(nStripes, maxStates));
+        if (stripeCount < Math.min(nStripes, maxStates))
+        {
+            stripeCount *= 2;
+        }
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+        {
+            // Spread the capacity so that the stripes add up to exactly maxStates
+            stripes[i] = new Stripe(maxStates / stripeCount + (i < maxStates % stripeCount ? 1 : 0));
+        }
+    }
+
+    private CacheEntry getEntry(MachineState state)
+    {
+        int hash = state.hashCode();
+        hash ^= (hash >>> 16);
+        Stripe stripe = stripes[hash & (stripes.length - 1)];
+        synchronized (stripe)
+        {
+            CacheEntry entry = stripe.get(state);
+            if (entry == null)
+            {
+                entry = new CacheEntry();
+                stripe.put(state, entry);
+            }
+            return entry;
+        }
+    }
+
+    private int getRoleIndex(Role role)
+    {
+        return backingStateMachine.getRoleIndices().get(role);
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        CacheEntry entry = getEntry(state);
+        synchronized (entry)
+        {
+            if (entry.goals == null)
+            {
+                entry.goals = new Integer[getRoles().size()];
+            }
+            int index = getRoleIndex(role);
+            if (entry.goals[index] == null)
+            {
+                misses.incrementAndGet();
+                entry.goals[index] = backingStateMachine.getGoal(state, role);
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+
+            return entry.goals[index];
+        }
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException
+    {
+        List<Move> roleActions = actions.get(role);
+        if (roleActions == null)
+        {
+            roleActions = ImmutableList.copyOf(backingStateMachine.findActions(role));
+            actions.put(role, roleActions);
+        }
+        return roleActions;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        CacheEntry entry = getEntry(state);
+        synchronized (entry)
+        {
+            if (entry.moves == null)
+            {
+                entry.moves = new List[getRoles().size()];
+            }
+            int index = getRoleIndex(role);
+            if (entry.moves[index] == null)
+            {
+                misses.incrementAndGet();
+                entry.moves[index] = ImmutableList.copyOf(backingStateMachine.getLegalMoves(state, role));
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+
+            return entry.moves[index];
+        }
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        CacheEntry entry = getEntry(state);
+        synchronized (entry)
+        {
+            if (entry.nexts == null)
+            {
+                entry.nexts = new HashMap<List<Move>, MachineState>();
+            }
+            MachineState next = entry.nexts.get(moves);
+            if (next == null)
+            {
+                misses.incrementAndGet();
+                next = backingStateMachine.getNextState(state, moves);
+                // The caller may reuse its list of moves
+                entry.nexts.put(ImmutableList.copyOf(moves), next);
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+
+            return next;
+        }
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        CacheEntry entry = getEntry(state);
+        synchronized (entry)
+        {
+            if (entry.terminal == null)
+            {
+                misses.incrementAndGet();
+                entry.terminal = backingStateMachine.isTerminal(state);
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+
+            return entry.terminal;
+        }
+    }
+
+    /**
+     * Depth charges rarely revisit states, so they go straight to the backing
+     * machine rather than evicting states that are more likely to be used
+     * again.
+     */
+    @Override
+    public int[] depthCharge(MachineState state, Random random, int[] goalsOut) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return backingStateMachine.depthCharge(state, random, goalsOut);
+    }
+
+    @Override
+    public long[] depthCharges(MachineState state, Random random, int count, long[] goalTotalsOut) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return backingStateMachine.depthCharges(state, random, count, goalTotalsOut);
+    }
+
+    /**
+     * There is nothing to prune, since the cache never grows past its
+     * capacity; this only logs the cache's counters.
+     */
+    @Override
+    public void doPerMoveWork()
+    {
+        GamerLogger.log("StateMachine", "State cache: " + getSize() + " states, " + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions");
+    }
+
+    /**
+     * Returns the number of answers that were found in the cache.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of answers that had to be asked of the backing
+     * machine.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of states evicted to make room for others.
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of states currently in the cache.
+     */
+    public int getSize()
+    {
+        int size = 0;
+        for (Stripe stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void initialize(List<Gdl> description) {
+        backingStateMachine.initialize(description);
+    }
+
+    @Override
+    public List<Role> getRoles() {
+        return backingStateMachine.getRoles();
+    }
+
+    @Override
+    public MachineState getInitialState() {
+        return backingStateMachine.getInitialState();
+    }
+}
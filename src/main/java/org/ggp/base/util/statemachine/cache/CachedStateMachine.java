@@ -3,6 +3,7 @@ package org.ggp.base.util.statemachine.cache;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.statemachine.MachineState;
@@ -130,6 +131,23 @@ public final class CachedStateMachine extends StateMachine
         }
     }
 
+    /**
+     * Depth charges rarely revisit states, so they go straight to the backing
+     * machine rather than filling the cache with states that are never used
+     * again.
+     */
+    @Override
+    public int[] depthCharge(MachineState state, Random random, int[] goalsOut) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return backingStateMachine.depthCharge(state, random, goalsOut);
+    }
+
+    @Override
+    public long[] depthCharges(MachineState state, Random random, int count, long[] goalTotalsOut) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return backingStateMachine.depthCharges(state, random, count, goalTotalsOut);
+    }
+
     @Override
     public void doPerMoveWork()
     {
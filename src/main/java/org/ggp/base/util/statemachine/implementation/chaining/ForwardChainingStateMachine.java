@@ -0,0 +1,346 @@
+package org.ggp.base.util.statemachine.implementation.chaining;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.model.DependencyGraphs;
+import org.ggp.base.util.gdl.model.SentenceDomainModel;
+import org.ggp.base.util.gdl.model.SentenceDomainModelFactory;
+import org.ggp.base.util.gdl.model.SentenceDomainModelOptimizer;
+import org.ggp.base.util.gdl.model.SentenceForm;
+import org.ggp.base.util.gdl.model.SentenceForms;
+import org.ggp.base.util.gdl.transforms.DeORer;
+import org.ggp.base.util.gdl.transforms.GdlCleaner;
+import org.ggp.base.util.gdl.transforms.VariableConstrainer;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.reasoner.gdl.GdlChainingReasoner;
+import org.ggp.base.util.reasoner.gdl.GdlSentenceSet;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * A state machine that derives everything that is true in a state bottom-up
+ * with a {@link GdlChainingReasoner}, instead of proving each query top-down.
+ * <p>
+ * The sentence forms of the game are split into strata by their dependency
+ * graph, and each stratum is evaluated to a fixpoint before the next one:
+ * one full pass over its rules, then semi-naive passes that only look for
+ * derivations that use a sentence found in the previous pass. Sentences that
+ * are true in every state are derived once, when the machine is initialized.
+ * <p>
+ * For each state, a single pass derives every sentence that depends on the
+ * state but not on moves, which answers the legal, goal and terminal queries
+ * for that state. The result is kept for the most recent state, and next
+ * states are computed from it by adding the joint move and evaluating only
+ * the strata that depend on moves.
+ * <p>
+ * This sits between the prover, which needs no setup but repeats a lot of
+ * work, and the propnet machines, which are much faster but need the whole
+ * grounded game to fit in memory. Instances are not thread-safe.
+ */
+public class ForwardChainingStateMachine extends StateMachine
+{
+    private SentenceDomainModel model;
+    private GdlChainingReasoner reasoner;
+    private ImmutableList<Role> roles;
+    private MachineState initialState;
+    /**
+     * The sentences that are true in every state. This set is shared with
+     * every derived set, and is never modified after initialization.
+     */
+    private GdlSentenceSet constants;
+    /** The strata of forms that depend on the state but not on moves, in dependency order. */
+    private List<Set<SentenceForm>> stateStrata;
+    /** The strata of forms that depend on moves, in dependency order. */
+    private List<Set<SentenceForm>> moveStrata;
+    /** The strata whose rules are recursive, and need semi-naive passes. */
+    private Set<Set<SentenceForm>> recursiveStrata;
+    private Multimap<SentenceForm, SentenceForm> dependencyGraph;
+
+    private List<SentenceForm> legalForms;
+    private List<SentenceForm> goalForms;
+    private List<SentenceForm> terminalForms;
+    private List<SentenceForm> nextForms;
+
+    /** The state whose sentences were derived last, or null. */
+    private MachineState derivedState;
+    private GdlSentenceSet derivedSentences;
+
+    @Override
+    public void initialize(List<Gdl> description)
+    {
+        try {
+            long start = System.currentTimeMillis();
+            description = GdlCleaner.run(description);
+            description = DeORer.run(description);
+            description = VariableConstrainer.replaceFunctionValuedVariables(description);
+            model = SentenceDomainModelOptimizer.restrictDomainsToUsefulValues(SentenceDomainModelFactory.createWithCartesianDomains(description));
+            reasoner = GdlChainingReasoner.create(model);
+            roles = ImmutableList.copyOf(Role.computeRoles(description));
+
+            Set<SentenceForm> forms = model.getSentenceForms();
+            SetMultimap<SentenceForm, SentenceForm> graph = HashMultimap.create(model.getDependencyGraph());
+            dependencyGraph = graph;
+            Set<SentenceForm> constantForms = model.getConstantSentenceForms();
+            Set<SentenceForm> moveDependentForms = DependencyGraphs.getMatchingAndDownstream(forms, graph, SentenceForms.DOES_PRED);
+            Set<SentenceForm> derivedForms = Sets.newHashSet(Sets.difference(forms, constantForms));
+            derivedForms.removeAll(Sets.filter(forms, Predicates.or(SentenceForms.TRUE_PRED, SentenceForms.DOES_PRED)));
+
+            recursiveStrata = new HashSet<Set<SentenceForm>>();
+            constants = reasoner.getConstantSentences();
+            for (Set<SentenceForm> stratum : getStrata(constantForms)) {
+                addRuleResults(constants, stratum);
+            }
+            stateStrata = new ArrayList<Set<SentenceForm>>();
+            moveStrata = new ArrayList<Set<SentenceForm>>();
+            for (Set<SentenceForm> stratum : getStrata(derivedForms)) {
+                if (Sets.intersection(stratum, moveDependentForms).isEmpty()) {
+                    stateStrata.add(stratum);
+                } else {
+                    moveStrata.add(stratum);
+                }
+            }
+
+            legalForms = getFormsNamed(GdlPool.LEGAL);
+            goalForms = getFormsNamed(GdlPool.GOAL);
+            terminalForms = getFormsNamed(GdlPool.TERMINAL);
+            nextForms = getFormsNamed(GdlPool.NEXT);
+            initialState = toState(getSentences(constants, getFormsNamed(GdlPool.INIT)));
+            derivedState = null;
+            derivedSentences = null;
+            GamerLogger.log("StateMachine", "Forward chaining machine has " + stateStrata.size() + " state strata and " + moveStrata.size() + " move strata, set up in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the given forms split into strata, in dependency order, and
+     * records which of those strata are recursive.
+     */
+    private List<Set<SentenceForm>> getStrata(Set<SentenceForm> forms)
+    {
+        Multimap<SentenceForm, SentenceForm> subgraph = ImmutableMultimap.copyOf(
+                Multimaps.filterValues(Multimaps.filterKeys(dependencyGraph, Predicates.in(forms)), Predicates.in(forms)));
+        List<Set<SentenceForm>> strata = DependencyGraphs.toposortSafe(forms, subgraph);
+        for (Set<SentenceForm> stratum : strata) {
+            for (SentenceForm form : stratum) {
+                if (!Sets.intersection(stratum, Sets.newHashSet(subgraph.get(form))).isEmpty()) {
+                    recursiveStrata.add(stratum);
+                }
+            }
+        }
+        return strata;
+    }
+
+    private List<SentenceForm> getFormsNamed(GdlConstant name)
+    {
+        List<SentenceForm> result = new ArrayList<SentenceForm>();
+        for (SentenceForm form : model.getSentenceForms()) {
+            if (form.getName() == name) {
+                result.add(form);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds every sentence that the rules of the given stratum derive from the
+     * given sentences to them, until nothing new can be derived. Only
+     * derivations that use a sentence that was new in the previous pass are
+     * looked for after the first pass.
+     */
+    private void addRuleResults(GdlSentenceSet sentences, Set<SentenceForm> stratum) throws InterruptedException
+    {
+        GdlSentenceSet newSentences = GdlSentenceSet.create();
+        for (SentenceForm form : stratum) {
+            for (GdlRule rule : model.getRules(form)) {
+                GdlSentenceSet ruleResults = reasoner.getRuleResults(rule, model, sentences);
+                if (!reasoner.isSubsetOf(sentences, ruleResults)) {
+                    reasoner.getUnion(sentences, ruleResults);
+                    newSentences = reasoner.getUnion(newSentences, ruleResults);
+                }
+            }
+        }
+        if (!recursiveStrata.contains(stratum)) {
+            return;
+        }
+
+        while (!newSentences.isEmpty()) {
+            GdlSentenceSet newInThisPass = GdlSentenceSet.create();
+            for (SentenceForm form : stratum) {
+                for (GdlRule rule : model.getRules(form)) {
+                    GdlSentenceSet ruleResults = reasoner.getRuleResultsForNewSentences(rule, model, sentences, newSentences);
+                    newInThisPass = reasoner.getUnion(newInThisPass, ruleResults);
+                }
+            }
+            reasoner.getUnion(sentences, newInThisPass);
+            newSentences = newInThisPass;
+        }
+    }
+
+    /**
+     * Returns every sentence that is true in the given state and doesn't
+     * depend on moves, deriving them unless they were derived for the
+     * previous state queried. The result must not be modified.
+     */
+    private GdlSentenceSet getDerivedSentences(MachineState state)
+    {
+        if (state.equals(derivedState)) {
+            return derivedSentences;
+        }
+        try {
+            GdlSentenceSet sentences = GdlSentenceSet.copyOf(constants);
+            for (GdlSentence sentence : state.getContents()) {
+                sentences.put(model.getSentenceForm(sentence), sentence);
+            }
+            for (Set<SentenceForm> stratum : stateStrata) {
+                addRuleResults(sentences, stratum);
+            }
+            derivedState = state;
+            derivedSentences = sentences;
+            return sentences;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<GdlSentence> getSentences(GdlSentenceSet sentences, List<SentenceForm> forms)
+    {
+        List<GdlSentence> result = new ArrayList<GdlSentence>();
+        for (SentenceForm form : forms) {
+            result.addAll(sentences.getSentences(form));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the state in which the arguments of the given init or next
+     * sentences are true.
+     */
+    private static MachineState toState(List<GdlSentence> sentences)
+    {
+        Set<GdlSentence> trues = new HashSet<GdlSentence>();
+        for (GdlSentence sentence : sentences) {
+            trues.add(GdlPool.getRelation(GdlPool.TRUE, new GdlTerm[] { sentence.get(0) }));
+        }
+        return new MachineState(trues);
+    }
+
+    @Override
+    public MachineState getInitialState()
+    {
+        return initialState;
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return roles;
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException
+    {
+        List<Move> moves = getMoves(getSentences(constants, getFormsNamed(GdlPool.INPUT)), role);
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(initialState, role);
+        }
+        return moves;
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        List<Move> moves = getMoves(getSentences(getDerivedSentences(state), legalForms), role);
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(state, role);
+        }
+        return moves;
+    }
+
+    /**
+     * Returns the moves of the given legal or input sentences that belong to
+     * the given role.
+     */
+    private static List<Move> getMoves(List<GdlSentence> sentences, Role role)
+    {
+        List<Move> moves = new ArrayList<Move>();
+        for (GdlSentence sentence : sentences) {
+            if (sentence.get(0) == role.getName()) {
+                moves.add(new Move(sentence.get(1)));
+            }
+        }
+        return moves;
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        return !getSentences(getDerivedSentences(state), terminalForms).isEmpty();
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        int goal = -1;
+        for (GdlSentence sentence : getSentences(getDerivedSentences(state), goalForms)) {
+            if (sentence.get(0) == role.getName()) {
+                if (goal != -1) {
+                    GamerLogger.logError("StateMachine", "Got more than one goal value for " + role + " when expecting one.");
+                    throw new GoalDefinitionException(state, role);
+                }
+                try {
+                    goal = Integer.parseInt(sentence.get(1).toString());
+                } catch (NumberFormatException e) {
+                    throw new GoalDefinitionException(state, role);
+                }
+            }
+        }
+        if (goal == -1) {
+            throw new GoalDefinitionException(state, role);
+        }
+        return goal;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        GdlSentenceSet sentences = GdlSentenceSet.copyOf(getDerivedSentences(state));
+        for (int i = 0; i < roles.size(); i++) {
+            GdlSentence does = GdlPool.getRelation(GdlPool.DOES, new GdlTerm[] { roles.get(i).getName(), moves.get(i).getContents() });
+            sentences.put(model.getSentenceForm(does), does);
+        }
+        try {
+            for (Set<SentenceForm> stratum : moveStrata) {
+                addRuleResults(sentences, stratum);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return toState(getSentences(sentences, nextForms));
+    }
+}
@@ -0,0 +1,315 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+
+/**
+ * A variant of {@link CompiledPropNetStateMachine} that runs batches of
+ * depth charges bit-parallel. Each component holds a 64-bit word instead of
+ * a boolean, with bit <i>l</i> of every word belonging to playout <i>l</i>,
+ * and gates become bitwise operations on their input words. One pass over
+ * the net thus advances 64 independent playouts, each with its own random
+ * joint move.
+ * <p>
+ * Playouts that reach a terminal state drop out of the batch, and the batch
+ * ends when all of them have. With latch optimization on, playouts whose
+ * goals are fixed by latched bases drop out early. Single queries are
+ * answered by the inherited boolean evaluation.
+ * <p>
+ * This class is not thread-safe; see {@link #fork()}.
+ */
+public class BitSlicedPropNetStateMachine extends CompiledPropNetStateMachine
+{
+    /** The number of playouts advanced by each pass over the net. */
+    public static final int LANES = 64;
+
+    /** The value of each component in each playout of the current batch. */
+    private long[] words;
+    /** For the role being moved for, the number of legal moves in each playout. */
+    private final int[] legalCounts = new int[LANES];
+    /** For the role being moved for, the index of the chosen move in each playout. */
+    private final int[] choices = new int[LANES];
+    /** The input propositions that are true in some playout. */
+    private int[] activeInputs;
+    private int numActiveInputs;
+
+    public BitSlicedPropNetStateMachine()
+    {
+    }
+
+    protected BitSlicedPropNetStateMachine(BitSlicedPropNetStateMachine parent)
+    {
+        super(parent);
+        allocate();
+    }
+
+    @Override
+    public void initialize(PropNet propNet)
+    {
+        super.initialize(propNet);
+        allocate();
+    }
+
+    @Override
+    public BitSlicedPropNetStateMachine fork()
+    {
+        return new BitSlicedPropNetStateMachine(this);
+    }
+
+    private void allocate()
+    {
+        // Constants are the same in every playout
+        boolean[] initialValues = net.createValues();
+        words = new long[net.getNumComponents()];
+        for (int c = 0; c < net.getFirstGateId(); c++) {
+            words[c] = initialValues[c] ? -1L : 0L;
+        }
+        activeInputs = new int[net.getNumInputs()];
+        numActiveInputs = 0;
+    }
+
+    /**
+     * Runs the playouts in batches of {@link #LANES}, advancing every
+     * playout of a batch with each pass over the net.
+     */
+    @Override
+    public long[] depthCharges(MachineState state, Random random, int count, long[] goalTotalsOut) throws MoveDefinitionException, GoalDefinitionException
+    {
+        int numRoles = net.getRoles().size();
+        if (goalTotalsOut == null) {
+            goalTotalsOut = new long[numRoles];
+        }
+        Arrays.fill(goalTotalsOut, 0);
+        long[] bits = toPropNetState(state).getBits();
+        for (int done = 0; done < count; done += LANES) {
+            int lanes = Math.min(LANES, count - done);
+            runBatch(bits, lanes == LANES ? -1L : (1L << lanes) - 1, random, goalTotalsOut);
+        }
+        return goalTotalsOut;
+    }
+
+    /**
+     * Plays out the given lanes from the state with the given bits, and adds
+     * their goal values to the totals.
+     */
+    private void runBatch(long[] bits, long active, Random random, long[] goalTotals) throws MoveDefinitionException, GoalDefinitionException
+    {
+        final long[] words = this.words;
+        final int numBases = net.getNumBases();
+        final int numRoles = net.getRoles().size();
+        final int terminalId = net.getTerminalId();
+        final int[] transitionIds = net.getTransitionIds();
+        // A batch that was cut short by an exception may have left inputs set
+        clearInputs();
+        for (int i = 0; i < numBases; i++) {
+            words[i] = (bits[i >> 6] & (1L << i)) != 0 ? -1L : 0L;
+        }
+        propagateWords(net.getFirstGateId(), net.getFirstMoveGateId());
+        while (true) {
+            long finished = active & words[terminalId];
+            if (finished != 0) {
+                addGoals(finished, goalTotals);
+                active &= ~finished;
+            }
+            if (latchBaseIds != null) {
+                long latched = active & getLatchedLanes();
+                if (latched != 0) {
+                    addLatchedGoals(latched, goalTotals);
+                    active &= ~latched;
+                }
+            }
+            if (active == 0) {
+                return;
+            }
+
+            for (int r = 0; r < numRoles; r++) {
+                chooseRandomInputs(r, active, random);
+            }
+            propagateWords(net.getFirstMoveGateId(), net.getNumComponents());
+            clearInputs();
+
+            for (int i = 0; i < numBases; i++) {
+                words[i] = words[transitionIds[i]];
+            }
+            propagateWords(net.getFirstGateId(), net.getFirstMoveGateId());
+        }
+    }
+
+    /**
+     * Picks a uniformly random legal move for the given role in each active
+     * lane, and sets the bit of that lane in the move's input proposition.
+     */
+    private void chooseRandomInputs(int roleIndex, long active, Random random) throws MoveDefinitionException
+    {
+        final long[] words = this.words;
+        final int[] legalIds = net.getLegalIds(roleIndex);
+        final int[] legalInputIds = net.getLegalInputIds(roleIndex);
+        final int[] legalCounts = this.legalCounts;
+        final int[] choices = this.choices;
+        Arrays.fill(legalCounts, 0);
+        for (int i = 0; i < legalIds.length; i++) {
+            long lanes = words[legalIds[i]] & active;
+            while (lanes != 0) {
+                legalCounts[Long.numberOfTrailingZeros(lanes)]++;
+                lanes &= lanes - 1;
+            }
+        }
+        for (long lanes = active; lanes != 0; lanes &= lanes - 1) {
+            int lane = Long.numberOfTrailingZeros(lanes);
+            if (legalCounts[lane] == 0) {
+                throw new MoveDefinitionException(readLaneState(lane), net.getRoles().get(roleIndex));
+            }
+            choices[lane] = random.nextInt(legalCounts[lane]);
+        }
+        for (int i = 0; i < legalIds.length; i++) {
+            long lanes = words[legalIds[i]] & active;
+            while (lanes != 0) {
+                int lane = Long.numberOfTrailingZeros(lanes);
+                if (choices[lane]-- == 0 && legalInputIds[i] >= 0) {
+                    int inputId = legalInputIds[i];
+                    if (words[inputId] == 0L) {
+                        activeInputs[numActiveInputs++] = inputId;
+                    }
+                    words[inputId] |= 1L << lane;
+                }
+                lanes &= lanes - 1;
+            }
+        }
+    }
+
+    private void clearInputs()
+    {
+        for (int i = 0; i < numActiveInputs; i++) {
+            words[activeInputs[i]] = 0L;
+        }
+        numActiveInputs = 0;
+    }
+
+    /**
+     * Adds the goal values of the given finished lanes to the totals,
+     * checking that each role has exactly one goal value in each lane.
+     */
+    private void addGoals(long finished, long[] goalTotals) throws GoalDefinitionException
+    {
+        for (int r = 0; r < goalTotals.length; r++) {
+            int[] goalIds = net.getGoalIds(r);
+            int[] goalValues = net.getGoalValues(r);
+            long seen = 0L;
+            long duplicates = 0L;
+            for (int i = 0; i < goalIds.length; i++) {
+                long lanes = words[goalIds[i]] & finished;
+                duplicates |= seen & lanes;
+                seen |= lanes;
+                goalTotals[r] += (long) goalValues[i] * Long.bitCount(lanes);
+            }
+            long bad = duplicates | (finished & ~seen);
+            if (bad != 0) {
+                throw new GoalDefinitionException(readLaneState(Long.numberOfTrailingZeros(bad)), net.getRoles().get(r));
+            }
+        }
+    }
+
+    /**
+     * Returns the lanes in which the goal latches fix the goals of all roles.
+     */
+    private long getLatchedLanes()
+    {
+        long latched = -1L;
+        for (int r = 0; r < latchBaseIds.length && latched != 0L; r++) {
+            long roleLatched = 0L;
+            for (int i = 0; i < latchBaseIds[r].length; i++) {
+                roleLatched |= getLatchLanes(r, i);
+            }
+            latched &= roleLatched;
+        }
+        return latched;
+    }
+
+    /**
+     * Returns the lanes in which the given goal latch holds.
+     */
+    private long getLatchLanes(int roleIndex, int latchIndex)
+    {
+        int baseId = latchBaseIds[roleIndex][latchIndex];
+        if (baseId == -1) {
+            return -1L;
+        }
+        return latchValues[roleIndex][latchIndex] ? words[baseId] : ~words[baseId];
+    }
+
+    /**
+     * Adds the latched goal values of the given lanes to the totals. Each
+     * lane gets the goal of the first latch that holds in it, like
+     * {@link #readLatchedGoals(int[])} does.
+     */
+    private void addLatchedGoals(long latched, long[] goalTotals)
+    {
+        for (int r = 0; r < goalTotals.length; r++) {
+            long remaining = latched;
+            for (int i = 0; i < latchBaseIds[r].length && remaining != 0L; i++) {
+                long lanes = remaining & getLatchLanes(r, i);
+                goalTotals[r] += (long) latchGoals[r][i] * Long.bitCount(lanes);
+                remaining &= ~lanes;
+            }
+        }
+    }
+
+    /**
+     * Recomputes the words of the components with IDs in [from, to), in order.
+     */
+    private void propagateWords(int from, int to)
+    {
+        final long[] words = this.words;
+        final byte[] types = net.getTypes();
+        final int[] inputOffsets = net.getInputOffsets();
+        final int[] inputs = net.getInputs();
+        for (int c = from; c < to; c++) {
+            int start = inputOffsets[c];
+            int end = inputOffsets[c + 1];
+            long word;
+            switch (types[c]) {
+            case CompiledPropNet.TYPE_AND:
+                word = -1L;
+                for (int i = start; i < end && word != 0L; i++) {
+                    word &= words[inputs[i]];
+                }
+                break;
+            case CompiledPropNet.TYPE_OR:
+                word = 0L;
+                for (int i = start; i < end && word != -1L; i++) {
+                    word |= words[inputs[i]];
+                }
+                break;
+            case CompiledPropNet.TYPE_NOT:
+                word = ~words[inputs[start]];
+                break;
+            default:
+                // Propositions and transitions copy their single input
+                word = words[inputs[start]];
+                break;
+            }
+            words[c] = word;
+        }
+    }
+
+    /**
+     * Reads the current state of one lane off the bases, for error reporting.
+     */
+    private MachineState readLaneState(int lane)
+    {
+        int numBases = net.getNumBases();
+        long[] bits = new long[PropNetMachineState.getNumWords(numBases)];
+        for (int i = 0; i < numBases; i++) {
+            if ((words[i] & (1L << lane)) != 0) {
+                bits[i >> 6] |= 1L << i;
+            }
+        }
+        return new PropNetMachineState(bits, net.getBaseSentences());
+    }
+}
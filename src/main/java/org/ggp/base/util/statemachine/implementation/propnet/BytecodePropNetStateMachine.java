@@ -0,0 +1,92 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import javassist.CannotCompileException;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.PropNet;
+
+/**
+ * A {@link CompiledPropNetStateMachine} that evaluates its net with a class
+ * generated at runtime by {@link PropNetBytecodeCompiler}, rather than by
+ * interpreting the component arrays. The generated code is straight-line
+ * and branch-predictable, which lets the JIT compile it into something
+ * close to a hand-written evaluator for the game.
+ * <p>
+ * If the net can't be compiled (for instance, if javassist fails on the
+ * generated code), this machine logs the reason and falls back to the
+ * interpreter it inherits.
+ * <p>
+ * This class is not thread-safe; see {@link #fork()}.
+ */
+public class BytecodePropNetStateMachine extends CompiledPropNetStateMachine
+{
+    private PropNetEvaluator evaluator;
+
+    public BytecodePropNetStateMachine()
+    {
+    }
+
+    protected BytecodePropNetStateMachine(BytecodePropNetStateMachine parent)
+    {
+        super(parent);
+        evaluator = parent.evaluator;
+    }
+
+    @Override
+    public void initialize(PropNet propNet)
+    {
+        evaluator = null;
+        super.initialize(propNet);
+        long start = System.currentTimeMillis();
+        try {
+            evaluator = PropNetBytecodeCompiler.compile(getCompiledPropNet());
+            GamerLogger.log("StateMachine", "Compiled propnet with " + getCompiledPropNet().getNumComponents() + " components to bytecode in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (CannotCompileException e) {
+            GamerLogger.logError("StateMachine", "Could not compile propnet to bytecode, falling back to the interpreter: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // The javassist compiler can fail in unexpected ways on very large
+            // inputs; the interpreter is always a safe fallback.
+            GamerLogger.logError("StateMachine", "Could not compile propnet to bytecode, falling back to the interpreter.");
+            GamerLogger.logStackTrace("StateMachine", e);
+        }
+    }
+
+    /**
+     * Returns a fork that shares this machine's generated evaluator, which
+     * holds no state of its own.
+     */
+    @Override
+    public BytecodePropNetStateMachine fork()
+    {
+        return new BytecodePropNetStateMachine(this);
+    }
+
+    /**
+     * Returns true if this machine is running generated code, and false if
+     * it fell back to the interpreter.
+     */
+    public boolean isUsingGeneratedCode()
+    {
+        return evaluator != null;
+    }
+
+    @Override
+    protected void propagateState()
+    {
+        if (evaluator == null) {
+            super.propagateState();
+        } else {
+            evaluator.propagateState(values);
+        }
+    }
+
+    @Override
+    protected void propagateMoves()
+    {
+        if (evaluator == null) {
+            super.propagateMoves();
+        } else {
+            evaluator.propagateMoves(values);
+        }
+    }
+}
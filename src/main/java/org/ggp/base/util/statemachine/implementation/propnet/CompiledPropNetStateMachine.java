@@ -0,0 +1,666 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * A propnet-based state machine that evaluates a {@link CompiledPropNet}.
+ * All component values live in a single boolean array, and a state is
+ * evaluated with one loop over the components in topological order, with
+ * no virtual calls and no per-query allocation beyond the results.
+ * <p>
+ * The machine remembers which state its values currently reflect, so
+ * consecutive queries on the same state (e.g. isTerminal, getLegalMoves
+ * and then getNextState) only propagate once. Components that depend on
+ * moves are only evaluated when computing a next state.
+ * <p>
+ * The compiled net itself is immutable, and only the value arrays are
+ * specific to a machine. Instances are not thread-safe, but {@link #fork()}
+ * cheaply creates a machine that shares the net and the initial state with
+ * this one and can be used from another thread, and
+ * {@link #getThreadLocalMachine()} hands each calling thread its own fork.
+ *
+ * @see DifferentialPropNetStateMachine
+ */
+public class CompiledPropNetStateMachine extends StateMachine
+{
+    protected CompiledPropNet net;
+    protected boolean[] values;
+    private MachineState initialState;
+
+    /** The state whose values are currently propagated, or null. */
+    protected PropNetMachineState loadedState;
+    /** The IDs of the input propositions that are currently set to true. */
+    private int[] activeInputs;
+    private int numActiveInputs;
+    /** Scratch space for the input IDs of the joint moves of a depth charge. */
+    private int[] jointMoveInputs;
+
+    /** Where to load built propnets from, or null to always build them. */
+    private PropNetCache propNetCache;
+    /** Whether to shrink propnets with a {@link LatchAnalysis} before compiling them. */
+    private boolean optimizeLatches;
+
+    /**
+     * For each role, the bases whose values fix its goal (or -1 for goals
+     * that are fixed from the start), the values they must have and the
+     * goals they fix. Null unless every role has a goal latch.
+     */
+    protected int[][] latchBaseIds;
+    protected boolean[][] latchValues;
+    protected int[][] latchGoals;
+
+    /** Forks of this machine, one per thread that asked for one. */
+    private ThreadLocal<CompiledPropNetStateMachine> threadLocalMachines;
+
+    public CompiledPropNetStateMachine()
+    {
+    }
+
+    /**
+     * Creates a machine for the same net as the given initialized machine,
+     * with its own value buffers. Only immutable parts of the given machine
+     * are read, so this is safe to call while it is in use on another thread.
+     */
+    protected CompiledPropNetStateMachine(CompiledPropNetStateMachine parent)
+    {
+        net = parent.net;
+        initialState = parent.initialState;
+        latchBaseIds = parent.latchBaseIds;
+        latchValues = parent.latchValues;
+        latchGoals = parent.latchGoals;
+        values = net.createValues();
+        activeInputs = new int[net.getRoles().size()];
+        numActiveInputs = 0;
+        jointMoveInputs = new int[net.getRoles().size()];
+        loadedState = null;
+        threadLocalMachines = createThreadLocalMachines();
+    }
+
+    @Override
+    public void initialize(List<Gdl> description)
+    {
+        try {
+            long start = System.currentTimeMillis();
+            PropNet propNet = propNetCache == null ? OptimizingPropNetFactory.create(description) : propNetCache.getPropNet(description);
+            GamerLogger.log("StateMachine", "Got propnet with " + propNet.getSize() + " components in " + (System.currentTimeMillis() - start) + " ms");
+            initialize(propNet);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Makes {@link #initialize(List)} load the propnet from the given cache,
+     * and store it there if it isn't cached yet. Pass null to always build
+     * propnets from scratch, which is the default.
+     */
+    public void setPropNetCache(PropNetCache propNetCache)
+    {
+        this.propNetCache = propNetCache;
+    }
+
+    /**
+     * Makes {@link #initialize(PropNet)} run a {@link LatchAnalysis} on the
+     * propnet first. Components that are constant in every reachable state
+     * are then folded away, and depth charges stop as soon as latched bases
+     * fix every role's goal. The propnet is modified in place, and states
+     * may leave out bases that the analysis removed. This is off by default.
+     */
+    public void setOptimizeLatches(boolean optimizeLatches)
+    {
+        this.optimizeLatches = optimizeLatches;
+    }
+
+    /**
+     * Initializes the state machine from an already-built PropNet.
+     */
+    public void initialize(PropNet propNet)
+    {
+        LatchAnalysis latches = optimizeLatches ? LatchAnalysis.optimize(propNet) : null;
+        net = new CompiledPropNet(propNet);
+        if (latches != null) {
+            compileGoalLatches(latches.getGoalLatches());
+        } else {
+            latchBaseIds = null;
+            latchValues = null;
+            latchGoals = null;
+        }
+        values = net.createValues();
+        activeInputs = new int[net.getRoles().size()];
+        numActiveInputs = 0;
+        jointMoveInputs = new int[net.getRoles().size()];
+        loadedState = null;
+        initialState = computeInitialState();
+        threadLocalMachines = createThreadLocalMachines();
+    }
+
+    /**
+     * Returns a new machine for the same game that shares this machine's
+     * compiled net, and only allocates its own value buffers. The fork is
+     * already initialized, and behaves exactly like this machine. Its states
+     * are interchangeable with this machine's.
+     * <p>
+     * This is safe to call from any thread once this machine is initialized.
+     * Subclasses must override this to return an instance of their own type.
+     */
+    public CompiledPropNetStateMachine fork()
+    {
+        return new CompiledPropNetStateMachine(this);
+    }
+
+    /**
+     * Returns a fork of this machine that is private to the calling thread,
+     * creating it on the first call from each thread. Worker threads can use
+     * this to share one compiled net without coordinating.
+     */
+    public CompiledPropNetStateMachine getThreadLocalMachine()
+    {
+        return threadLocalMachines.get();
+    }
+
+    /**
+     * Sorts the given goal latches by role, skipping those whose base is no
+     * longer part of the net. Latches are only kept if every role has one.
+     */
+    private void compileGoalLatches(List<LatchAnalysis.GoalLatch> goalLatches)
+    {
+        int numRoles = net.getRoles().size();
+        List<List<LatchAnalysis.GoalLatch>> byRole = new ArrayList<List<LatchAnalysis.GoalLatch>>();
+        for (int r = 0; r < numRoles; r++) {
+            byRole.add(new ArrayList<LatchAnalysis.GoalLatch>());
+        }
+        for (LatchAnalysis.GoalLatch latch : goalLatches) {
+            if (latch.getBase() == null || net.getBaseIndices().containsKey(latch.getBase())) {
+                byRole.get(latch.getRoleIndex()).add(latch);
+            }
+        }
+        latchBaseIds = new int[numRoles][];
+        latchValues = new boolean[numRoles][];
+        latchGoals = new int[numRoles][];
+        for (int r = 0; r < numRoles; r++) {
+            List<LatchAnalysis.GoalLatch> latches = byRole.get(r);
+            if (latches.isEmpty()) {
+                latchBaseIds = null;
+                latchValues = null;
+                latchGoals = null;
+                return;
+            }
+            latchBaseIds[r] = new int[latches.size()];
+            latchValues[r] = new boolean[latches.size()];
+            latchGoals[r] = new int[latches.size()];
+            for (int i = 0; i < latches.size(); i++) {
+                LatchAnalysis.GoalLatch latch = latches.get(i);
+                latchBaseIds[r][i] = latch.getBase() == null ? -1 : net.getBaseIndices().get(latch.getBase());
+                latchValues[r][i] = latch.getValue();
+                latchGoals[r][i] = latch.getGoal();
+            }
+        }
+    }
+
+    private ThreadLocal<CompiledPropNetStateMachine> createThreadLocalMachines()
+    {
+        return new ThreadLocal<CompiledPropNetStateMachine>() {
+            @Override
+            protected CompiledPropNetStateMachine initialValue() {
+                return fork();
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled propnet this machine evaluates.
+     */
+    public CompiledPropNet getCompiledPropNet()
+    {
+        return net;
+    }
+
+    /**
+     * Computes the initial state by setting INIT to true and propagating it
+     * through its fan-out cone only. Components outside of that cone keep
+     * their default values, so next-state rules that would fire from an
+     * empty state (e.g. "(next x) if not (true y)") don't leak into the
+     * initial state.
+     */
+    private MachineState computeInitialState()
+    {
+        int initId = net.getInitId();
+        if (initId >= 0) {
+            boolean[] inCone = new boolean[net.getNumComponents()];
+            int[] outputOffsets = net.getOutputOffsets();
+            int[] outputs = net.getOutputs();
+            int[] stack = new int[net.getNumComponents()];
+            int stackSize = 0;
+            stack[stackSize++] = initId;
+            while (stackSize > 0) {
+                int c = stack[--stackSize];
+                for (int i = outputOffsets[c]; i < outputOffsets[c + 1]; i++) {
+                    int out = outputs[i];
+                    if (out >= net.getFirstGateId() && !inCone[out]) {
+                        inCone[out] = true;
+                        stack[stackSize++] = out;
+                    }
+                }
+            }
+            values[initId] = true;
+            for (int c = net.getFirstGateId(); c < net.getNumComponents(); c++) {
+                if (inCone[c]) {
+                    propagate(c, c + 1);
+                }
+            }
+        }
+        MachineState state = readTransitions();
+        values = net.createValues();
+        loadedState = null;
+        return state;
+    }
+
+    @Override
+    public MachineState getInitialState()
+    {
+        return initialState;
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return net.getRoles();
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        loadState(state);
+        return readTerminal();
+    }
+
+    /**
+     * Returns whether the loaded state is terminal.
+     */
+    private boolean readTerminal()
+    {
+        int terminalId = net.getTerminalId();
+        evaluate(terminalId);
+        return values[terminalId];
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        loadState(state);
+        int value = readGoal(getRoleIndices().get(role));
+        if (value == -1) {
+            throw new GoalDefinitionException(state, role);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the goal value of the given role in the loaded state, or -1 if
+     * the role doesn't have exactly one goal value.
+     */
+    private int readGoal(int roleIndex)
+    {
+        int[] goalIds = net.getGoalIds(roleIndex);
+        int[] goalValues = net.getGoalValues(roleIndex);
+        evaluate(goalIds);
+        int value = -1;
+        for (int i = 0; i < goalIds.length; i++) {
+            if (values[goalIds[i]]) {
+                if (value != -1) {
+                    return -1;
+                }
+                value = goalValues[i];
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException
+    {
+        return Arrays.asList(net.getLegalMoves(getRoleIndices().get(role)));
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        loadState(state);
+        int roleIndex = getRoleIndices().get(role);
+        int[] legalIds = net.getLegalIds(roleIndex);
+        Move[] legalMoves = net.getLegalMoves(roleIndex);
+        evaluate(legalIds);
+        List<Move> moves = new ArrayList<Move>();
+        for (int i = 0; i < legalIds.length; i++) {
+            if (values[legalIds[i]]) {
+                moves.add(legalMoves[i]);
+            }
+        }
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(state, role);
+        }
+        return moves;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        loadState(state);
+        int[] inputIds = new int[moves.size()];
+        for (int r = 0; r < moves.size(); r++) {
+            inputIds[r] = net.getInputId(r, moves.get(r));
+        }
+        setInputs(inputIds);
+        propagateMoves();
+        return readNextState();
+    }
+
+    /**
+     * Plays out the game from the given state entirely within this machine's
+     * value array. Random legal moves are picked by index straight from the
+     * legal propositions, and each next state is copied from the transitions
+     * onto the bases without ever being materialized, so nothing is allocated
+     * per ply. With latch optimization on, the playout stops early once the
+     * latched bases fix every role's goal.
+     */
+    @Override
+    public int[] depthCharge(MachineState state, Random random, int[] goalsOut) throws MoveDefinitionException, GoalDefinitionException
+    {
+        loadState(state);
+        List<Role> roles = net.getRoles();
+        int numRoles = roles.size();
+        int[] jointMoveInputs = this.jointMoveInputs;
+        if (goalsOut == null) {
+            goalsOut = new int[numRoles];
+        }
+        while (!readTerminal()) {
+            if (latchBaseIds != null && readLatchedGoals(goalsOut)) {
+                return goalsOut;
+            }
+            for (int r = 0; r < numRoles; r++) {
+                jointMoveInputs[r] = chooseRandomInput(r, random);
+            }
+            setInputs(jointMoveInputs);
+            propagateMoves();
+            loadNextState();
+        }
+        for (int r = 0; r < numRoles; r++) {
+            goalsOut[r] = readGoal(r);
+            if (goalsOut[r] == -1) {
+                throw new GoalDefinitionException(readCurrentState(), roles.get(r));
+            }
+        }
+        return goalsOut;
+    }
+
+    /**
+     * Writes the goal each role will get to the given array, if the goal
+     * latches that hold in the loaded state fix the goals of all roles.
+     *
+     * @return whether every role's goal is fixed
+     */
+    protected boolean readLatchedGoals(int[] goalsOut)
+    {
+        for (int r = 0; r < latchBaseIds.length; r++) {
+            int goal = readLatchedGoal(r);
+            if (goal == -1) {
+                return false;
+            }
+            goalsOut[r] = goal;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the goal that a latch which holds in the loaded state fixes
+     * for the given role, or -1 if there is none.
+     */
+    private int readLatchedGoal(int roleIndex)
+    {
+        int[] baseIds = latchBaseIds[roleIndex];
+        boolean[] latchValues = this.latchValues[roleIndex];
+        for (int i = 0; i < baseIds.length; i++) {
+            if (baseIds[i] == -1 || values[baseIds[i]] == latchValues[i]) {
+                return latchGoals[roleIndex][i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Picks a uniformly random legal move for the given role in the loaded
+     * state, and returns the ID of its input proposition (or -1 if it has
+     * none).
+     */
+    private int chooseRandomInput(int roleIndex, Random random) throws MoveDefinitionException
+    {
+        int[] legalIds = net.getLegalIds(roleIndex);
+        evaluate(legalIds);
+        int numLegal = 0;
+        for (int i = 0; i < legalIds.length; i++) {
+            if (values[legalIds[i]]) {
+                numLegal++;
+            }
+        }
+        if (numLegal == 0) {
+            throw new MoveDefinitionException(readCurrentState(), net.getRoles().get(roleIndex));
+        }
+        int choice = random.nextInt(numLegal);
+        for (int i = 0; ; i++) {
+            if (values[legalIds[i]] && choice-- == 0) {
+                return net.getLegalInputIds(roleIndex)[i];
+            }
+        }
+    }
+
+    @Override
+    public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+    {
+        return PropNetMachineState.fromContents(sentenceList, net.getBaseSentences(), net.getBaseIndices());
+    }
+
+    protected PropNetMachineState toPropNetState(MachineState state)
+    {
+        if (state instanceof PropNetMachineState && ((PropNetMachineState) state).hasLayout(net.getBaseSentences())) {
+            return (PropNetMachineState) state;
+        }
+        return PropNetMachineState.fromContents(state.getContents(), net.getBaseSentences(), net.getBaseIndices());
+    }
+
+    /**
+     * Sets the base propositions to the given state and propagates every
+     * component that doesn't depend on moves, unless that state is already
+     * loaded.
+     */
+    protected void loadState(MachineState state)
+    {
+        PropNetMachineState propNetState = toPropNetState(state);
+        if (propNetState.equals(loadedState)) {
+            return;
+        }
+        long[] bits = propNetState.getBits();
+        boolean[] values = this.values;
+        int numBases = net.getNumBases();
+        for (int i = 0; i < numBases; i++) {
+            values[i] = (bits[i >> 6] & (1L << i)) != 0;
+        }
+        propagateState();
+        loadedState = propNetState;
+    }
+
+    /**
+     * Sets exactly the given input propositions to true, ignoring IDs of -1.
+     * This doesn't propagate the inputs.
+     */
+    protected void setInputs(int[] inputIds)
+    {
+        for (int i = 0; i < numActiveInputs; i++) {
+            values[activeInputs[i]] = false;
+        }
+        numActiveInputs = 0;
+        for (int inputId : inputIds) {
+            if (inputId >= 0) {
+                values[inputId] = true;
+                activeInputs[numActiveInputs++] = inputId;
+            }
+        }
+    }
+
+    /**
+     * Copies the values of the transitions onto the bases, and propagates the
+     * resulting state. The moves must already have been propagated.
+     */
+    protected void loadNextState()
+    {
+        int[] transitionIds = net.getTransitionIds();
+        evaluate(transitionIds);
+        for (int i = 0; i < transitionIds.length; i++) {
+            values[i] = values[transitionIds[i]];
+        }
+        loadedState = null;
+        propagateState();
+    }
+
+    /**
+     * Recomputes the values of every component that doesn't depend on moves.
+     */
+    protected void propagateState()
+    {
+        propagate(net.getFirstGateId(), net.getFirstMoveGateId());
+    }
+
+    /**
+     * Recomputes the values of every component that depends on moves. The
+     * state components must already be up to date.
+     */
+    protected void propagateMoves()
+    {
+        propagate(net.getFirstMoveGateId(), net.getNumComponents());
+    }
+
+    /**
+     * Makes sure the value of the given component is up to date before it is
+     * read. Every value is already up to date after propagation, so this
+     * does nothing by default; machines that evaluate lazily override it.
+     */
+    protected void evaluate(int id)
+    {
+    }
+
+    /**
+     * Makes sure the values of the given components are up to date before
+     * they are read.
+     */
+    protected void evaluate(int[] ids)
+    {
+    }
+
+    /**
+     * Recomputes the values of the components with IDs in [from, to), in order.
+     */
+    protected void propagate(int from, int to)
+    {
+        final boolean[] values = this.values;
+        final byte[] types = net.getTypes();
+        final int[] inputOffsets = net.getInputOffsets();
+        final int[] inputs = net.getInputs();
+        for (int c = from; c < to; c++) {
+            int start = inputOffsets[c];
+            int end = inputOffsets[c + 1];
+            boolean value;
+            switch (types[c]) {
+            case CompiledPropNet.TYPE_AND:
+                value = true;
+                for (int i = start; i < end; i++) {
+                    if (!values[inputs[i]]) {
+                        value = false;
+                        break;
+                    }
+                }
+                break;
+            case CompiledPropNet.TYPE_OR:
+                value = false;
+                for (int i = start; i < end; i++) {
+                    if (values[inputs[i]]) {
+                        value = true;
+                        break;
+                    }
+                }
+                break;
+            case CompiledPropNet.TYPE_NOT:
+                value = !values[inputs[start]];
+                break;
+            default:
+                // Propositions and transitions copy their single input
+                value = values[inputs[start]];
+                break;
+            }
+            values[c] = value;
+        }
+    }
+
+    /**
+     * Reads the current state off the bases.
+     */
+    protected PropNetMachineState readCurrentState()
+    {
+        int numBases = net.getNumBases();
+        long[] bits = new long[PropNetMachineState.getNumWords(numBases)];
+        for (int i = 0; i < numBases; i++) {
+            if (values[i]) {
+                bits[i >> 6] |= 1L << i;
+            }
+        }
+        return new PropNetMachineState(bits, net.getBaseSentences(), PropNetMachineState.computeLongHash(bits, net.getBaseKeys()));
+    }
+
+    /**
+     * Reads the next state off the transitions.
+     */
+    protected PropNetMachineState readNextState()
+    {
+        evaluate(net.getTransitionIds());
+        return readTransitions();
+    }
+
+    /**
+     * Reads a state off the transitions. If a state is loaded, the hash of
+     * the new state is derived from its hash and the bases that flipped.
+     */
+    private PropNetMachineState readTransitions()
+    {
+        int[] transitionIds = net.getTransitionIds();
+        long[] bits = new long[PropNetMachineState.getNumWords(transitionIds.length)];
+        for (int i = 0; i < transitionIds.length; i++) {
+            if (values[transitionIds[i]]) {
+                bits[i >> 6] |= 1L << i;
+            }
+        }
+        long hash;
+        if (loadedState != null) {
+            hash = PropNetMachineState.updateLongHash(loadedState.longHash(), loadedState.getBits(), bits, net.getBaseKeys());
+        } else {
+            hash = PropNetMachineState.computeLongHash(bits, net.getBaseKeys());
+        }
+        return new PropNetMachineState(bits, net.getBaseSentences(), hash);
+    }
+}
@@ -0,0 +1,278 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.statemachine.MachineState;
+
+/**
+ * A variant of {@link CompiledPropNetStateMachine} that propagates changes
+ * instead of re-evaluating the whole net on every new state.
+ * <p>
+ * The values of every component are kept consistent with the current base
+ * and input propositions at all times. Each And and Or gate also keeps a
+ * count of its true inputs, so that it can update its value in constant
+ * time when one of them flips. When a different state or joint move is
+ * loaded, only the bases and inputs that actually changed are flipped, and
+ * the changes are pushed through their fan-out until values stop changing.
+ * <p>
+ * This makes the cost of a query proportional to how much of the net is
+ * affected by the difference from the previous query, which is small for
+ * consecutive states of a depth charge. Loading an unrelated state can be
+ * more expensive than a full forward pass, since a component may change
+ * more than once before its value settles.
+ * <p>
+ * This class is not thread-safe; see {@link #fork()}.
+ */
+public class DifferentialPropNetStateMachine extends CompiledPropNetStateMachine
+{
+    /** For each And and Or gate, the number of its inputs that are true. */
+    private int[] trueInputs;
+    /**
+     * The bits of the bases as they are currently set in the values. This
+     * is either the bits of the loaded state, or {@link #scratchBits}.
+     */
+    private long[] currentBits;
+    /** The bits of the bases during a depth charge, which has no states. */
+    private long[] scratchBits;
+    /** The IDs of the input propositions that are currently set to true. */
+    private int[] currentInputs;
+    private int numCurrentInputs;
+    /**
+     * Components whose value changed and whose outputs haven't been updated
+     * yet. Each entry is the ID of the component if it became true, or the
+     * complement of the ID if it became false.
+     */
+    private int[] changes;
+    private int numChanges;
+
+    /**
+     * The values and true input counts of the net with every base and input
+     * false, which forks start from. These are never modified.
+     */
+    private boolean[] emptyValues;
+    private int[] emptyTrueInputs;
+
+    public DifferentialPropNetStateMachine()
+    {
+    }
+
+    protected DifferentialPropNetStateMachine(DifferentialPropNetStateMachine parent)
+    {
+        super(parent);
+        emptyValues = parent.emptyValues;
+        emptyTrueInputs = parent.emptyTrueInputs;
+        resetToEmpty();
+    }
+
+    @Override
+    public void initialize(PropNet propNet)
+    {
+        super.initialize(propNet);
+
+        // Start from a consistent evaluation of the net with every base and
+        // input false, and count the true inputs of each gate.
+        CompiledPropNet net = this.net;
+        int numComponents = net.getNumComponents();
+        propagate(net.getFirstGateId(), numComponents);
+        byte[] types = net.getTypes();
+        int[] inputOffsets = net.getInputOffsets();
+        int[] inputs = net.getInputs();
+        int[] trueInputs = new int[numComponents];
+        for (int c = net.getFirstGateId(); c < numComponents; c++) {
+            if (types[c] == CompiledPropNet.TYPE_AND || types[c] == CompiledPropNet.TYPE_OR) {
+                int count = 0;
+                for (int i = inputOffsets[c]; i < inputOffsets[c + 1]; i++) {
+                    if (values[inputs[i]]) {
+                        count++;
+                    }
+                }
+                trueInputs[c] = count;
+            }
+        }
+        emptyValues = values.clone();
+        emptyTrueInputs = trueInputs;
+        resetToEmpty();
+    }
+
+    @Override
+    public DifferentialPropNetStateMachine fork()
+    {
+        return new DifferentialPropNetStateMachine(this);
+    }
+
+    /**
+     * Sets every value to its value when all bases and inputs are false.
+     */
+    private void resetToEmpty()
+    {
+        values = emptyValues.clone();
+        trueInputs = emptyTrueInputs.clone();
+        loadedState = null;
+        currentBits = new long[PropNetMachineState.getNumWords(net.getNumBases())];
+        scratchBits = new long[currentBits.length];
+        currentInputs = new int[net.getRoles().size()];
+        numCurrentInputs = 0;
+        changes = new int[Math.max(16, net.getNumComponents())];
+        numChanges = 0;
+    }
+
+    /**
+     * Flips the bases that differ between the given state and the currently
+     * loaded one, and propagates the changes.
+     */
+    @Override
+    protected void loadState(MachineState state)
+    {
+        PropNetMachineState propNetState = toPropNetState(state);
+        if (propNetState.equals(loadedState)) {
+            return;
+        }
+        long[] bits = propNetState.getBits();
+        long[] currentBits = this.currentBits;
+        for (int word = 0; word < bits.length; word++) {
+            long flipped = bits[word] ^ currentBits[word];
+            while (flipped != 0) {
+                int bit = Long.numberOfTrailingZeros(flipped);
+                int base = (word << 6) + bit;
+                set(base, (bits[word] & (1L << bit)) != 0);
+                flipped &= flipped - 1;
+            }
+        }
+        this.currentBits = bits;
+        propagateChanges();
+        loadedState = propNetState;
+    }
+
+    /**
+     * Turns off the inputs that aren't part of the given joint move, and
+     * turns on the ones that aren't already on.
+     */
+    @Override
+    protected void setInputs(int[] inputIds)
+    {
+        for (int i = 0; i < numCurrentInputs; i++) {
+            int input = currentInputs[i];
+            boolean stillActive = false;
+            for (int inputId : inputIds) {
+                if (inputId == input) {
+                    stillActive = true;
+                    break;
+                }
+            }
+            if (!stillActive) {
+                set(input, false);
+            }
+        }
+        numCurrentInputs = 0;
+        for (int inputId : inputIds) {
+            if (inputId >= 0) {
+                if (!values[inputId]) {
+                    set(inputId, true);
+                }
+                currentInputs[numCurrentInputs++] = inputId;
+            }
+        }
+    }
+
+    /**
+     * Flips the bases whose transitions differ from them, and propagates the
+     * changes.
+     */
+    @Override
+    protected void loadNextState()
+    {
+        // The current bits may belong to a state, which must not be modified
+        if (currentBits != scratchBits) {
+            System.arraycopy(currentBits, 0, scratchBits, 0, scratchBits.length);
+            currentBits = scratchBits;
+        }
+        int[] transitionIds = net.getTransitionIds();
+        for (int i = 0; i < transitionIds.length; i++) {
+            boolean value = values[transitionIds[i]];
+            if (value != values[i]) {
+                set(i, value);
+                scratchBits[i >> 6] ^= 1L << i;
+            }
+        }
+        loadedState = null;
+        propagateChanges();
+    }
+
+    @Override
+    protected void propagateState()
+    {
+        propagateChanges();
+    }
+
+    @Override
+    protected void propagateMoves()
+    {
+        propagateChanges();
+    }
+
+    /**
+     * Sets the value of a component and queues its outputs for updating.
+     */
+    private void set(int id, boolean value)
+    {
+        values[id] = value;
+        if (numChanges == changes.length) {
+            changes = Arrays.copyOf(changes, changes.length * 2);
+        }
+        changes[numChanges++] = value ? id : ~id;
+    }
+
+    /**
+     * Pushes every queued change through the net until no more values change.
+     * <p>
+     * And and Or gates are updated from the queued change itself, since
+     * their counters must see every flip of every input exactly once. Other
+     * gates have a single input, and are simply recomputed from its current
+     * value.
+     */
+    private void propagateChanges()
+    {
+        final boolean[] values = this.values;
+        final int[] trueInputs = this.trueInputs;
+        final byte[] types = net.getTypes();
+        final int[] inputOffsets = net.getInputOffsets();
+        final int[] inputs = net.getInputs();
+        final int[] outputOffsets = net.getOutputOffsets();
+        final int[] outputs = net.getOutputs();
+        final int firstGateId = net.getFirstGateId();
+        while (numChanges > 0) {
+            int change = changes[--numChanges];
+            boolean rising = change >= 0;
+            int c = rising ? change : ~change;
+            for (int i = outputOffsets[c]; i < outputOffsets[c + 1]; i++) {
+                int out = outputs[i];
+                if (out < firstGateId) {
+                    // Transitions feed bases, which only change between states
+                    continue;
+                }
+                boolean value;
+                switch (types[out]) {
+                case CompiledPropNet.TYPE_AND:
+                    trueInputs[out] += rising ? 1 : -1;
+                    value = trueInputs[out] == inputOffsets[out + 1] - inputOffsets[out];
+                    break;
+                case CompiledPropNet.TYPE_OR:
+                    trueInputs[out] += rising ? 1 : -1;
+                    value = trueInputs[out] > 0;
+                    break;
+                case CompiledPropNet.TYPE_NOT:
+                    value = !values[inputs[inputOffsets[out]]];
+                    break;
+                default:
+                    value = values[inputs[inputOffsets[out]]];
+                    break;
+                }
+                if (value != values[out]) {
+                    set(out, value);
+                }
+            }
+        }
+    }
+}
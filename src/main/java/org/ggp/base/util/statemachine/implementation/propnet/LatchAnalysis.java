@@ -0,0 +1,603 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * Finds the base propositions of a propnet that can never change again once
+ * they have a certain value, and the components that are decided by them.
+ * <p>
+ * A positive latch is a base that stays true once it is true, and a
+ * negative latch one that stays false once it is false. An invariant is a
+ * base that keeps its initial value forever. Candidates are collected by
+ * playing random games, and then proven with three-valued propagation
+ * through the transitions: a base is a positive latch if setting it to
+ * true, with every other base and input unknown, makes its transition true.
+ * Invariants are proven together, as the largest set of candidates whose
+ * initial values reproduce themselves. Every gate whose value is decided
+ * by the invariants alone is constant in every reachable state.
+ * <p>
+ * {@link #optimize(PropNet)} feeds the results back into the propnet, by
+ * replacing constant components with {@link Constant}s and lopping off the
+ * cones that no longer matter. The goal latches, i.e. latches that decide a
+ * role's goal value once set, let depth charges stop as soon as every role's
+ * outcome is fixed; see {@link CompiledPropNetStateMachine#setOptimizeLatches}.
+ */
+public final class LatchAnalysis
+{
+    /** The number of random games played to find candidates by default. */
+    public static final int DEFAULT_PLAYOUTS = 100;
+    /** The time after which no more random games are started by default. */
+    public static final long DEFAULT_SIMULATION_MILLIS = 1000;
+
+    private static final byte UNKNOWN = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+
+    /**
+     * A latch that fixes the goal value of a role: once the base has the
+     * given value, the role will get the given goal when the game ends.
+     */
+    public static final class GoalLatch
+    {
+        private final GdlSentence base;
+        private final boolean value;
+        private final int roleIndex;
+        private final int goal;
+
+        GoalLatch(GdlSentence base, boolean value, int roleIndex, int goal)
+        {
+            this.base = base;
+            this.value = value;
+            this.roleIndex = roleIndex;
+            this.goal = goal;
+        }
+
+        /**
+         * Returns the name of the latched base, or null if the goal is
+         * fixed from the start of the game.
+         */
+        public GdlSentence getBase()
+        {
+            return base;
+        }
+
+        /** Returns the value the base is latched at. */
+        public boolean getValue()
+        {
+            return value;
+        }
+
+        public int getRoleIndex()
+        {
+            return roleIndex;
+        }
+
+        public int getGoal()
+        {
+            return goal;
+        }
+
+        @Override
+        public String toString()
+        {
+            return (base == null ? "always" : (value ? "" : "not ") + base) + " => role " + roleIndex + " gets " + goal;
+        }
+    }
+
+    private final PropNet propNet;
+    private final Component[] byId;
+    private final Map<Component, Integer> ids;
+    /** The position of each non-source component in the topological order. */
+    private final int[] positions;
+    private final List<Component> ordering;
+    private final Proposition[] bases;
+    /** For each component, its index in bases, or -1. */
+    private final int[] baseIndices;
+    private final boolean[] isInput;
+    private final byte[] values;
+
+    private final Map<Proposition, Boolean> invariants = new HashMap<Proposition, Boolean>();
+    private final Set<Proposition> positiveLatches = new HashSet<Proposition>();
+    private final Set<Proposition> negativeLatches = new HashSet<Proposition>();
+    private final Map<Component, Boolean> constants = new HashMap<Component, Boolean>();
+    private final List<GoalLatch> goalLatches = new ArrayList<GoalLatch>();
+
+    private LatchAnalysis(PropNet propNet)
+    {
+        this.propNet = propNet;
+        byId = propNet.getComponents().toArray(new Component[propNet.getComponents().size()]);
+        ids = new HashMap<Component, Integer>(byId.length * 2);
+        for (int i = 0; i < byId.length; i++) {
+            ids.put(byId[i], i);
+        }
+        bases = propNet.getBasePropositions().values().toArray(new Proposition[propNet.getBasePropositions().size()]);
+        baseIndices = new int[byId.length];
+        Arrays.fill(baseIndices, -1);
+        for (int b = 0; b < bases.length; b++) {
+            baseIndices[ids.get(bases[b])] = b;
+        }
+        isInput = new boolean[byId.length];
+        for (Proposition input : propNet.getInputPropositions().values()) {
+            isInput[ids.get(input)] = true;
+        }
+        Set<Component> sources = new HashSet<Component>(Arrays.asList(bases));
+        sources.addAll(propNet.getInputPropositions().values());
+        ordering = propNet.getTopologicalOrdering(sources);
+        positions = new int[byId.length];
+        for (int i = 0; i < ordering.size(); i++) {
+            positions[ids.get(ordering.get(i))] = i;
+        }
+        values = new byte[byId.length];
+    }
+
+    /**
+     * Analyzes the given propnet, with the default simulation budget.
+     */
+    public static LatchAnalysis analyze(PropNet propNet)
+    {
+        return analyze(propNet, DEFAULT_PLAYOUTS, DEFAULT_SIMULATION_MILLIS, new Random());
+    }
+
+    /**
+     * Analyzes the given propnet, which isn't modified. Candidates are
+     * collected from up to the given number of random games, played for up
+     * to the given time; everything reported is proven regardless.
+     */
+    public static LatchAnalysis analyze(PropNet propNet, int maxPlayouts, long maxMillis, Random random)
+    {
+        long start = System.currentTimeMillis();
+        LatchAnalysis analysis = new LatchAnalysis(propNet);
+        boolean[][] candidates = analysis.simulate(maxPlayouts, start + maxMillis, random);
+        analysis.proveInvariants(candidates[0], candidates[1]);
+        analysis.proveLatches(candidates[2], candidates[3]);
+        analysis.findConstants();
+        analysis.findGoalLatches();
+        GamerLogger.log("StateMachine", "Latch analysis found " + analysis.invariants.size() + " invariant bases, " + analysis.positiveLatches.size() + " positive and "
+                + analysis.negativeLatches.size() + " negative latches, " + analysis.constants.size() + " constant components and " + analysis.goalLatches.size() + " goal latches in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return analysis;
+    }
+
+    /**
+     * Analyzes the given propnet, then replaces its constant components with
+     * constants and removes the components that no longer affect play. Like
+     * {@link OptimizingPropNetFactory#lopUselessLeaves(PropNet)}, this may
+     * remove base propositions, so states of the optimized propnet may leave
+     * out sentences that never change or don't matter.
+     *
+     * @return the analysis, whose goal latches still apply to the optimized
+     * propnet
+     */
+    public static LatchAnalysis optimize(PropNet propNet)
+    {
+        LatchAnalysis analysis = analyze(propNet);
+        int sizeBefore = propNet.getSize();
+        OptimizingPropNetFactory.replaceWithConstants(propNet, analysis.constants);
+        OptimizingPropNetFactory.lopUselessLeaves(propNet);
+        GamerLogger.log("StateMachine", "Latch optimization shrank propnet from " + sizeBefore + " to " + propNet.getSize() + " components");
+        return analysis;
+    }
+
+    /**
+     * Returns the bases that keep their initial value in every reachable
+     * state, with that value.
+     */
+    public Map<Proposition, Boolean> getInvariants()
+    {
+        return Collections.unmodifiableMap(invariants);
+    }
+
+    /** Returns the bases that stay true once they are true, other than invariants. */
+    public Set<Proposition> getPositiveLatches()
+    {
+        return Collections.unmodifiableSet(positiveLatches);
+    }
+
+    /** Returns the bases that stay false once they are false, other than invariants. */
+    public Set<Proposition> getNegativeLatches()
+    {
+        return Collections.unmodifiableSet(negativeLatches);
+    }
+
+    /**
+     * Returns the components that have the same value in every reachable
+     * state, and can safely be replaced with that value.
+     */
+    public Map<Component, Boolean> getConstants()
+    {
+        return Collections.unmodifiableMap(constants);
+    }
+
+    /** Returns the latches that fix a role's goal value. */
+    public List<GoalLatch> getGoalLatches()
+    {
+        return Collections.unmodifiableList(goalLatches);
+    }
+
+    /**
+     * Plays random games, and returns which bases never changed, which
+     * never went from true to false and which never went from false to
+     * true. The initial values are returned first.
+     */
+    private boolean[][] simulate(int maxPlayouts, long deadline, Random random)
+    {
+        CompiledPropNetStateMachine machine = new CompiledPropNetStateMachine();
+        machine.initialize(propNet);
+        Map<GdlSentence, Integer> ordinals = machine.getCompiledPropNet().getBaseIndices();
+        int[] ordinalOf = new int[bases.length];
+        for (int b = 0; b < bases.length; b++) {
+            ordinalOf[b] = ordinals.get(bases[b].getName());
+        }
+
+        PropNetMachineState initialState = (PropNetMachineState) machine.getInitialState();
+        boolean[] initialValues = new boolean[bases.length];
+        boolean[] unchanged = new boolean[bases.length];
+        boolean[] neverFell = new boolean[bases.length];
+        boolean[] neverRose = new boolean[bases.length];
+        for (int b = 0; b < bases.length; b++) {
+            initialValues[b] = initialState.get(ordinalOf[b]);
+        }
+        Arrays.fill(unchanged, true);
+        Arrays.fill(neverFell, true);
+        Arrays.fill(neverRose, true);
+        try {
+            for (int playout = 0; playout < maxPlayouts && System.currentTimeMillis() < deadline; playout++) {
+                PropNetMachineState state = initialState;
+                while (!machine.isTerminal(state)) {
+                    PropNetMachineState next = (PropNetMachineState) machine.getRandomNextState(state);
+                    for (int b = 0; b < bases.length; b++) {
+                        boolean before = state.get(ordinalOf[b]);
+                        boolean after = next.get(ordinalOf[b]);
+                        if (before != after) {
+                            unchanged[b] = false;
+                            if (before) {
+                                neverFell[b] = false;
+                            } else {
+                                neverRose[b] = false;
+                            }
+                        }
+                    }
+                    state = next;
+                }
+            }
+        } catch (Exception e) {
+            // The proofs don't depend on the candidates being complete
+            GamerLogger.logStackTrace("StateMachine", e);
+        }
+        for (int b = 0; b < bases.length; b++) {
+            if (!unchanged[b]) {
+                // Only invariant candidates need their initial value
+                initialValues[b] = false;
+            }
+        }
+        return new boolean[][] { unchanged, initialValues, neverFell, neverRose };
+    }
+
+    /**
+     * Finds the largest set of candidates that keep their initial values
+     * whenever all of them have their initial values. Afterwards, values
+     * holds what every component is known to be in every reachable state.
+     */
+    private void proveInvariants(boolean[] candidates, boolean[] initialValues)
+    {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = 0; b < bases.length; b++) {
+                values[ids.get(bases[b])] = candidates[b] ? (initialValues[b] ? TRUE : FALSE) : UNKNOWN;
+            }
+            for (Component c : ordering) {
+                int id = ids.get(c);
+                values[id] = evaluate(id);
+            }
+            for (int b = 0; b < bases.length; b++) {
+                if (candidates[b] && values[ids.get(bases[b])] != values[ids.get(bases[b].getSingleInput())]) {
+                    candidates[b] = false;
+                    changed = true;
+                }
+            }
+        }
+        for (int b = 0; b < bases.length; b++) {
+            if (candidates[b]) {
+                invariants.put(bases[b], initialValues[b]);
+            }
+        }
+    }
+
+    /**
+     * Proves each latch candidate on its own, assuming only the invariants.
+     * The values of the non-invariant bases are left unknown.
+     */
+    private void proveLatches(boolean[] positiveCandidates, boolean[] negativeCandidates)
+    {
+        byte[] stateValues = values.clone();
+        for (int b = 0; b < bases.length; b++) {
+            if (invariants.containsKey(bases[b]) || !(positiveCandidates[b] || negativeCandidates[b])) {
+                continue;
+            }
+            int baseId = ids.get(bases[b]);
+            int transitionId = ids.get(bases[b].getSingleInput());
+            int[] cone = collectCone(Collections.singleton(transitionId));
+            if (positiveCandidates[b] && evaluateWith(baseId, TRUE, cone, transitionId) == TRUE) {
+                positiveLatches.add(bases[b]);
+            }
+            if (negativeCandidates[b] && evaluateWith(baseId, FALSE, cone, transitionId) == FALSE) {
+                negativeLatches.add(bases[b]);
+            }
+        }
+        System.arraycopy(stateValues, 0, values, 0, values.length);
+    }
+
+    /**
+     * Sets the given base to the given value, evaluates the given cone, and
+     * returns the value of the given component. The base is reset to unknown
+     * afterwards.
+     */
+    private byte evaluateWith(int baseId, byte baseValue, int[] cone, int resultId)
+    {
+        values[baseId] = baseValue;
+        for (int id : cone) {
+            values[id] = evaluate(id);
+        }
+        values[baseId] = UNKNOWN;
+        return values[resultId];
+    }
+
+    /**
+     * Records every component that the invariants decide, except for those
+     * that computing the initial state relies on: the state machines only
+     * evaluate the components that INIT feeds, with every other gate false,
+     * so none of those may change, and no gate outside that cone that feeds
+     * it may turn true.
+     */
+    private void findConstants()
+    {
+        boolean[] inInitCone = new boolean[byId.length];
+        Proposition init = propNet.getInitProposition();
+        if (init != null) {
+            int[] stack = new int[byId.length];
+            int stackSize = 0;
+            stack[stackSize++] = ids.get(init);
+            inInitCone[ids.get(init)] = true;
+            while (stackSize > 0) {
+                int id = stack[--stackSize];
+                if (baseIndices[id] >= 0) {
+                    continue;
+                }
+                for (Component output : byId[id].getOutputs()) {
+                    int outputId = ids.get(output);
+                    if (!inInitCone[outputId]) {
+                        inInitCone[outputId] = true;
+                        stack[stackSize++] = outputId;
+                    }
+                }
+            }
+        }
+
+        boolean[] isProtected = inInitCone.clone();
+        int[] stack = new int[byId.length];
+        int stackSize = 0;
+        for (int id = 0; id < byId.length; id++) {
+            if (!inInitCone[id] && values[id] == TRUE) {
+                for (Component output : byId[id].getOutputs()) {
+                    if (inInitCone[ids.get(output)] && baseIndices[ids.get(output)] < 0) {
+                        isProtected[id] = true;
+                        stack[stackSize++] = id;
+                        break;
+                    }
+                }
+            }
+        }
+        // Folding a decided input could decide a protected gate, so protect
+        // the decided gates it depends on as well
+        while (stackSize > 0) {
+            int id = stack[--stackSize];
+            if (baseIndices[id] >= 0) {
+                continue;
+            }
+            for (Component input : byId[id].getInputs()) {
+                int inputId = ids.get(input);
+                if (!isProtected[inputId] && values[inputId] != UNKNOWN) {
+                    isProtected[inputId] = true;
+                    stack[stackSize++] = inputId;
+                }
+            }
+        }
+
+        for (int id = 0; id < byId.length; id++) {
+            Component c = byId[id];
+            if (values[id] != UNKNOWN && !isProtected[id] && !(c instanceof Constant) && (baseIndices[id] >= 0 || !isSource(c))
+                    && !(c.getOutputs().size() == 1 && baseIndices[ids.get(c.getSingleOutput())] >= 0)) {
+                constants.put(c, values[id] == TRUE);
+            }
+        }
+    }
+
+    /**
+     * Finds the goals that are fixed from the start, and the latches that
+     * fix a goal on their own.
+     */
+    private void findGoalLatches()
+    {
+        List<Role> roles = propNet.getRoles();
+        Set<Integer> goalIds = new HashSet<Integer>();
+        for (Set<Proposition> goals : propNet.getGoalPropositions().values()) {
+            for (Proposition goal : goals) {
+                goalIds.add(ids.get(goal));
+            }
+        }
+        boolean[] fixedRoles = new boolean[roles.size()];
+        for (int r = 0; r < roles.size(); r++) {
+            int goal = getDecidedGoal(roles.get(r));
+            if (goal >= 0) {
+                fixedRoles[r] = true;
+                goalLatches.add(new GoalLatch(null, true, r, goal));
+            }
+        }
+
+        int[] cone = collectCone(goalIds);
+        List<Proposition> latches = new ArrayList<Proposition>(positiveLatches);
+        latches.addAll(negativeLatches);
+        for (Proposition latch : latches) {
+            boolean latchValue = positiveLatches.contains(latch);
+            int baseId = ids.get(latch);
+            values[baseId] = latchValue ? TRUE : FALSE;
+            for (int id : cone) {
+                values[id] = evaluate(id);
+            }
+            for (int r = 0; r < roles.size(); r++) {
+                int goal = getDecidedGoal(roles.get(r));
+                if (goal >= 0 && !fixedRoles[r]) {
+                    goalLatches.add(new GoalLatch(latch.getName(), latchValue, r, goal));
+                }
+            }
+            values[baseId] = UNKNOWN;
+        }
+        for (int id : cone) {
+            values[id] = evaluate(id);
+        }
+    }
+
+    /**
+     * Returns the goal value of the only goal proposition of the given role
+     * that is currently known to be true, or -1 if there isn't exactly one.
+     */
+    private int getDecidedGoal(Role role)
+    {
+        int goal = -1;
+        Set<Proposition> goals = propNet.getGoalPropositions().get(role);
+        if (goals == null) {
+            return -1;
+        }
+        for (Proposition p : goals) {
+            if (values[ids.get(p)] == TRUE) {
+                if (goal >= 0) {
+                    return -1;
+                }
+                GdlRelation relation = (GdlRelation) p.getName();
+                goal = Integer.parseInt(((GdlConstant) relation.get(1)).getValue());
+            }
+        }
+        return goal;
+    }
+
+    /**
+     * Returns the IDs of the non-source components the given components
+     * depend on, including themselves, in topological order.
+     */
+    private int[] collectCone(Set<Integer> roots)
+    {
+        boolean[] visited = new boolean[byId.length];
+        int[] stack = new int[byId.length];
+        int stackSize = 0;
+        List<Integer> cone = new ArrayList<Integer>();
+        for (int root : roots) {
+            visited[root] = true;
+            stack[stackSize++] = root;
+        }
+        while (stackSize > 0) {
+            int id = stack[--stackSize];
+            if (isSource(byId[id])) {
+                continue;
+            }
+            cone.add(id);
+            for (Component input : byId[id].getInputs()) {
+                int inputId = ids.get(input);
+                if (!visited[inputId]) {
+                    visited[inputId] = true;
+                    stack[stackSize++] = inputId;
+                }
+            }
+        }
+        int[] sorted = new int[cone.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = cone.get(i);
+        }
+        // Order by position in the topological ordering
+        long[] keyed = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            keyed[i] = ((long) positions[sorted[i]] << 32) | sorted[i];
+        }
+        Arrays.sort(keyed);
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = (int) keyed[i];
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns true if the value of the given component isn't computed from
+     * its inputs, i.e. if it is a base, an input or has no inputs at all.
+     */
+    private boolean isSource(Component c)
+    {
+        int id = ids.get(c);
+        return baseIndices[id] >= 0 || isInput[id] || c.getInputs().isEmpty();
+    }
+
+    /**
+     * Computes the three-valued value of the given component from the values
+     * of its inputs. Bases keep whatever value they were assigned. Inputs
+     * are unknown, since the analysis covers every joint move, while INIT
+     * is false, since it is only true when computing the initial state.
+     */
+    private byte evaluate(int id)
+    {
+        Component c = byId[id];
+        if (baseIndices[id] >= 0) {
+            return values[id];
+        } else if (c instanceof Constant) {
+            return c.getValue() ? TRUE : FALSE;
+        } else if (c instanceof Not) {
+            byte input = values[ids.get(c.getSingleInput())];
+            return input == TRUE ? FALSE : input == FALSE ? TRUE : UNKNOWN;
+        } else if (c instanceof And) {
+            byte value = TRUE;
+            for (Component input : c.getInputs()) {
+                byte inputValue = values[ids.get(input)];
+                if (inputValue == FALSE) {
+                    return FALSE;
+                } else if (inputValue == UNKNOWN) {
+                    value = UNKNOWN;
+                }
+            }
+            return value;
+        } else if (c.getInputs().isEmpty()) {
+            return isInput[id] ? UNKNOWN : FALSE;
+        } else {
+            // Or gates, and propositions and transitions, which copy their
+            // input (propositions with several inputs are read as an Or)
+            byte value = FALSE;
+            for (Component input : c.getInputs()) {
+                byte inputValue = values[ids.get(input)];
+                if (inputValue == TRUE) {
+                    return TRUE;
+                } else if (inputValue == UNKNOWN) {
+                    value = UNKNOWN;
+                }
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.PropNet;
+
+/**
+ * A variant of {@link CompiledPropNetStateMachine} that evaluates components
+ * on demand. Loading a state or a joint move doesn't propagate anything;
+ * instead, each query computes only the backward cone of the propositions
+ * it reads, and And and Or gates stop evaluating their inputs as soon as
+ * their value is decided.
+ * <p>
+ * Computed values are memoized until the next change of state or moves.
+ * Rather than clearing the memo, each gate records the generation in which
+ * its value was computed, and a gate's value is current if that matches the
+ * current generation. Gates that don't depend on moves have a separate
+ * generation, so that their values survive a change of joint move.
+ * <p>
+ * This pays off when queries only look at a small part of the net, e.g.
+ * terminal checks in games with huge goal circuits. When every legal and
+ * transition is read anyway, as in a depth charge, full propagation is
+ * usually faster.
+ * <p>
+ * This class is not thread-safe; see {@link #fork()}.
+ */
+public class LazyPropNetStateMachine extends CompiledPropNetStateMachine
+{
+    /** The generation in which each gate's value was last computed. */
+    private int[] generations;
+    /** The generation of the current state, for gates that don't depend on moves. */
+    private int stateGeneration;
+    /** The generation of the current state and moves, for gates that do. */
+    private int moveGeneration;
+    /** The last generation handed out. */
+    private int lastGeneration;
+
+    /** Copies of the net's boundaries between sources, state gates and move gates. */
+    private int firstGateId;
+    private int firstMoveGateId;
+
+    /** The gates being evaluated, each an input of the one below it. */
+    private int[] stack;
+    /** For each gate on the stack, the position of the next input to examine. */
+    private int[] nextInputs;
+
+    public LazyPropNetStateMachine()
+    {
+    }
+
+    protected LazyPropNetStateMachine(LazyPropNetStateMachine parent)
+    {
+        super(parent);
+        allocate();
+    }
+
+    @Override
+    public void initialize(PropNet propNet)
+    {
+        super.initialize(propNet);
+        allocate();
+    }
+
+    @Override
+    public LazyPropNetStateMachine fork()
+    {
+        return new LazyPropNetStateMachine(this);
+    }
+
+    private void allocate()
+    {
+        int numComponents = net.getNumComponents();
+        firstGateId = net.getFirstGateId();
+        firstMoveGateId = net.getFirstMoveGateId();
+        generations = new int[numComponents];
+        stack = new int[numComponents];
+        nextInputs = new int[numComponents];
+        lastGeneration = 0;
+        stateGeneration = nextGeneration();
+        moveGeneration = stateGeneration;
+    }
+
+    /**
+     * Returns a new generation, which no gate has been computed in.
+     */
+    private int nextGeneration()
+    {
+        if (lastGeneration == Integer.MAX_VALUE) {
+            // Start over, making sure old stamps can't match new generations
+            Arrays.fill(generations, 0);
+            lastGeneration = 0;
+        }
+        return ++lastGeneration;
+    }
+
+    /**
+     * Invalidates every gate, since the bases have changed.
+     */
+    @Override
+    protected void propagateState()
+    {
+        stateGeneration = nextGeneration();
+        moveGeneration = stateGeneration;
+    }
+
+    /**
+     * Invalidates the gates that depend on moves, since the inputs have
+     * changed.
+     */
+    @Override
+    protected void propagateMoves()
+    {
+        moveGeneration = nextGeneration();
+    }
+
+    private boolean isCurrent(int id)
+    {
+        return id < firstGateId
+                || generations[id] == (id < firstMoveGateId ? stateGeneration : moveGeneration);
+    }
+
+    @Override
+    protected void evaluate(int[] ids)
+    {
+        for (int id : ids) {
+            evaluate(id);
+        }
+    }
+
+    /**
+     * Computes the value of the given component and whatever part of its
+     * backward cone that takes, without recursion.
+     */
+    @Override
+    protected void evaluate(int id)
+    {
+        if (isCurrent(id)) {
+            return;
+        }
+        final boolean[] values = this.values;
+        final byte[] types = net.getTypes();
+        final int[] inputOffsets = net.getInputOffsets();
+        final int[] inputs = net.getInputs();
+        final int[] stack = this.stack;
+        final int[] nextInputs = this.nextInputs;
+        int stackSize = 0;
+        stack[stackSize++] = id;
+        nextInputs[id] = inputOffsets[id];
+        while (stackSize > 0) {
+            int c = stack[stackSize - 1];
+            int end = inputOffsets[c + 1];
+            byte type = types[c];
+            // For And and Or, the input value that decides the gate
+            boolean decisive = type == CompiledPropNet.TYPE_OR;
+            boolean value = !decisive;
+            int i = nextInputs[c];
+            for (; i < end; i++) {
+                int in = inputs[i];
+                if (!isCurrent(in)) {
+                    break;
+                }
+                if (type == CompiledPropNet.TYPE_AND || type == CompiledPropNet.TYPE_OR) {
+                    if (values[in] == decisive) {
+                        value = decisive;
+                        i = end;
+                        break;
+                    }
+                } else {
+                    // Propositions, transitions and nots have a single input
+                    value = type == CompiledPropNet.TYPE_NOT ? !values[in] : values[in];
+                }
+            }
+            if (i < end) {
+                // Evaluate the input first, then come back to this gate
+                nextInputs[c] = i;
+                int in = inputs[i];
+                stack[stackSize++] = in;
+                nextInputs[in] = inputOffsets[in];
+                continue;
+            }
+            values[c] = value;
+            generations[c] = c < firstMoveGateId ? stateGeneration : moveGeneration;
+            stackSize--;
+        }
+    }
+}
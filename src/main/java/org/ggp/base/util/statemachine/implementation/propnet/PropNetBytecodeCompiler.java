@@ -0,0 +1,274 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+
+/**
+ * Generates a {@link PropNetEvaluator} class for a specific
+ * {@link CompiledPropNet} using javassist. Every component becomes a single
+ * assignment over the value array, e.g. <tt>v[12] = v[3] &amp;&amp; v[5];</tt>,
+ * so evaluating the net involves no loops, switches or edge lookups.
+ * <p>
+ * The JVM refuses methods over 64KB of bytecode, and HotSpot won't JIT
+ * methods over 8KB by default, so the code is split into many small methods
+ * that are called in order. Gates with a very large number of inputs are
+ * split across several statements for the same reason.
+ * <p>
+ * Component IDs above 32767 are loaded from the constant pool, which a class
+ * can only have 65535 entries in. To compile nets of any size, the methods
+ * are spread over as many segment classes as it takes to keep the number of
+ * distinct IDs in each one under {@link #MAX_IDS_PER_CLASS}; the evaluator
+ * calls each segment in turn.
+ */
+public final class PropNetBytecodeCompiler
+{
+    /**
+     * The number of input reads to put in each generated method. Each read
+     * costs roughly 12 bytes of bytecode, which keeps methods well under
+     * HotSpot's default limit for JIT compilation.
+     */
+    private static final int READS_PER_METHOD = 500;
+    /** The number of inputs to combine in a single expression. */
+    private static final int READS_PER_STATEMENT = 32;
+    /**
+     * The most distinct component IDs a segment class may refer to. This
+     * leaves room in the constant pool for the names and references to the
+     * class's methods.
+     */
+    static final int MAX_IDS_PER_CLASS = 30000;
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    private PropNetBytecodeCompiler() {
+    }
+
+    /**
+     * Generates, loads and instantiates an evaluator for the given net.
+     *
+     * @throws CannotCompileException if javassist fails to compile or load
+     * the generated code.
+     */
+    public static PropNetEvaluator compile(CompiledPropNet net) throws CannotCompileException
+    {
+        return compile(net, MAX_IDS_PER_CLASS);
+    }
+
+    /**
+     * Generates an evaluator whose segment classes each refer to at most the
+     * given number of distinct component IDs.
+     */
+    static PropNetEvaluator compile(CompiledPropNet net, int maxIdsPerClass) throws CannotCompileException
+    {
+        String className = PropNetEvaluator.class.getName() + "$Generated" + classCounter.incrementAndGet();
+        ClassPool pool = new ClassPool(true);
+        pool.insertClassPath(new ClassClassPath(PropNetEvaluator.class));
+        EvaluatorClassLoader loader = new EvaluatorClassLoader(PropNetEvaluator.class.getClassLoader());
+        List<CtClass> classes = new ArrayList<CtClass>();
+        try {
+            List<String> stateSegments = addSegments(pool, loader, classes, className + "$S", net, net.getFirstGateId(), net.getFirstMoveGateId(), maxIdsPerClass);
+            List<String> moveSegments = addSegments(pool, loader, classes, className + "$M", net, net.getFirstMoveGateId(), net.getNumComponents(), maxIdsPerClass);
+
+            CtClass ctClass = pool.makeClass(className);
+            classes.add(ctClass);
+            ctClass.setSuperclass(pool.get(PropNetEvaluator.class.getName()));
+            ctClass.addConstructor(CtNewConstructor.defaultConstructor(ctClass));
+            addCallingMethod(ctClass, "public void propagateState", stateSegments);
+            addCallingMethod(ctClass, "public void propagateMoves", moveSegments);
+            Class<?> evaluatorClass = loader.define(className, ctClass.toBytecode());
+            return (PropNetEvaluator) evaluatorClass.getDeclaredConstructor().newInstance();
+        } catch (NotFoundException e) {
+            throw new CannotCompileException(e);
+        } catch (java.io.IOException e) {
+            throw new CannotCompileException(e);
+        } catch (InvocationTargetException e) {
+            // The generated constructor threw; report what it threw
+            throw new CannotCompileException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new CannotCompileException(e);
+        } catch (ClassFormatError e) {
+            throw new CannotCompileException(e);
+        } finally {
+            for (CtClass ctClass : classes) {
+                ctClass.detach();
+            }
+        }
+    }
+
+    /**
+     * Generates and loads the segment classes that compute the components
+     * with IDs in [from, to), and returns the calls to make to run them in
+     * order.
+     */
+    private static List<String> addSegments(ClassPool pool, EvaluatorClassLoader loader, List<CtClass> classes, String namePrefix, CompiledPropNet net, int from, int to, int maxIdsPerClass) throws CannotCompileException, java.io.IOException
+    {
+        List<String> segmentCalls = new ArrayList<String>();
+        List<String> helpers = new ArrayList<String>();
+        Set<Integer> ids = new HashSet<Integer>();
+        StringBuilder body = new StringBuilder();
+        int reads = 0;
+        for (int c = from; c < to; c++) {
+            Set<Integer> componentIds = getIds(net, c);
+            componentIds.removeAll(ids);
+            if (!ids.isEmpty() && ids.size() + componentIds.size() > maxIdsPerClass) {
+                if (body.length() > 0) {
+                    helpers.add(body.toString());
+                    body.setLength(0);
+                    reads = 0;
+                }
+                segmentCalls.add(defineSegment(pool, loader, classes, namePrefix + segmentCalls.size(), helpers));
+                helpers.clear();
+                ids.clear();
+            }
+            ids.addAll(componentIds);
+            reads += appendComponent(body, net, c);
+            if (reads >= READS_PER_METHOD) {
+                helpers.add(body.toString());
+                body.setLength(0);
+                reads = 0;
+            }
+        }
+        if (body.length() > 0) {
+            helpers.add(body.toString());
+        }
+        if (!helpers.isEmpty()) {
+            segmentCalls.add(defineSegment(pool, loader, classes, namePrefix + segmentCalls.size(), helpers));
+        }
+        return segmentCalls;
+    }
+
+    /**
+     * Returns the IDs of the given component and its inputs.
+     */
+    private static Set<Integer> getIds(CompiledPropNet net, int c)
+    {
+        int[] inputOffsets = net.getInputOffsets();
+        int[] inputs = net.getInputs();
+        Set<Integer> ids = new HashSet<Integer>();
+        ids.add(c);
+        for (int i = inputOffsets[c]; i < inputOffsets[c + 1]; i++) {
+            ids.add(inputs[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * Generates and loads a class with a static method for each of the given
+     * bodies, and a static <tt>propagate</tt> method that calls them in
+     * order. Returns the call to that method.
+     */
+    private static String defineSegment(ClassPool pool, EvaluatorClassLoader loader, List<CtClass> classes, String className, List<String> helperBodies) throws CannotCompileException, java.io.IOException
+    {
+        CtClass ctClass = pool.makeClass(className);
+        classes.add(ctClass);
+        List<String> helperCalls = new ArrayList<String>();
+        for (String helperBody : helperBodies) {
+            String helperName = "h" + helperCalls.size();
+            ctClass.addMethod(CtNewMethod.make("private static void " + helperName + "(boolean[] v) {\n" + helperBody + "}", ctClass));
+            helperCalls.add(helperName);
+        }
+        addCallingMethod(ctClass, "public static void propagate", helperCalls);
+        loader.define(className, ctClass.toBytecode());
+        return className + ".propagate";
+    }
+
+    /**
+     * Adds a method with the given modifiers and name that calls each of the
+     * given methods with its value array, in order.
+     */
+    private static void addCallingMethod(CtClass ctClass, String declaration, List<String> calls) throws CannotCompileException
+    {
+        StringBuilder method = new StringBuilder();
+        method.append(declaration).append("(boolean[] v) {\n");
+        for (String call : calls) {
+            method.append(call).append("(v);\n");
+        }
+        method.append("}");
+        ctClass.addMethod(CtNewMethod.make(method.toString(), ctClass));
+    }
+
+    /**
+     * Appends the statements that compute component <tt>c</tt>, and returns
+     * the number of input values they read.
+     */
+    private static int appendComponent(StringBuilder body, CompiledPropNet net, int c)
+    {
+        int[] inputOffsets = net.getInputOffsets();
+        int[] inputs = net.getInputs();
+        int start = inputOffsets[c];
+        int end = inputOffsets[c + 1];
+        switch (net.getTypes()[c]) {
+        case CompiledPropNet.TYPE_AND:
+            appendJunction(body, c, inputs, start, end, " && ", "true", "if (v[" + c + "]) ");
+            break;
+        case CompiledPropNet.TYPE_OR:
+            appendJunction(body, c, inputs, start, end, " || ", "false", "if (!v[" + c + "]) ");
+            break;
+        case CompiledPropNet.TYPE_NOT:
+            body.append("v[").append(c).append("] = !v[").append(inputs[start]).append("];\n");
+            break;
+        default:
+            // Propositions and transitions copy their single input
+            body.append("v[").append(c).append("] = v[").append(inputs[start]).append("];\n");
+            break;
+        }
+        return Math.max(1, end - start);
+    }
+
+    /**
+     * Appends an And or Or over the given inputs. Inputs beyond the first
+     * {@link #READS_PER_STATEMENT} are combined in further statements that
+     * only run if the result is still undecided.
+     */
+    private static void appendJunction(StringBuilder body, int c, int[] inputs, int start, int end, String operator, String emptyValue, String undecidedGuard)
+    {
+        if (start == end) {
+            body.append("v[").append(c).append("] = ").append(emptyValue).append(";\n");
+            return;
+        }
+        for (int chunkStart = start; chunkStart < end; chunkStart += READS_PER_STATEMENT) {
+            int chunkEnd = Math.min(end, chunkStart + READS_PER_STATEMENT);
+            if (chunkStart > start) {
+                body.append(undecidedGuard);
+            }
+            body.append("v[").append(c).append("] = ");
+            for (int i = chunkStart; i < chunkEnd; i++) {
+                if (i > chunkStart) {
+                    body.append(operator);
+                }
+                body.append("v[").append(inputs[i]).append("]");
+            }
+            body.append(";\n");
+        }
+    }
+
+    /**
+     * Defines the classes generated for one net. Using a fresh loader per
+     * net lets them be unloaded once its state machine is no longer in use.
+     */
+    private static final class EvaluatorClassLoader extends ClassLoader
+    {
+        public EvaluatorClassLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        public Class<?> define(String name, byte[] bytecode)
+        {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+}
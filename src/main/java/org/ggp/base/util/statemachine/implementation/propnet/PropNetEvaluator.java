@@ -0,0 +1,26 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+/**
+ * Straight-line evaluation code for one specific propnet, generated at
+ * runtime by {@link PropNetBytecodeCompiler}. Each method computes the
+ * value of a range of components from the values of their inputs, in the
+ * same order as {@link CompiledPropNetStateMachine} would.
+ * <p>
+ * This class is public so that generated subclasses, which are defined in
+ * their own class loader, can extend it. Implementations hold no state, so
+ * a single instance can be shared between threads.
+ */
+public abstract class PropNetEvaluator
+{
+    /**
+     * Computes every component that doesn't depend on moves, which includes
+     * every legal, goal and terminal proposition.
+     */
+    public abstract void propagateState(boolean[] values);
+
+    /**
+     * Computes every component that depends on moves, which includes every
+     * transition feeding the next state.
+     */
+    public abstract void propagateMoves(boolean[] values);
+}
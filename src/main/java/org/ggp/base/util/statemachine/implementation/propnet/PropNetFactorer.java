@@ -0,0 +1,507 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+
+/**
+ * Splits a propnet into independent subgames, or factors, as described in
+ * "Factoring General Games using Propositional Automata" by Evan Cox et al.
+ * <p>
+ * Factors are the connected components of a graph over the base and input
+ * propositions. A base is linked to every base and input its transition
+ * depends on, an input to every base its legal proposition depends on, and
+ * the bases within each disjunct of the terminal proposition are linked to
+ * one another. Bases that no move can ever affect, such as step counters
+ * and turn markers, link nothing: they are shared by every factor, along
+ * with the inputs that don't belong to any factor (e.g. noops). Goals are
+ * left out of the analysis; they are how the factors' results combine.
+ * <p>
+ * Each factor is returned as a standalone propnet for the same roles. In it,
+ * the bases of the other factors are frozen at their initial values, and
+ * their moves are still legal but have no effect, so it plays like the full
+ * game in which moves elsewhere just pass. Keeping those moves means no role
+ * runs out of legal moves in a factor, e.g. when moves in different factors
+ * take turns being legal. Searching the factors separately and picking the
+ * best move among them is then much cheaper than searching the product of
+ * their state spaces.
+ * <p>
+ * All traversals use explicit stacks, so arbitrarily deep nets are fine.
+ */
+public final class PropNetFactorer
+{
+    private final PropNet propNet;
+    private final Component[] byId;
+    private final Map<Component, Integer> ids;
+    private final Proposition[] bases;
+    private final Proposition[] inputs;
+    /** For each component, the node that stands for it if it's a base or input, or -1. */
+    private final int[] nodes;
+    /** The union-find forest over base nodes, then input nodes. */
+    private final int[] parents;
+    /** For each base node, whether some move can affect the base. */
+    private final boolean[] dependsOnMoves;
+
+    /** Marks the components visited by the current traversal. */
+    private final int[] stamps;
+    private int stamp;
+    private final int[] stack;
+
+    private PropNetFactorer(PropNet propNet)
+    {
+        this.propNet = propNet;
+        byId = propNet.getComponents().toArray(new Component[propNet.getComponents().size()]);
+        ids = new HashMap<Component, Integer>(byId.length * 2);
+        for (int i = 0; i < byId.length; i++) {
+            ids.put(byId[i], i);
+        }
+        bases = sortByName(propNet.getBasePropositions().values());
+        inputs = sortByName(propNet.getInputPropositions().values());
+        nodes = new int[byId.length];
+        Arrays.fill(nodes, -1);
+        for (int i = 0; i < bases.length; i++) {
+            nodes[ids.get(bases[i])] = i;
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            nodes[ids.get(inputs[i])] = bases.length + i;
+        }
+        parents = new int[bases.length + inputs.length];
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = i;
+        }
+        dependsOnMoves = new boolean[bases.length];
+        stamps = new int[byId.length];
+        stack = new int[byId.length];
+    }
+
+    /**
+     * Returns the factors of the given propnet, ordered by the name of their
+     * first base proposition. If the game doesn't split, this is a list that
+     * only holds the given propnet itself. The given propnet isn't modified.
+     */
+    public static List<PropNet> factor(PropNet propNet)
+    {
+        long start = System.currentTimeMillis();
+        PropNetFactorer factorer = new PropNetFactorer(propNet);
+        List<List<Proposition>> factorBases = factorer.findFactors();
+        if (factorBases.size() <= 1) {
+            GamerLogger.log("StateMachine", "PropNet with " + propNet.getSize() + " components has a single factor, found in " + (System.currentTimeMillis() - start) + " ms");
+            return Collections.singletonList(propNet);
+        }
+
+        CompiledPropNetStateMachine machine = new CompiledPropNetStateMachine();
+        machine.initialize(propNet);
+        Set<GdlSentence> initialContents = machine.getInitialState().getContents();
+        List<PropNet> factors = new ArrayList<PropNet>(factorBases.size());
+        for (List<Proposition> ownBases : factorBases) {
+            factors.add(factorer.buildFactor(ownBases, initialContents));
+        }
+        StringBuilder sizes = new StringBuilder();
+        for (PropNet factor : factors) {
+            sizes.append(sizes.length() == 0 ? "" : ", ").append(factor.getSize());
+        }
+        GamerLogger.log("StateMachine", "PropNet with " + propNet.getSize() + " components split into factors of " + sizes + " components in " + (System.currentTimeMillis() - start) + " ms");
+        return factors;
+    }
+
+    /**
+     * Returns the number of factors the given propnet splits into, without
+     * building them, which makes this much cheaper than
+     * {@link #factor(PropNet)}.
+     */
+    public static int countFactors(PropNet propNet)
+    {
+        return Math.max(1, new PropNetFactorer(propNet).findFactors().size());
+    }
+
+    /**
+     * Returns an initialized state machine for each factor of the given
+     * propnet, in the order of {@link #factor(PropNet)}. States and moves of
+     * the full game can be passed to each machine: bases of other factors
+     * are ignored, and moves of other factors pass.
+     */
+    public static List<CompiledPropNetStateMachine> createFactorMachines(PropNet propNet)
+    {
+        List<CompiledPropNetStateMachine> machines = new ArrayList<CompiledPropNetStateMachine>();
+        for (PropNet factor : factor(propNet)) {
+            CompiledPropNetStateMachine machine = new CompiledPropNetStateMachine();
+            machine.initialize(factor);
+            machines.add(machine);
+        }
+        return machines;
+    }
+
+    /**
+     * Removes every component of the given propnet that can't affect the
+     * terminal, goal, legal or base propositions, and returns the number of
+     * components removed.
+     */
+    public static int prune(PropNet propNet)
+    {
+        PropNetFactorer factorer = new PropNetFactorer(propNet);
+        Set<Component> roots = new HashSet<Component>();
+        roots.addAll(Arrays.asList(factorer.bases));
+        addRoots(propNet, propNet.getLegalPropositions().values(), roots);
+        int[] reachable = factorer.collectCone(roots);
+        boolean[] keep = new boolean[factorer.byId.length];
+        for (int id : reachable) {
+            keep[id] = true;
+        }
+        int removed = 0;
+        for (int i = 0; i < keep.length; i++) {
+            if (!keep[i]) {
+                propNet.removeComponent(factorer.byId[i]);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Adds the terminal, INIT and goal propositions and the given legal
+     * propositions to the roots.
+     */
+    private static void addRoots(PropNet propNet, Collection<? extends Collection<Proposition>> legals, Set<Component> roots)
+    {
+        roots.add(propNet.getTerminalProposition());
+        if (propNet.getInitProposition() != null) {
+            roots.add(propNet.getInitProposition());
+        }
+        for (Set<Proposition> goals : propNet.getGoalPropositions().values()) {
+            roots.addAll(goals);
+        }
+        for (Collection<Proposition> roleLegals : legals) {
+            roots.addAll(roleLegals);
+        }
+    }
+
+    /**
+     * Links bases and inputs into factors, and returns the bases of each
+     * factor. Only bases that some move can affect belong to a factor.
+     */
+    private List<List<Proposition>> findFactors()
+    {
+        // Find the bases every transition depends on
+        int[][] transitionSources = new int[bases.length][];
+        for (int b = 0; b < bases.length; b++) {
+            transitionSources[b] = collectSources(bases[b].getSingleInput());
+        }
+        findMoveDependentBases(transitionSources);
+
+        for (int b = 0; b < bases.length; b++) {
+            if (dependsOnMoves[b]) {
+                for (int node : transitionSources[b]) {
+                    if (isLinkable(node)) {
+                        union(b, node);
+                    }
+                }
+            }
+        }
+        Map<Proposition, Proposition> legalInputMap = propNet.getLegalInputMap();
+        for (Set<Proposition> legals : propNet.getLegalPropositions().values()) {
+            for (Proposition legal : legals) {
+                Proposition input = legalInputMap.get(legal);
+                if (input != null) {
+                    int inputNode = nodes[ids.get(input)];
+                    for (int node : collectSources(legal)) {
+                        if (isLinkable(node)) {
+                            union(inputNode, node);
+                        }
+                    }
+                }
+            }
+        }
+        for (Component disjunct : getDisjuncts(propNet.getTerminalProposition())) {
+            int first = -1;
+            for (int node : collectSources(disjunct)) {
+                if (node < bases.length && isLinkable(node)) {
+                    if (first < 0) {
+                        first = node;
+                    } else {
+                        union(first, node);
+                    }
+                }
+            }
+        }
+
+        // Bases are sorted by name, so factors come out in a stable order
+        Map<Integer, List<Proposition>> factorsByRoot = new HashMap<Integer, List<Proposition>>();
+        List<List<Proposition>> factors = new ArrayList<List<Proposition>>();
+        for (int b = 0; b < bases.length; b++) {
+            if (dependsOnMoves[b]) {
+                int root = find(b);
+                List<Proposition> factor = factorsByRoot.get(root);
+                if (factor == null) {
+                    factor = new ArrayList<Proposition>();
+                    factorsByRoot.put(root, factor);
+                    factors.add(factor);
+                }
+                factor.add(bases[b]);
+            }
+        }
+        return factors;
+    }
+
+    /**
+     * Marks the bases that some move can affect, directly or through other
+     * bases.
+     */
+    private void findMoveDependentBases(int[][] transitionSources)
+    {
+        List<List<Integer>> dependents = new ArrayList<List<Integer>>(bases.length);
+        for (int b = 0; b < bases.length; b++) {
+            dependents.add(new ArrayList<Integer>());
+        }
+        int[] toVisit = new int[bases.length];
+        int numToVisit = 0;
+        for (int b = 0; b < bases.length; b++) {
+            for (int node : transitionSources[b]) {
+                if (node >= bases.length) {
+                    if (!dependsOnMoves[b]) {
+                        dependsOnMoves[b] = true;
+                        toVisit[numToVisit++] = b;
+                    }
+                } else {
+                    dependents.get(node).add(b);
+                }
+            }
+        }
+        while (numToVisit > 0) {
+            int b = toVisit[--numToVisit];
+            for (int dependent : dependents.get(b)) {
+                if (!dependsOnMoves[dependent]) {
+                    dependsOnMoves[dependent] = true;
+                    toVisit[numToVisit++] = dependent;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given node can tie a factor together, i.e. if it
+     * is an input or a base that some move can affect.
+     */
+    private boolean isLinkable(int node)
+    {
+        return node >= bases.length || dependsOnMoves[node];
+    }
+
+    /**
+     * Returns the top-level disjuncts of the given proposition, looking
+     * through propositions that just copy their input.
+     */
+    private List<Component> getDisjuncts(Component c)
+    {
+        while (c instanceof Proposition && nodes[ids.get(c)] < 0 && c.getInputs().size() == 1) {
+            c = c.getSingleInput();
+        }
+        if (c instanceof Or) {
+            return new ArrayList<Component>(c.getInputs());
+        }
+        return Collections.singletonList(c);
+    }
+
+    /**
+     * Returns the nodes of the bases and inputs the given component depends
+     * on, or the component's own node if it is a base or input.
+     */
+    private int[] collectSources(Component start)
+    {
+        stamp++;
+        int[] sources = new int[8];
+        int numSources = 0;
+        int stackSize = 0;
+        int startId = ids.get(start);
+        stamps[startId] = stamp;
+        stack[stackSize++] = startId;
+        while (stackSize > 0) {
+            int id = stack[--stackSize];
+            if (nodes[id] >= 0) {
+                if (numSources == sources.length) {
+                    sources = Arrays.copyOf(sources, numSources * 2);
+                }
+                sources[numSources++] = nodes[id];
+                continue;
+            }
+            for (Component input : byId[id].getInputs()) {
+                int inputId = ids.get(input);
+                if (stamps[inputId] != stamp) {
+                    stamps[inputId] = stamp;
+                    stack[stackSize++] = inputId;
+                }
+            }
+        }
+        return Arrays.copyOf(sources, numSources);
+    }
+
+    /**
+     * Returns the IDs of the given roots and every component they depend on,
+     * including the transitions into bases.
+     */
+    private int[] collectCone(Set<Component> roots)
+    {
+        stamp++;
+        int[] cone = new int[byId.length];
+        int coneSize = 0;
+        int stackSize = 0;
+        for (Component root : roots) {
+            int id = ids.get(root);
+            if (stamps[id] != stamp) {
+                stamps[id] = stamp;
+                stack[stackSize++] = id;
+            }
+        }
+        while (stackSize > 0) {
+            int id = stack[--stackSize];
+            cone[coneSize++] = id;
+            for (Component input : byId[id].getInputs()) {
+                int inputId = ids.get(input);
+                if (stamps[inputId] != stamp) {
+                    stamps[inputId] = stamp;
+                    stack[stackSize++] = inputId;
+                }
+            }
+        }
+        return Arrays.copyOf(cone, coneSize);
+    }
+
+    /**
+     * Builds a standalone propnet for the factor with the given bases. Bases
+     * of other factors become constants with their initial values, and the
+     * inputs of other factors become false constants.
+     */
+    private PropNet buildFactor(List<Proposition> ownBases, Set<GdlSentence> initialContents)
+    {
+        int root = find(nodes[ids.get(ownBases.get(0))]);
+
+        // Decide what replaces each base and input that isn't part of this factor
+        Map<Component, Component> copies = new HashMap<Component, Component>();
+        Set<Component> roots = new HashSet<Component>();
+        for (int b = 0; b < bases.length; b++) {
+            if (!dependsOnMoves[b] || find(b) == root) {
+                roots.add(bases[b]);
+            } else {
+                copies.put(bases[b], new Constant(initialContents.contains(bases[b].getName())));
+            }
+        }
+        Constant falseConstant = new Constant(false);
+        for (int i = 0; i < inputs.length; i++) {
+            int inputRoot = find(bases.length + i);
+            if (inputRoot != root && inputRoot < bases.length) {
+                copies.put(inputs[i], falseConstant);
+            }
+        }
+        Set<Component> replaced = new HashSet<Component>(copies.keySet());
+
+        // Copy everything the factor's propositions depend on, stopping at
+        // the replaced bases and inputs
+        addRoots(propNet, propNet.getLegalPropositions().values(), roots);
+        List<Component> toCopy = new ArrayList<Component>();
+        stamp++;
+        int stackSize = 0;
+        for (Component c : roots) {
+            stamps[ids.get(c)] = stamp;
+            stack[stackSize++] = ids.get(c);
+        }
+        while (stackSize > 0) {
+            Component c = byId[stack[--stackSize]];
+            if (replaced.contains(c)) {
+                continue;
+            }
+            toCopy.add(c);
+            copies.put(c, copyOf(c));
+            for (Component input : c.getInputs()) {
+                int inputId = ids.get(input);
+                if (stamps[inputId] != stamp) {
+                    stamps[inputId] = stamp;
+                    stack[stackSize++] = inputId;
+                }
+            }
+        }
+
+        Set<Component> components = new HashSet<Component>();
+        for (Component c : toCopy) {
+            Component copy = copies.get(c);
+            components.add(copy);
+            for (Component input : c.getInputs()) {
+                Component inputCopy = copies.get(input);
+                copy.addInput(inputCopy);
+                inputCopy.addOutput(copy);
+                components.add(inputCopy);
+            }
+        }
+        return new PropNet(propNet.getRoles(), components);
+    }
+
+    private static Component copyOf(Component c)
+    {
+        if (c instanceof Proposition) {
+            return new Proposition(((Proposition) c).getName());
+        } else if (c instanceof And) {
+            return new And();
+        } else if (c instanceof Or) {
+            return new Or();
+        } else if (c instanceof Not) {
+            return new Not();
+        } else if (c instanceof Transition) {
+            return new Transition();
+        } else if (c instanceof Constant) {
+            return new Constant(c.getValue());
+        }
+        throw new IllegalStateException("Unhandled component type " + c.getClass());
+    }
+
+    private int find(int node)
+    {
+        while (parents[node] != node) {
+            parents[node] = parents[parents[node]];
+            node = parents[node];
+        }
+        return node;
+    }
+
+    private void union(int a, int b)
+    {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA != rootB) {
+            // Keep base roots over input roots, so that a factor's root is a base
+            if (rootA < rootB) {
+                parents[rootB] = rootA;
+            } else {
+                parents[rootA] = rootB;
+            }
+        }
+    }
+
+    private static Proposition[] sortByName(Collection<Proposition> propositions)
+    {
+        Proposition[] sorted = propositions.toArray(new Proposition[propositions.size()]);
+        Arrays.sort(sorted, new Comparator<Proposition>() {
+            @Override
+            public int compare(Proposition a, Proposition b)
+            {
+                return a.getName().toString().compareTo(b.getName().toString());
+            }
+        });
+        return sorted;
+    }
+}
@@ -0,0 +1,208 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.ZobristKeys;
+
+/**
+ * A compact MachineState for propnet-based state machines. The state is
+ * stored as a bitset over the base propositions of the propnet, where bit
+ * <tt>i</tt> is set if and only if the base proposition with ordinal
+ * <tt>i</tt> is true.
+ * <p>
+ * The GDL sentences that make up the state are only materialized when
+ * {@link #getContents()} is called, so state machines that produce and
+ * consume these states natively never have to hash sentences. Equality
+ * between two states produced by the same state machine only looks at the
+ * bitset, after comparing their hashes.
+ * <p>
+ * States from different state machines (or plain MachineStates) are
+ * compared through their contents, as usual. The Zobrist hash is computed
+ * from the bits rather than the contents, and state machines that know the
+ * hash of a new state pass it in, so hashing never materializes contents.
+ * Since it is the same hash plain states use, states from different state
+ * machines can be mixed as keys in the same hash table.
+ */
+public final class PropNetMachineState extends MachineState
+{
+    /** The base proposition values, 64 per word. */
+    private final long[] bits;
+    /**
+     * The sentence of each base proposition, indexed by ordinal. This array
+     * is shared by every state created by the same state machine, and its
+     * identity is what makes two states directly comparable.
+     */
+    private final GdlSentence[] baseSentences;
+    /** Lazily-computed set of true base sentences. */
+    private volatile Set<GdlSentence> contents;
+
+    public PropNetMachineState(long[] bits, GdlSentence[] baseSentences)
+    {
+        this.bits = bits;
+        this.baseSentences = baseSentences;
+    }
+
+    /**
+     * Creates a state whose Zobrist hash is already known, i.e. the XOR of
+     * the {@link ZobristKeys} of the true base propositions.
+     */
+    public PropNetMachineState(long[] bits, GdlSentence[] baseSentences, long longHash)
+    {
+        this(bits, baseSentences);
+        setLongHash(longHash);
+    }
+
+    /**
+     * Creates a bitset state from a set of sentences, using the given mapping
+     * from base sentences to their ordinals. Sentences that don't correspond
+     * to any base proposition are ignored.
+     */
+    public static PropNetMachineState fromContents(Set<GdlSentence> sentences, GdlSentence[] baseSentences, Map<GdlSentence, Integer> baseIndices)
+    {
+        long[] bits = new long[getNumWords(baseSentences.length)];
+        for (GdlSentence sentence : sentences) {
+            Integer index = baseIndices.get(sentence);
+            if (index != null) {
+                bits[index >> 6] |= 1L << index;
+            }
+        }
+        return new PropNetMachineState(bits, baseSentences);
+    }
+
+    /**
+     * Returns the number of words needed to store the given number of base
+     * propositions.
+     */
+    public static int getNumWords(int numBases)
+    {
+        return (numBases + 63) >> 6;
+    }
+
+    /**
+     * Returns true if the base proposition with the given ordinal is true
+     * in this state.
+     */
+    public boolean get(int index)
+    {
+        return (bits[index >> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Returns the underlying bitset. Callers must not modify the array.
+     */
+    public long[] getBits()
+    {
+        return bits;
+    }
+
+    /**
+     * Returns the base sentences, indexed by ordinal, that this state's bits
+     * refer to. Callers must not modify the array.
+     */
+    public GdlSentence[] getBaseSentences()
+    {
+        return baseSentences;
+    }
+
+    /**
+     * Returns true if this state was produced with the given base ordering,
+     * so that its bits can be read directly.
+     */
+    public boolean hasLayout(GdlSentence[] baseSentences)
+    {
+        return this.baseSentences == baseSentences;
+    }
+
+    @Override
+    public Set<GdlSentence> getContents()
+    {
+        Set<GdlSentence> result = contents;
+        if (result == null) {
+            result = new HashSet<GdlSentence>();
+            for (int word = 0; word < bits.length; word++) {
+                long w = bits[word];
+                while (w != 0) {
+                    int bit = Long.numberOfTrailingZeros(w);
+                    result.add(baseSentences[(word << 6) + bit]);
+                    w &= w - 1;
+                }
+            }
+            contents = result;
+        }
+        return result;
+    }
+
+    @Override
+    public MachineState clone()
+    {
+        return new PropNetMachineState(bits.clone(), baseSentences, longHash());
+    }
+
+    /**
+     * Returns the XOR of the given keys of the bases that are true in the
+     * given bits.
+     */
+    public static long computeLongHash(long[] bits, long[] baseKeys)
+    {
+        long hash = 0;
+        for (int word = 0; word < bits.length; word++) {
+            long w = bits[word];
+            while (w != 0) {
+                hash ^= baseKeys[(word << 6) + Long.numberOfTrailingZeros(w)];
+                w &= w - 1;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the hash of the state with the given bits, given the bits and
+     * the hash of another state with the same layout. Only the keys of the
+     * bases that differ between the two states are XORed in.
+     */
+    public static long updateLongHash(long hash, long[] fromBits, long[] toBits, long[] baseKeys)
+    {
+        for (int word = 0; word < toBits.length; word++) {
+            long flipped = fromBits[word] ^ toBits[word];
+            while (flipped != 0) {
+                hash ^= baseKeys[(word << 6) + Long.numberOfTrailingZeros(flipped)];
+                flipped &= flipped - 1;
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    protected long computeLongHash()
+    {
+        long hash = 0;
+        for (int word = 0; word < bits.length; word++) {
+            long w = bits[word];
+            while (w != 0) {
+                hash ^= ZobristKeys.get(baseSentences[(word << 6) + Long.numberOfTrailingZeros(w)]);
+                w &= w - 1;
+            }
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof PropNetMachineState) {
+            PropNetMachineState state = (PropNetMachineState) o;
+            if (state.baseSentences == baseSentences) {
+                return state.longHash() == longHash() && Arrays.equals(state.bits, bits);
+            }
+        }
+        return super.equals(o);
+    }
+}
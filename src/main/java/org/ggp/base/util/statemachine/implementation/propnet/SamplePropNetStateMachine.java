@@ -1,9 +1,8 @@
 package org.ggp.base.util.statemachine.implementation.propnet;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -12,9 +11,9 @@ import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlRelation;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.PropNet;
-import org.ggp.base.util.propnet.architecture.components.Or;
 import org.ggp.base.util.propnet.architecture.components.Proposition;
 import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
 import org.ggp.base.util.statemachine.MachineState;
@@ -36,6 +35,13 @@ public class SamplePropNetStateMachine extends StateMachine {
 	/** The player roles */
 	private List<Role> roles;
 
+	/** The base propositions, indexed by their ordinal in a PropNetMachineState */
+	private Proposition[] baseArray;
+	/** The names of the base propositions, indexed by ordinal */
+	private GdlSentence[] baseSentences;
+	/** The ordinal of each base proposition, keyed by name */
+	private Map<GdlSentence, Integer> baseIndices;
+
 	private MachineState initialState;
 
 	/**
@@ -47,10 +53,20 @@ public class SamplePropNetStateMachine extends StateMachine {
 	public void initialize(List<Gdl> description) {
 		print("PropNetStateMachine init");
 		try {
+			long start = System.currentTimeMillis();
 			propNet = OptimizingPropNetFactory.create(description);
+			long factorStart = System.currentTimeMillis();
 			propNet = factor(propNet);
 			roles = propNet.getRoles();
+			long orderingStart = System.currentTimeMillis();
 			ordering = getOrdering();
+			long indexingStart = System.currentTimeMillis();
+			indexBasePropositions();
+			initialState = computeInitialState();
+			long end = System.currentTimeMillis();
+			GamerLogger.log("StateMachine", "PropNet with " + propNet.getSize() + " components: building took " + (factorStart - start)
+					+ " ms, factoring took " + (orderingStart - factorStart) + " ms, ordering took " + (indexingStart - orderingStart)
+					+ " ms, indexing and initial state took " + (end - indexingStart) + " ms");
 			print("Done init");
 		} catch (InterruptedException e) {
 			throw new RuntimeException(e);
@@ -99,12 +115,20 @@ public class SamplePropNetStateMachine extends StateMachine {
 	}
 
 	/**
-	 * Returns the initial state. The initial state can be computed
-	 * by only setting the truth value of the INIT proposition to true,
-	 * and then computing the resulting state.
+	 * Returns the initial state, which is computed once during initialization.
 	 */
 	@Override
 	public MachineState getInitialState() {
+		return initialState;
+	}
+
+	/**
+	 * Computes the initial state by only setting the truth value of the INIT
+	 * proposition to true, and then computing the resulting state. This has
+	 * to happen before any other query, while every other proposition in the
+	 * network still has its default (false) value.
+	 */
+	private MachineState computeInitialState() {
 		for (Proposition p: propNet.getBasePropositions().values()) {p.setValue(false);}
 		for (Proposition p: propNet.getInputPropositions().values()) {p.setValue(false);}
 		propNet.getInitProposition().setValue(true);
@@ -114,6 +138,41 @@ public class SamplePropNetStateMachine extends StateMachine {
 		return ret;
 	}
 
+	/**
+	 * Assigns each base proposition a fixed ordinal, which is the bit that
+	 * represents it in a PropNetMachineState.
+	 */
+	private void indexBasePropositions() {
+		Map<GdlSentence, Proposition> baseProps = propNet.getBasePropositions();
+		baseArray = new Proposition[baseProps.size()];
+		baseSentences = new GdlSentence[baseProps.size()];
+		baseIndices = new HashMap<GdlSentence, Integer>();
+		int i = 0;
+		for (Map.Entry<GdlSentence, Proposition> entry : baseProps.entrySet()) {
+			baseArray[i] = entry.getValue();
+			baseSentences[i] = entry.getKey();
+			baseIndices.put(entry.getKey(), i);
+			i++;
+		}
+	}
+
+	/**
+	 * Converts a state from any state machine into a PropNetMachineState with
+	 * this machine's base ordering. States created by this machine are
+	 * returned as-is.
+	 */
+	private PropNetMachineState toPropNetState(MachineState state) {
+		if (state instanceof PropNetMachineState && ((PropNetMachineState) state).hasLayout(baseSentences)) {
+			return (PropNetMachineState) state;
+		}
+		return PropNetMachineState.fromContents(state.getContents(), baseSentences, baseIndices);
+	}
+
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+		return PropNetMachineState.fromContents(sentenceList, baseSentences, baseIndices);
+	}
+
 	/**
 	 * Computes all possible actions for role.
 	 */
@@ -155,126 +214,20 @@ public class SamplePropNetStateMachine extends StateMachine {
 	}
 
 	/**
-	 * Gets all the propositions from which to backward search for connected components when pruning the
-	 * propnet
-	 * @param propnet
-	 * @return
-	 */
-	private Set<Proposition> importantProps(PropNet propnet) {
-		Set<Proposition> importantProps = new HashSet<Proposition>();
-		importantProps.add(propnet.getTerminalProposition());
-		for (Collection<Proposition> c: propnet.getGoalPropositions().values()) {
-			importantProps.addAll(c);
-		}
-		for (Collection<Proposition> c: propnet.getLegalPropositions().values()) {
-			importantProps.addAll(c);
-		}
-		importantProps.add(propnet.getInitProposition());
-		return importantProps;
-	}
-
-	private void bfs(LinkedList<Component> q, Set<Component> visited) {
-		if (q.isEmpty()) { return; }
-		Component current = q.pop();
-		visited.add(current);
-		for (Component input: current.getInputs()) {
-			if (visited.contains(input)) continue; // already visited -- don't re-queue input
-			q.add(input);
-		}
-		bfs(q, visited);
-	}
-
-	/**
-	 * Returns a factored propnet
+	 * Removes the components that can't affect play, and reports how the
+	 * game splits into independent factors. The whole game is kept, since
+	 * playing a single factor would ignore the moves of the others; see
+	 * {@link PropNetFactorer#createFactorMachines(PropNet)} for machines that
+	 * search each factor on its own.
 	 * @param propnet
 	 * @return
 	 */
 	public PropNet factor(PropNet propnet) {
 		print("**** Initial # of props: " + propnet.getPropositions().size());
-		Set<Component> toRemove = new HashSet<Component>();
-		for (Proposition goal: propnet.getGoalPropositions().get(propnet.getRoles().get(0))) {
-			if (getGoalValue(goal) == 0) {
-				toRemove.add(goal);
-			}
-		}
-		for (Component c: toRemove) {
-			propnet.removeComponent(c);
-		}
-		toRemove.clear();
-
-		Set<Component> toKeep = new HashSet<Component>();
-		Component terminalInput = getInputIfSeparable(propnet.getTerminalProposition());//Component terminalInput = getInputIfSeparable(propnet.getTerminalProposition());
-		// check if propnet can be separated into multiple independent factors (basically smaller propnets)
-		if (terminalInput != null) {
-			print("not null");
-			// build sets that contain all elements reachable from each
-			// input to the singular terminal input (the OR gate)
-			Set<Component> inputs = new HashSet<Component>(terminalInput.getInputs());
-			Set<HashSet<Component>> factors = new HashSet<HashSet<Component>>();
-			buildFactors(inputs, factors, propnet);
-
-			// find first independent factor and use that to play game, if any
-			for (HashSet<Component> factor: factors) {
-				boolean foundSubgame = false;
-				for (Component c: factor) {
-					if (c == propnet.getInitProposition()) {
-						foundSubgame = true;
-						// want to remove all other factors other than this one
-						for (HashSet<Component> otherFactor: factors) {
-							if (otherFactor == factor) {
-								continue;
-							}
-							for (Component c2: otherFactor) {
-								if (!factor.contains(c2)) {
-									toRemove.add(c2);
-								}
-							}
-						}
-
-						for (Component c2: toRemove) {
-							propnet.removeComponent(c2);
-						}
-					}
-					if (foundSubgame) break;
-				}
-				if (foundSubgame) break;
-			}
-		}
-
-		Set<Proposition> importantProps = importantProps(propnet);
-		Set<Component> reachable = new HashSet<Component>();
-		for (Proposition p: importantProps) {
-			LinkedList<Component> q = new LinkedList<Component>();
-			q.add(p);
-			bfs(q, reachable);
-		}
-
-		PropNet factoredPropnet = new PropNet(propnet.getRoles(), reachable);
-		factoredPropnet.renderToFile("factoredPropnet.txt");
-
-		print("**** Factored # of props: " + factoredPropnet.getPropositions().size());
-		return factoredPropnet;
-	}
-
-	private void buildFactors(Set<Component> inputs, Set<HashSet<Component>> factors, PropNet p) {
-		for (Component input: inputs) {
-			HashSet<Component> factor = new HashSet<Component>();
-			LinkedList<Component> q = new LinkedList<Component>();
-			q.add(input);
-			bfs(q, factor);
-			factors.add(factor);
-		}
-	}
-
-	private Component getInputIfSeparable(Component importantNode) {
-		Set<Component> terminalInputs = importantNode.getInputs();
-		if (terminalInputs.size() != 1) { return null; }
-		for (Component input: terminalInputs) {
-			if (input instanceof Or) {
-				return input;
-			}
-		}
-		return null;
+		PropNetFactorer.prune(propnet);
+		print("**** Independent factors: " + PropNetFactorer.countFactors(propnet));
+		print("**** Factored # of props: " + propnet.getPropositions().size());
+		return propnet;
 	}
 
 	/**
@@ -293,57 +246,22 @@ public class SamplePropNetStateMachine extends StateMachine {
 	 */
 	public List<Proposition> getOrdering()
 	{
-		// List to contain the topological ordering.
-		List<Proposition> order = new LinkedList<Proposition>();
-
-		// All of the components in the PropNet
-		List<Component> components = new ArrayList<Component>(propNet.getComponents());
-
-		// All of the propositions in the PropNet.
-		List<Proposition> propositions = new ArrayList<Proposition>(propNet.getPropositions());
-
-		// ** CS
-		// first remove input and base propositions from this set of components
-		// that we will be ordering topologically
-
-		components.remove(propNet.getInitProposition());
-		for (Proposition proposition : propNet.getInputPropositions().values()) {
-			components.remove(proposition);
-		}
-
-		for (Proposition proposition : propNet.getBasePropositions().values()) {
-			components.remove(proposition);
+		// Bases, inputs and INIT get their values from outside the ordering
+		Set<Component> sources = new HashSet<Component>();
+		sources.addAll(propNet.getBasePropositions().values());
+		sources.addAll(propNet.getInputPropositions().values());
+		if (propNet.getInitProposition() != null) {
+			sources.add(propNet.getInitProposition());
 		}
 
-		// order the rest of the components
-		while (!components.isEmpty()) {
-			// make list of components to be added next
-			// based on whether their inputs have been added
-			List<Component> toAdd = new ArrayList<Component>();
-			for (Component component : components) {
-				boolean shouldAdd = true;
-				// check to make sure all inputs are already added
-				for (Component input : component.getInputs()) {
-					if (components.contains(input) && !toAdd.contains(input)) {
-						shouldAdd = false;
-						break; // found input that hasn't been added -- shouldn't add this component yet
-					}
-				}
-
-				if (shouldAdd) {
-					toAdd.add(component);
-				}
-			}
-
-			// remove from components
-			for (Component c: toAdd) {
-				components.remove(c);
-				if (c instanceof Proposition) {
-					order.add((Proposition) c);
-				}
+		List<Proposition> order = new ArrayList<Proposition>();
+		for (Component c : propNet.getTopologicalOrdering(sources)) {
+			// propositions without inputs never change value, so there's
+			// nothing to propagate into them
+			if (c instanceof Proposition && !c.getInputs().isEmpty()) {
+				order.add((Proposition) c);
 			}
 		}
-
 		return order;
 	}
 
@@ -361,14 +279,9 @@ public class SamplePropNetStateMachine extends StateMachine {
 
 	private boolean markBases(MachineState state)
 	{
-		Map<GdlSentence, Proposition> baseProps = propNet.getBasePropositions();
-		Set<GdlSentence> stateContents = state.getContents();
-		for (GdlSentence key : baseProps.keySet()) {
-			if (stateContents.contains(key)) {
-				baseProps.get(key).setValue(true);
-			} else {
-				baseProps.get(key).setValue(false);
-			}
+		PropNetMachineState propNetState = toPropNetState(state);
+		for (int i = 0; i < baseArray.length; i++) {
+			baseArray[i].setValue(propNetState.get(i));
 		}
 		return true;
 	}
@@ -442,23 +355,20 @@ public class SamplePropNetStateMachine extends StateMachine {
 	}
 
 	/**
-	 * A Naive implementation that computes a PropNetMachineState
-	 * from the true BasePropositions.  This is correct but slower than more advanced implementations
-	 * You need not use this method!
+	 * Computes a PropNetMachineState from the values of the transitions
+	 * feeding into the base propositions.
 	 * @return PropNetMachineState
 	 */
 	public MachineState getStateFromBase()
 	{
-		Set<GdlSentence> contents = new HashSet<GdlSentence>();
-		for (Proposition p : propNet.getBasePropositions().values())
+		long[] bits = new long[PropNetMachineState.getNumWords(baseArray.length)];
+		for (int i = 0; i < baseArray.length; i++)
 		{
-			p.setValue(p.getSingleInput().getValue());
-			if (p.getValue())
+			if (baseArray[i].getSingleInput().getValue())
 			{
-				contents.add(p.getName());
+				bits[i >> 6] |= 1L << i;
 			}
-
 		}
-		return new MachineState(contents);
+		return new PropNetMachineState(bits, baseSentences);
 	}
 }
\ No newline at end of file
@@ -24,6 +24,14 @@ import org.ggp.base.util.statemachine.implementation.prover.result.ProverResultP
 import com.google.common.collect.ImmutableList;
 
 
+/**
+ * A state machine that answers each query by proving it from the game rules
+ * with an {@link AimaProver}. It needs no setup beyond parsing the rules,
+ * which makes it the reference machine for the others, but it is slow.
+ * <p>
+ * Once initialized, a machine can be shared between threads; see
+ * {@link AimaProver} for how the work is split between them.
+ */
 public class ProverStateMachine extends StateMachine
 {
     private MachineState initialState;
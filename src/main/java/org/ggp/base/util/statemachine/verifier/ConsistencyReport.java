@@ -0,0 +1,91 @@
+package org.ggp.base.util.statemachine.verifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a run of {@link StateMachineVerifier#verifyConsistency},
+ * along with how fast each machine processed the states it was asked about.
+ */
+public final class ConsistencyReport {
+    /** Only this many mismatches are kept; the rest are just counted. */
+    public static final int MAX_REPORTED_MISMATCHES = 20;
+
+    private final List<String> mismatches = new ArrayList<String>();
+    private long numMismatches;
+    private long numWalks;
+    private long numStates;
+    private long referenceNanos;
+    private long subjectNanos;
+
+    synchronized void addMismatch(String mismatch) {
+        numMismatches++;
+        if (mismatches.size() < MAX_REPORTED_MISMATCHES) {
+            mismatches.add(mismatch);
+        }
+    }
+
+    synchronized void addWalks(long walks, long states, long referenceNanos, long subjectNanos) {
+        this.numWalks += walks;
+        this.numStates += states;
+        this.referenceNanos += referenceNanos;
+        this.subjectNanos += subjectNanos;
+    }
+
+    /**
+     * Returns true if the machines agreed on every state that was visited.
+     */
+    public synchronized boolean isConsistent() {
+        return numMismatches == 0;
+    }
+
+    /**
+     * Returns descriptions of the first {@link #MAX_REPORTED_MISMATCHES}
+     * mismatches found.
+     */
+    public synchronized List<String> getMismatches() {
+        return Collections.unmodifiableList(new ArrayList<String>(mismatches));
+    }
+
+    public synchronized long getNumMismatches() {
+        return numMismatches;
+    }
+
+    /** Returns the number of random walks that were played to the end. */
+    public synchronized long getNumWalks() {
+        return numWalks;
+    }
+
+    /** Returns the number of states that were checked on both machines. */
+    public synchronized long getNumStates() {
+        return numStates;
+    }
+
+    /**
+     * Returns the number of states the reference machine processed per
+     * second spent in its calls, on a single thread.
+     */
+    public synchronized double getReferenceStatesPerSecond() {
+        return getStatesPerSecond(referenceNanos);
+    }
+
+    /**
+     * Returns the number of states the subject machine processed per second
+     * spent in its calls, on a single thread.
+     */
+    public synchronized double getSubjectStatesPerSecond() {
+        return getStatesPerSecond(subjectNanos);
+    }
+
+    private double getStatesPerSecond(long nanos) {
+        return nanos == 0 ? 0 : numStates * 1e9 / nanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return (isConsistent() ? "consistent" : numMismatches + " mismatches")
+                + " over " + numWalks + " walks and " + numStates + " states; "
+                + String.format("reference: %.0f states/s, subject: %.0f states/s", getReferenceStatesPerSecond(), getSubjectStatesPerSecond());
+    }
+}
@@ -1,108 +1,248 @@
 package org.ggp.base.util.statemachine.verifier;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 
 
 public class StateMachineVerifier {
     public static boolean checkMachineConsistency(StateMachine theReference, StateMachine theSubject, long timeToSpend) {
-        long startTime = System.currentTimeMillis();
+        try {
+            return verifyConsistency(Collections.singletonList(theReference), Collections.singletonList(theSubject), timeToSpend).isConsistent();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-        GamerLogger.log("StateMachine", "Performing automatic consistency testing on " + theSubject.getClass().getName() + " using " + theReference.getClass().getName() + " as a reference.");
+    /**
+     * Plays random games on pairs of machines, and checks that each subject
+     * agrees with its reference on the initial state, every legal move set,
+     * every next state, terminality and the goal values of terminal states.
+     * Each pair is walked on its own thread, so the machines within a pair
+     * need not be thread-safe, but no machine may appear in two pairs
+     * unless it is safe to share between threads. A single pair is walked
+     * on the calling thread.
+     * <p>
+     * A walk ends at its first mismatch, but other walks carry on, so the
+     * report covers every mismatch found in the time given.
+     *
+     * @param theReferences the reference machine for each pair
+     * @param theSubjects the subject machine for each pair, initialized with
+     * the same game as its reference
+     * @param timeToSpend the number of milliseconds to walk for
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting for the walkers
+     */
+    public static ConsistencyReport verifyConsistency(List<? extends StateMachine> theReferences, List<? extends StateMachine> theSubjects, long timeToSpend) throws InterruptedException {
+        if(theReferences.size() != theSubjects.size() || theReferences.isEmpty()) {
+            throw new IllegalArgumentException("Need the same positive number of references and subjects");
+        }
+        long deadline = System.currentTimeMillis() + timeToSpend;
 
-        List<StateMachine> theMachines = new ArrayList<StateMachine>();
-        theMachines.add(theReference);
-        theMachines.add(theSubject);
+        GamerLogger.log("StateMachine", "Performing automatic consistency testing on " + theSubjects.get(0).getClass().getName() + " using " + theReferences.get(0).getClass().getName() + " as a reference, on " + theSubjects.size() + " threads.");
 
-        GamerLogger.emitToConsole("Consistency checking: [");
-        int nRound = 0;
-        while(true) {
-            nRound++;
+        ConsistencyReport theReport = new ConsistencyReport();
+        List<Walker> theWalkers = new ArrayList<Walker>();
+        for(int i = 0; i < theSubjects.size(); i++) {
+            theWalkers.add(new Walker(theReferences.get(i), theSubjects.get(i), deadline, theReport, new Random()));
+        }
 
-            GamerLogger.emitToConsole(".");
-            MachineState[] theCurrentStates = new MachineState[theMachines.size()];
-            for(int i = 0; i < theMachines.size(); i++) {
-                try {
-                    theCurrentStates[i] = theMachines.get(i).getInitialState();
-                } catch(Exception e) {
-                    GamerLogger.log("StateMachine", "Machine #" + i + " failed to generate an initial state!");
-                    return false;
+        GamerLogger.emitToConsole("Consistency checking: [");
+        if(theWalkers.size() == 1) {
+            theWalkers.get(0).run();
+        } else {
+            List<Thread> theThreads = new ArrayList<Thread>();
+            for(int i = 0; i < theWalkers.size(); i++) {
+                Thread theThread = new Thread(theWalkers.get(i), "StateMachineVerifier-" + i);
+                theThreads.add(theThread);
+                theThread.start();
+            }
+            try {
+                for(Thread theThread : theThreads) {
+                    theThread.join();
+                }
+            } finally {
+                for(Walker theWalker : theWalkers) {
+                    theWalker.stop();
                 }
             }
+        }
+        GamerLogger.emitToConsole("]\n");
 
-            while(!theMachines.get(0).isTerminal(theCurrentStates[0])) {
-                if(System.currentTimeMillis() > startTime + timeToSpend)
-                    break;
-
-                // Do per-state consistency checks
-                for(int i = 1; i < theMachines.size(); i++) {
-                    for(Role theRole : theMachines.get(0).getRoles()) {
-                        try {
-                            if(!(theMachines.get(i).getLegalMoves(theCurrentStates[i], theRole).size() == theMachines.get(0).getLegalMoves(theCurrentStates[0], theRole).size())) {
-                                GamerLogger.log("StateMachine", "Inconsistency between machine #" + i + " and ProverStateMachine over state " + theCurrentStates[0] + " vs " + theCurrentStates[i].getContents());
-                                GamerLogger.log("StateMachine", "Machine #" + 0 + " has move count = " + theMachines.get(0).getLegalMoves(theCurrentStates[0], theRole).size() + " for player " + theRole);
-                                GamerLogger.log("StateMachine", "Machine #" + i + " has move count = " + theMachines.get(i).getLegalMoves(theCurrentStates[i], theRole).size() + " for player " + theRole);
-                                return false;
-                            }
-                        } catch(Exception e) {
-                            GamerLogger.logStackTrace("StateMachine", e);
-                        }
-                    }
-                }
+        if(theReport.isConsistent()) {
+            GamerLogger.log("StateMachine", "Completed automatic consistency testing on " + theSubjects.get(0).getClass().getName() + ": all tests pass! " + theReport);
+        } else {
+            GamerLogger.log("StateMachine", "Automatic consistency testing on " + theSubjects.get(0).getClass().getName() + " failed: " + theReport);
+            for(String theMismatch : theReport.getMismatches()) {
+                GamerLogger.log("StateMachine", theMismatch);
+            }
+        }
+        return theReport;
+    }
 
-                try {
-                    //Proceed on to the next state.
-                    List<Move> theJointMove = theMachines.get(0).getRandomJointMove(theCurrentStates[0]);
-
-                    for(int i = 0; i < theMachines.size(); i++) {
-                        try {
-                            theCurrentStates[i] = theMachines.get(i).getNextState(theCurrentStates[i], theJointMove);
-                        } catch(Exception e) {
-                            GamerLogger.logStackTrace("StateMachine", e);
-                        }
-                    }
-                } catch(Exception e) {
-                    GamerLogger.logStackTrace("StateMachine", e);
+    /**
+     * Plays random games on one reference and subject until the deadline,
+     * timing every call made to each machine.
+     */
+    private static final class Walker implements Runnable {
+        private final StateMachine theReference;
+        private final StateMachine theSubject;
+        private final ConsistencyReport theReport;
+        private final Random theRandom;
+        private volatile long deadline;
+
+        private long nWalks;
+        private long nStates;
+        private long referenceNanos;
+        private long subjectNanos;
+
+        public Walker(StateMachine theReference, StateMachine theSubject, long deadline, ConsistencyReport theReport, Random theRandom) {
+            this.theReference = theReference;
+            this.theSubject = theSubject;
+            this.deadline = deadline;
+            this.theReport = theReport;
+            this.theRandom = theRandom;
+        }
+
+        public void stop() {
+            deadline = 0;
+        }
+
+        @Override
+        public void run() {
+            if(!theReference.getRoles().equals(theSubject.getRoles())) {
+                theReport.addMismatch("Machines disagree on the roles: " + theReference.getRoles() + " vs " + theSubject.getRoles());
+                return;
+            }
+            try {
+                while(walk()) {
+                    GamerLogger.emitToConsole(".");
                 }
+            } finally {
+                theReport.addWalks(nWalks, nStates, referenceNanos, subjectNanos);
             }
+        }
 
-            if(System.currentTimeMillis() > startTime + timeToSpend)
-                break;
+        /**
+         * Plays one random game, and returns false if the deadline passed
+         * before it finished. Only games that finish without a mismatch
+         * count as walks.
+         */
+        private boolean walk() {
+            MachineState theReferenceState, theSubjectState;
+            long startTime = System.nanoTime();
+            try {
+                theReferenceState = theReference.getInitialState();
+            } catch(Exception e) {
+                // Every other walk would fail the same way
+                fail("Reference failed to generate an initial state: " + e);
+                return false;
+            }
+            long midTime = System.nanoTime();
+            try {
+                theSubjectState = theSubject.getInitialState();
+            } catch(Exception e) {
+                fail("Subject failed to generate an initial state: " + e);
+                return false;
+            }
+            referenceNanos += midTime - startTime;
+            subjectNanos += System.nanoTime() - midTime;
+            if(!theReferenceState.getContents().equals(theSubjectState.getContents())) {
+                fail("Inconsistent initial states: " + theReferenceState + " vs " + theSubjectState);
+                return false;
+            }
 
-            // Do final consistency checks
-            for(int i = 1; i < theMachines.size(); i++) {
-                if(!theMachines.get(i).isTerminal(theCurrentStates[i])) {
-                    GamerLogger.log("StateMachine", "Inconsistency between machine #" + i + " and ProverStateMachine over terminal-ness of state " + theCurrentStates[0] + " vs " + theCurrentStates[i]);
+            List<Role> theRoles = theReference.getRoles();
+            while(true) {
+                if(System.currentTimeMillis() > deadline)
                     return false;
-                }
-                for(Role theRole : theMachines.get(0).getRoles()) {
-                    try {
-                        theMachines.get(0).getGoal(theCurrentStates[0], theRole);
-                    } catch(Exception e) {
-                        continue;
+                nStates++;
+
+                try {
+                    startTime = System.nanoTime();
+                    boolean referenceTerminal = theReference.isTerminal(theReferenceState);
+                    midTime = System.nanoTime();
+                    boolean subjectTerminal = theSubject.isTerminal(theSubjectState);
+                    referenceNanos += midTime - startTime;
+                    subjectNanos += System.nanoTime() - midTime;
+                    if(referenceTerminal != subjectTerminal) {
+                        return fail("Inconsistent terminality of state " + theReferenceState + ": " + referenceTerminal + " vs " + subjectTerminal);
+                    }
+
+                    if(referenceTerminal) {
+                        for(Role theRole : theRoles) {
+                            int referenceGoal;
+                            startTime = System.nanoTime();
+                            try {
+                                referenceGoal = theReference.getGoal(theReferenceState, theRole);
+                            } catch(GoalDefinitionException e) {
+                                // The game doesn't define this goal, so there is nothing to compare
+                                continue;
+                            } finally {
+                                referenceNanos += System.nanoTime() - startTime;
+                            }
+                            startTime = System.nanoTime();
+                            int subjectGoal = theSubject.getGoal(theSubjectState, theRole);
+                            subjectNanos += System.nanoTime() - startTime;
+                            if(referenceGoal != subjectGoal) {
+                                return fail("Inconsistent goal value for " + theRole + " in state " + theReferenceState + ": " + referenceGoal + " vs " + subjectGoal);
+                            }
+                        }
+                        nWalks++;
+                        return true;
                     }
 
-                    try {
-                        if(theMachines.get(i).getGoal(theCurrentStates[i], theRole) != theMachines.get(0).getGoal(theCurrentStates[0], theRole)) {
-                            GamerLogger.log("StateMachine", "Inconsistency between machine #" + i + " and ProverStateMachine over goal value for " + theRole + " of state " + theCurrentStates[0] + ": " + theMachines.get(i).getGoal(theCurrentStates[i], theRole) + " vs " + theMachines.get(0).getGoal(theCurrentStates[0], theRole));
-                            return false;
+                    List<Move> theJointMove = new ArrayList<Move>(theRoles.size());
+                    for(Role theRole : theRoles) {
+                        startTime = System.nanoTime();
+                        List<Move> referenceMoves = theReference.getLegalMoves(theReferenceState, theRole);
+                        midTime = System.nanoTime();
+                        List<Move> subjectMoves = theSubject.getLegalMoves(theSubjectState, theRole);
+                        referenceNanos += midTime - startTime;
+                        subjectNanos += System.nanoTime() - midTime;
+                        Set<Move> referenceMoveSet = new HashSet<Move>(referenceMoves);
+                        if(!referenceMoveSet.equals(new HashSet<Move>(subjectMoves))) {
+                            return fail("Inconsistent legal moves for " + theRole + " in state " + theReferenceState + ": " + referenceMoves + " vs " + subjectMoves);
                         }
-                    } catch(Exception e) {
-                        GamerLogger.log("StateMachine", "Inconsistency between machine #" + i + " and ProverStateMachine over goal-ness of state " + theCurrentStates[0] + " vs " + theCurrentStates[i]);
-                        return false;
+                        theJointMove.add(referenceMoves.get(theRandom.nextInt(referenceMoves.size())));
                     }
+
+                    startTime = System.nanoTime();
+                    MachineState theNextReferenceState = theReference.getNextState(theReferenceState, theJointMove);
+                    midTime = System.nanoTime();
+                    MachineState theNextSubjectState = theSubject.getNextState(theSubjectState, theJointMove);
+                    referenceNanos += midTime - startTime;
+                    subjectNanos += System.nanoTime() - midTime;
+                    if(!theNextReferenceState.getContents().equals(theNextSubjectState.getContents())) {
+                        return fail("Inconsistent next states after " + theJointMove + " in state " + theReferenceState + ": " + theNextReferenceState + " vs " + theNextSubjectState);
+                    }
+                    theReferenceState = theNextReferenceState;
+                    theSubjectState = theNextSubjectState;
+                } catch(Exception e) {
+                    GamerLogger.logStackTrace("StateMachine", e);
+                    return fail("Exception in state " + theReferenceState + ": " + e);
                 }
             }
         }
-        GamerLogger.emitToConsole("]\n");
 
-        GamerLogger.log("StateMachine", "Completed automatic consistency testing on " + theSubject.getClass().getName() + ", w/ " + nRound + " rounds: all tests pass!");
-        return true;
+        /**
+         * Records a mismatch, which ends the current walk without counting
+         * it, and returns true so that the next walk starts.
+         */
+        private boolean fail(String theMismatch) {
+            theReport.addMismatch(theMismatch);
+            return true;
+        }
     }
 }
\ No newline at end of file
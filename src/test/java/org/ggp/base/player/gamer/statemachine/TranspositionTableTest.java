@@ -0,0 +1,91 @@
+package org.ggp.base.player.gamer.statemachine;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TranspositionTableTest extends Assert {
+
+    private static MachineState state(int step) throws Exception {
+        Set<GdlSentence> contents = new HashSet<GdlSentence>();
+        contents.add((GdlSentence) GdlFactory.create("( true ( step " + step + " ) )"));
+        return new MachineState(contents);
+    }
+
+    @Test
+    public void testUpdatesAndReplacement() throws Exception {
+        TranspositionTable table = new TranspositionTable(16);
+        assertEquals(16, table.getCapacity());
+
+        MachineState first = state(0);
+        assertFalse(table.contains(first));
+        table.update(first, 50);
+        table.update(first, 100);
+        table.addVisit(first);
+        assertEquals(3, table.getVisits(first));
+        assertEquals(150, table.getValue(first));
+        table.setValue(first, 7);
+        assertEquals(7, table.getValue(first));
+        // An equal state built separately finds the same statistics
+        assertEquals(3, table.getVisits(state(0)));
+
+        // Filling the table past its capacity replaces the least visited
+        // states, and keeps the most visited one
+        for (int i = 1; i < 200; i++) {
+            table.update(state(i), 1);
+        }
+        assertTrue(table.getReplacements() > 0);
+        assertEquals(3, table.getVisits(first));
+
+        table.clear();
+        assertFalse(table.contains(first));
+        assertEquals(0, table.getReplacements());
+    }
+
+    @Test
+    public void testConcurrentUpdatesAreNotLost() throws Exception {
+        final TranspositionTable table = new TranspositionTable(1024);
+        final List<MachineState> states = new ArrayList<MachineState>();
+        for (int i = 0; i < 100; i++) {
+            states.add(state(i));
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < 1000; round++) {
+                        for (MachineState state : states) {
+                            table.update(state, 2);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (MachineState state : states) {
+            assertEquals(4000, table.getVisits(state));
+            assertEquals(8000, table.getValue(state));
+        }
+    }
+
+    @Test
+    public void testSizedFromHeap() {
+        TranspositionTable table = TranspositionTable.createForHeap(0.01);
+        int capacity = table.getCapacity();
+        assertEquals(Integer.highestOneBit(capacity), capacity);
+        assertTrue(capacity >= 1024);
+    }
+}
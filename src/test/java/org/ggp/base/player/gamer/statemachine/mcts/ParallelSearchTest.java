@@ -0,0 +1,122 @@
+package org.ggp.base.player.gamer.statemachine.mcts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelSearchTest extends Assert {
+
+    private static List<StateMachine> createMachines(List<Gdl> rules, int count) {
+        List<StateMachine> machines = new ArrayList<StateMachine>();
+        for (int i = 0; i < count; i++) {
+            StateMachine machine = new ProverStateMachine();
+            machine.initialize(rules);
+            machines.add(machine);
+        }
+        return machines;
+    }
+
+    private static void checkSearch(ParallelSearch.Mode mode) throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        List<StateMachine> machines = createMachines(rules, 4);
+        StateMachine machine = machines.get(0);
+        MachineState initialState = machine.getInitialState();
+        ParallelSearch search = new ParallelSearch(mode, machines, initialState);
+        search.search(System.currentTimeMillis() + 500);
+
+        double[] iterationsPerSecond = search.getIterationsPerSecond();
+        assertEquals(4, iterationsPerSecond.length);
+        for (double rate : iterationsPerSecond) {
+            assertTrue(rate > 0);
+        }
+
+        Role xplayer = machine.getRoles().get(0);
+        Move move = search.getBestMove(xplayer);
+        assertTrue(machine.getLegalMoves(initialState, xplayer).contains(move));
+
+        // The search carries on from the state after the chosen move
+        List<Move> jointMove = machine.getLegalJointMoves(initialState, xplayer, move).get(0);
+        MachineState nextState = machine.getNextState(initialState, jointMove);
+        search.reroot(nextState);
+        search.search(System.currentTimeMillis() + 200);
+        Role oplayer = machine.getRoles().get(1);
+        assertTrue(machine.getLegalMoves(nextState, oplayer).contains(search.getBestMove(oplayer)));
+    }
+
+    @Test
+    public void testRootParallel() throws Exception {
+        checkSearch(ParallelSearch.Mode.ROOT);
+    }
+
+    @Test
+    public void testTreeParallel() throws Exception {
+        checkSearch(ParallelSearch.Mode.TREE);
+    }
+
+    @Test
+    public void testTreeParallelReleasesVirtualLosses() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        List<StateMachine> machines = createMachines(rules, 4);
+        MachineState initialState = machines.get(0).getInitialState();
+        ParallelSearch search = new ParallelSearch(ParallelSearch.Mode.TREE, machines, initialState);
+        search.search(System.currentTimeMillis() + 300);
+
+        // Once the workers are done, no node should be left marked as busy,
+        // and every visit to the root but those that found it unvisited, at
+        // most one per thread, went through one of its children
+        assertEquals(1, search.getTrees().size());
+        SearchNode root = search.getTrees().get(0).getRoot();
+        assertEquals(0, root.getVirtualLosses());
+        long childVisits = 0;
+        for (int i = 0; i < root.getJointMoves().size(); i++) {
+            SearchNode child = root.getChild(i);
+            if (child != null) {
+                assertEquals(0, child.getVirtualLosses());
+                childVisits += child.getVisits();
+            }
+        }
+        assertTrue(root.getVisits() - childVisits >= 1);
+        assertTrue(root.getVisits() - childVisits <= 4);
+    }
+
+    @Test
+    public void testWorkerErrorsAreRethrown() throws Exception {
+        StateMachine machine = new ProverStateMachine() {
+            @Override
+            public int[] depthCharge(MachineState state, Random random, int[] goalsOut) {
+                throw new InternalError("playout failed");
+            }
+        };
+        machine.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        ParallelSearch search = new ParallelSearch(ParallelSearch.Mode.ROOT, Collections.singletonList(machine), machine.getInitialState());
+        try {
+            search.search(System.currentTimeMillis() + 100);
+            fail("The worker's error should have been thrown");
+        } catch (InternalError e) {
+            assertEquals("playout failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testInterruptStopsWaiting() throws Exception {
+        List<StateMachine> machines = createMachines(new TestGameRepository().getGame("ticTacToe").getRules(), 2);
+        ParallelSearch search = new ParallelSearch(ParallelSearch.Mode.ROOT, machines, machines.get(0).getInitialState());
+        Thread.currentThread().interrupt();
+        long start = System.currentTimeMillis();
+        search.search(start + 1000);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        // The interrupt is kept for the caller
+        assertTrue(Thread.interrupted());
+    }
+}
@@ -0,0 +1,107 @@
+package org.ggp.base.player.gamer.statemachine.mcts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SearchTreeTest extends Assert {
+
+    @Test
+    public void testFindsTheWinningMove() throws Exception {
+        StateMachine machine = new ProverStateMachine();
+        machine.initialize(new TestGameRepository().getGame("winOrLose").getRules());
+        SearchTree tree = new SearchTree(machine, machine.getInitialState());
+        Random random = new Random(0);
+        for (int i = 0; i < 20; i++) {
+            tree.iterate(random);
+        }
+        assertEquals(20, tree.getRoot().getVisits());
+        assertEquals(GdlFactory.createTerm("win"), tree.getBestMove(machine.getRoles().get(0)).getContents());
+    }
+
+    @Test
+    public void testEachRoleChoosesByItsOwnValues() throws Exception {
+        // A simultaneous move: q is better for b whatever a does, but a
+        // wants (x p), so a search led by a's values would favor p for b
+        List<Gdl> desc = new ArrayList<Gdl>();
+        for (String gdl : new String[] {
+                "( role a )",
+                "( role b )",
+                "( init ( step 0 ) )",
+                "( <= ( legal a x ) ( true ( step 0 ) ) )",
+                "( <= ( legal a y ) ( true ( step 0 ) ) )",
+                "( <= ( legal b p ) ( true ( step 0 ) ) )",
+                "( <= ( legal b q ) ( true ( step 0 ) ) )",
+                "( <= ( next ( played ?m ?n ) ) ( does a ?m ) ( does b ?n ) )",
+                "( <= terminal ( true ( played ?m ?n ) ) )",
+                "( <= ( goal a 100 ) ( true ( played x p ) ) )",
+                "( <= ( goal a 0 ) ( not ( true ( played x p ) ) ) )",
+                "( <= ( goal b 90 ) ( true ( played x p ) ) )",
+                "( <= ( goal b 100 ) ( true ( played x q ) ) )",
+                "( <= ( goal b 0 ) ( true ( played y p ) ) )",
+                "( <= ( goal b 10 ) ( true ( played y q ) ) )" }) {
+            desc.add(GdlFactory.create(gdl));
+        }
+        StateMachine machine = new ProverStateMachine();
+        machine.initialize(desc);
+        SearchTree tree = new SearchTree(machine, machine.getInitialState());
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            tree.iterate(random);
+        }
+
+        SearchNode root = tree.getRoot();
+        for (int roleIndex = 0; roleIndex < 2; roleIndex++) {
+            long moveVisits = 0;
+            for (int i = 0; i < root.getMoves(roleIndex).size(); i++) {
+                moveVisits += root.getMoveVisits(roleIndex, i);
+            }
+            assertEquals(999, moveVisits);
+        }
+        assertEquals(GdlFactory.createTerm("x"), tree.getBestMove(machine.getRoles().get(0)).getContents());
+        assertEquals(GdlFactory.createTerm("q"), tree.getBestMove(machine.getRoles().get(1)).getContents());
+    }
+
+    @Test
+    public void testRerootKeepsTheSubtree() throws Exception {
+        StateMachine machine = new ProverStateMachine();
+        machine.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        MachineState initialState = machine.getInitialState();
+        SearchTree tree = new SearchTree(machine, initialState);
+        Random random = new Random(0);
+        for (int i = 0; i < 500; i++) {
+            tree.iterate(random);
+        }
+
+        // Every iteration but the first goes through one of the root's children
+        SearchNode root = tree.getRoot();
+        long childVisits = 0;
+        for (int i = 0; i < root.getJointMoves().size(); i++) {
+            childVisits += root.getChild(i).getVisits();
+        }
+        assertEquals(499, childVisits);
+
+        Role xplayer = machine.getRoles().get(0);
+        Move move = tree.getBestMove(xplayer);
+        List<Move> jointMove = machine.getLegalJointMoves(initialState, xplayer, move).get(0);
+        MachineState nextState = machine.getNextState(initialState, jointMove);
+        assertTrue(tree.reroot(nextState));
+        assertEquals(nextState, tree.getRoot().getState());
+        assertTrue(tree.getRoot().getVisits() > 0);
+
+        // A state that isn't a child of the root starts a new tree
+        assertFalse(tree.reroot(initialState));
+        assertEquals(0, tree.getRoot().getVisits());
+    }
+}
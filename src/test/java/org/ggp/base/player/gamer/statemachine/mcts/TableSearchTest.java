@@ -0,0 +1,123 @@
+package org.ggp.base.player.gamer.statemachine.mcts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.player.gamer.statemachine.TranspositionTable;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TableSearchTest extends Assert {
+
+    private static StateMachine createMachine(String... rules) throws Exception {
+        List<Gdl> desc = new ArrayList<Gdl>();
+        for (String gdl : rules) {
+            desc.add(GdlFactory.create(gdl));
+        }
+        StateMachine machine = new ProverStateMachine();
+        machine.initialize(desc);
+        return machine;
+    }
+
+    private static StateMachine createWinOrLoseGame() throws Exception {
+        StateMachine machine = new ProverStateMachine();
+        machine.initialize(new TestGameRepository().getGame("winOrLose").getRules());
+        return machine;
+    }
+
+    @Test
+    public void testSearchFindsTheWinningMove() throws Exception {
+        StateMachine machine = createWinOrLoseGame();
+        TranspositionTable table = new TranspositionTable(1024);
+        TableSearch search = new TableSearch(machine, table);
+        Role robot = machine.getRoles().get(0);
+        MachineState initialState = machine.getInitialState();
+        search.search(robot, initialState, System.currentTimeMillis() + 100);
+        assertEquals(GdlFactory.createTerm("win"), search.getBestMove(robot, initialState).getContents());
+        // Terminal states count every visit, like the others
+        Move win = new Move(GdlFactory.createTerm("win"));
+        MachineState won = machine.getNextState(initialState, Collections.singletonList(win));
+        assertTrue(machine.isTerminal(won));
+        assertTrue(table.getVisits(won) > 1);
+    }
+
+    @Test
+    public void testUnvisitedTerminalMoveScoresItsGoal() throws Exception {
+        StateMachine machine = createMachine(
+                "( role robot )",
+                "( init ( step 0 ) )",
+                "( <= ( legal robot win ) ( true ( step 0 ) ) )",
+                "( <= ( legal robot wait ) ( true ( step 0 ) ) )",
+                "( <= ( legal robot finish ) ( true ( step 1 ) ) )",
+                "( <= ( next won ) ( does robot win ) )",
+                "( <= ( next ( step 1 ) ) ( does robot wait ) )",
+                "( <= ( next done ) ( does robot finish ) )",
+                "( <= terminal ( true won ) )",
+                "( <= terminal ( true done ) )",
+                "( <= ( goal robot 100 ) ( true won ) )",
+                "( <= ( goal robot 60 ) ( true done ) )");
+        TranspositionTable table = new TranspositionTable(1024);
+        TableSearch search = new TableSearch(machine, table);
+        Role robot = machine.getRoles().get(0);
+        MachineState initialState = machine.getInitialState();
+        // Only the move that waits has been visited, but winning now is better
+        Move wait = new Move(GdlFactory.createTerm("wait"));
+        table.update(machine.getNextState(initialState, Collections.singletonList(wait)), 60);
+        assertEquals(GdlFactory.createTerm("win"), search.getBestMove(robot, initialState).getContents());
+    }
+
+    @Test
+    public void testSampleFindsTheWinningMove() throws Exception {
+        StateMachine machine = createWinOrLoseGame();
+        TableSearch search = new TableSearch(machine, new TranspositionTable(1024));
+        Role robot = machine.getRoles().get(0);
+        MachineState initialState = machine.getInitialState();
+        search.sample(robot, initialState, System.currentTimeMillis() + 100);
+        assertEquals(GdlFactory.createTerm("win"), search.getBestMove(robot, initialState).getContents());
+    }
+
+    @Test
+    public void testPlayoutRecordsEveryState() throws Exception {
+        // A game that always lasts the same number of steps, longer than a
+        // search would usually get to recurse through
+        int nSteps = 2000;
+        List<String> rules = new ArrayList<String>();
+        rules.add("( role robot )");
+        rules.add("( init ( step 0 ) )");
+        rules.add("( <= ( legal robot wait ) ( true ( step ?n ) ) )");
+        rules.add("( <= ( next ( step ?m ) ) ( true ( step ?n ) ) ( succ ?n ?m ) )");
+        rules.add("( <= terminal ( true ( step " + nSteps + " ) ) )");
+        rules.add("( goal robot 50 )");
+        for (int i = 0; i < nSteps; i++) {
+            rules.add("( succ " + i + " " + (i + 1) + " )");
+        }
+        StateMachine machine = createMachine(rules.toArray(new String[rules.size()]));
+        // Big enough that no state is likely to be replaced by another
+        TranspositionTable table = new TranspositionTable(64 * nSteps);
+        TableSearch search = new TableSearch(machine, table);
+        Role robot = machine.getRoles().get(0);
+        MachineState initialState = machine.getInitialState();
+        // A search always runs at least one iteration
+        assertEquals(1, search.search(robot, initialState, 0));
+
+        MachineState state = initialState;
+        for (int i = 0; i < nSteps; i++) {
+            assertEquals(1, table.getVisits(state));
+            assertEquals(50, table.getValue(state));
+            state = machine.getRandomNextState(state);
+        }
+        assertTrue(machine.isTerminal(state));
+        assertEquals(1, table.getVisits(state));
+        assertEquals(50, table.getValue(state));
+        assertEquals(0, table.getReplacements());
+    }
+}
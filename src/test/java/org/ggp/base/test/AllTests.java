@@ -3,6 +3,10 @@ package org.ggp.base.test;
 import org.ggp.base.apps.tiltyard.TiltyardRequestFarmTest;
 import org.ggp.base.player.gamer.clojure.ClojureGamerTest;
 import org.ggp.base.player.gamer.python.PythonGamerTest;
+import org.ggp.base.player.gamer.statemachine.TranspositionTableTest;
+import org.ggp.base.player.gamer.statemachine.mcts.ParallelSearchTest;
+import org.ggp.base.player.gamer.statemachine.mcts.SearchTreeTest;
+import org.ggp.base.player.gamer.statemachine.mcts.TableSearchTest;
 import org.ggp.base.util.crypto.BaseCryptographyTest;
 import org.ggp.base.util.crypto.CanonicalJSONTest;
 import org.ggp.base.util.crypto.SignableJSONTest;
@@ -14,7 +18,18 @@ import org.ggp.base.util.gdl.scrambler.GdlScramblerTest;
 import org.ggp.base.util.gdl.transforms.GdlCleanerTest;
 import org.ggp.base.util.http.HttpTest;
 import org.ggp.base.util.presence.InfoResponseTest;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactoryTest;
+import org.ggp.base.util.propnet.factory.PropNetCacheTest;
+import org.ggp.base.util.prover.aima.knowledge.KnowledgeBaseTest;
+import org.ggp.base.util.prover.aima.plan.RulePlanTest;
+import org.ggp.base.util.prover.aima.unifier.UnifierTest;
+import org.ggp.base.util.statemachine.cache.BoundedCachedStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.chaining.ForwardChainingStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.propnet.LatchAnalysisTest;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetFactorerTest;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachineTest;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifierTest;
 import org.ggp.base.validator.StaticValidationTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -22,22 +37,37 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	BaseCryptographyTest.class,
+	BoundedCachedStateMachineTest.class,
 	CanonicalJSONTest.class,
 	ClojureGamerTest.class,
+	CompiledPropNetStateMachineTest.class,
 	DependencyGraphsTest.class,
+	ForwardChainingStateMachineTest.class,
 	GameParsingTest.class,
 	GdlCleanerTest.class,
 	GdlRendererTest.class,
 	GdlScramblerTest.class,
 	HttpTest.class,
 	InfoResponseTest.class,
+	KnowledgeBaseTest.class,
+	LatchAnalysisTest.class,
 	NoTabsInRulesheetsTest.class,
+	OptimizingPropNetFactoryTest.class,
+	ParallelSearchTest.class,
+	PropNetCacheTest.class,
+	PropNetFactorerTest.class,
 	ProverStateMachineTest.class,
 	PythonGamerTest.class,
+	RulePlanTest.class,
+	SearchTreeTest.class,
 	SignableJSONTest.class,
 	SimpleSentenceFormTest.class,
+	StateMachineVerifierTest.class,
 	StaticValidationTest.class,
+	TableSearchTest.class,
 	TiltyardRequestFarmTest.class,
+	TranspositionTableTest.class,
+	UnifierTest.class,
                      })
 public class AllTests {
 
@@ -0,0 +1,41 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OptimizingPropNetFactoryTest extends Assert {
+
+    @Test
+    public void testParallelCreationMatchesSequentialCreation() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (String game : new String[] {"ticTacToe", "connectFour"}) {
+                List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+                PropNet sequential = OptimizingPropNetFactory.create(description);
+                PropNet parallel = OptimizingPropNetFactory.create(description, pool);
+                assertEquals(sequential.getSize(), parallel.getSize());
+                assertEquals(sequential.getNumLinks(), parallel.getNumLinks());
+                assertEquals(sequential.getBasePropositions().keySet(), parallel.getBasePropositions().keySet());
+                assertEquals(sequential.getInputPropositions().keySet(), parallel.getInputPropositions().keySet());
+
+                StateMachine reference = new ProverStateMachine();
+                reference.initialize(description);
+                CompiledPropNetStateMachine subject = new CompiledPropNetStateMachine();
+                subject.initialize(parallel);
+                assertTrue(StateMachineVerifier.checkMachineConsistency(reference, subject, 1000));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
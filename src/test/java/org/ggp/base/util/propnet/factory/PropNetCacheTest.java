@@ -0,0 +1,89 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PropNetCacheTest extends Assert {
+
+    private File directory;
+    private PropNetCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("propnetcache").toFile();
+        cache = new PropNetCache(directory);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testCachedPropNetMatchesBuiltPropNet() throws Exception {
+        Game game = new TestGameRepository().getGame("ticTacToe");
+        PropNet built = cache.getPropNet(game);
+        File file = new File(directory, PropNetCache.getKey(game.getRulesheet()) + ".propnet");
+        assertTrue(file.exists());
+
+        PropNet loaded = cache.load(PropNetCache.getKey(game.getRulesheet()));
+        assertNotNull(loaded);
+        assertNotSame(built, loaded);
+        assertEquals(built.getSize(), loaded.getSize());
+        assertEquals(built.getNumLinks(), loaded.getNumLinks());
+        assertEquals(built.getRoles(), loaded.getRoles());
+        assertEquals(built.getBasePropositions().keySet(), loaded.getBasePropositions().keySet());
+        assertEquals(built.getInputPropositions().keySet(), loaded.getInputPropositions().keySet());
+
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(game.getRules());
+        CompiledPropNetStateMachine subject = new CompiledPropNetStateMachine();
+        subject.initialize(loaded);
+        assertTrue(StateMachineVerifier.checkMachineConsistency(reference, subject, 1000));
+    }
+
+    @Test
+    public void testUnreadableFilesAreRebuilt() throws Exception {
+        Game game = new TestGameRepository().getGame("ticTacToe");
+        String key = PropNetCache.getKey(game.getRulesheet());
+        directory.mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(directory, key + ".propnet"));
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        assertNull(cache.load(key));
+
+        assertNotNull(cache.getPropNet(game));
+        assertNotNull(cache.load(key));
+    }
+
+    @Test
+    public void testMachineUsesCache() throws Exception {
+        Game game = new TestGameRepository().getGame("ticTacToe");
+        CompiledPropNetStateMachine machine = new CompiledPropNetStateMachine();
+        machine.setPropNetCache(cache);
+        machine.initialize(game.getRules());
+        assertEquals(1, directory.listFiles().length);
+
+        CompiledPropNetStateMachine cachedMachine = new CompiledPropNetStateMachine();
+        cachedMachine.setPropNetCache(cache);
+        cachedMachine.initialize(game.getRules());
+        assertEquals(1, directory.listFiles().length);
+        assertEquals(machine.getInitialState().getContents(), cachedMachine.getInitialState().getContents());
+    }
+}
@@ -0,0 +1,73 @@
+package org.ggp.base.util.prover.aima.knowledge;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KnowledgeBaseTest extends Assert {
+
+    @Test
+    public void testFetchSkipsRulesThatCannotUnify() throws Exception {
+        Set<Gdl> description = new LinkedHashSet<Gdl>();
+        for (int x = 1; x <= 4; x++) {
+            for (int y = 1; y <= 4; y++) {
+                description.add(GdlFactory.create("( true ( cell " + x + " " + y + " b ) )"));
+            }
+        }
+        description.add(GdlFactory.create("( true ( cell 2 3 x ) )"));
+        description.add(GdlFactory.create("( true ( control xplayer ) )"));
+        Gdl anyTrue = GdlFactory.create("( <= ( true ?x ) ( anything ?x ) )");
+        description.add(anyTrue);
+        Gdl anyCell = GdlFactory.create("( <= ( true ( cell ?x ?y ?m ) ) ( mark ?x ?y ?m ) )");
+        description.add(anyCell);
+        KnowledgeBase knowledgeBase = new KnowledgeBase(description);
+
+        // The most selective constant of the query decides the candidates,
+        // and rules with a variable there (or around it) are always included
+        assertEquals(heads(description, "( true ( cell 2 3 x ) )", anyTrue, anyCell),
+                heads(knowledgeBase.fetch(sentence("( true ( cell ?x ?y x ) )"))));
+        assertEquals(heads(description, "( true ( control xplayer ) )", anyTrue),
+                heads(knowledgeBase.fetch(sentence("( true ( control ?p ) )"))));
+        assertEquals(20, knowledgeBase.fetch(sentence("( true ?x )")).size());
+        assertEquals(0, knowledgeBase.fetch(sentence("( legal ?p ?m )")).size());
+    }
+
+    private static GdlSentence sentence(String text) throws Exception {
+        return (GdlSentence) GdlFactory.create(text);
+    }
+
+    /**
+     * Returns, in description order, the heads of the given rules and of
+     * the given fact.
+     */
+    private static List<GdlSentence> heads(Set<Gdl> description, String fact, Gdl... rules) throws Exception {
+        List<GdlSentence> heads = new ArrayList<GdlSentence>();
+        for (Gdl gdl : description) {
+            if (gdl.equals(GdlFactory.create(fact))) {
+                heads.add((GdlSentence) gdl);
+            }
+            for (Gdl rule : rules) {
+                if (gdl == rule) {
+                    heads.add(((GdlRule) rule).getHead());
+                }
+            }
+        }
+        return heads;
+    }
+
+    private static List<GdlSentence> heads(List<GdlRule> rules) {
+        List<GdlSentence> heads = new ArrayList<GdlSentence>();
+        for (GdlRule rule : rules) {
+            heads.add(rule.getHead());
+        }
+        return heads;
+    }
+}
@@ -0,0 +1,91 @@
+package org.ggp.base.util.prover.aima.plan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RulePlanTest extends Assert {
+
+    @Test
+    public void testBadlyOrderedBodyIsReordered() throws Exception {
+        List<Gdl> description = new ArrayList<Gdl>();
+        for (int i = 1; i < 20; i++) {
+            description.add(GdlFactory.create("( succ " + i + " " + (i + 1) + " )"));
+        }
+        description.add(GdlFactory.create("( init ( step 1 ) )"));
+        RuleCostModel costModel = new RuleCostModel(description);
+
+        // Trying every pair of successors before looking at the state is
+        // much worse than starting from the one step that is true
+        GdlRule badRule = (GdlRule) GdlFactory.create("( <= ( next ( step ?z ) ) ( succ ?y ?z ) ( succ ?x ?y ) ( true ( step ?x ) ) )");
+        GdlRule planned = RulePlan.create(badRule, costModel).getRule();
+        assertEquals(GdlFactory.create("( true ( step ?x ) )"), planned.get(0));
+        assertEquals(badRule.getHead(), planned.getHead());
+        assertEquals(3, planned.arity());
+
+        // Bodies that are already about as good are left as written
+        GdlRule goodRule = (GdlRule) GdlFactory.create("( <= ( next ( step ?y ) ) ( true ( step ?x ) ) ( succ ?x ?y ) )");
+        assertSame(goodRule, RulePlan.create(goodRule, costModel).getRule());
+    }
+
+    @Test
+    public void testFiltersFollowTheirVariables() throws Exception {
+        List<Gdl> description = new ArrayList<Gdl>();
+        for (int i = 1; i <= 8; i++) {
+            description.add(GdlFactory.create("( index " + i + " )"));
+        }
+        RuleCostModel costModel = new RuleCostModel(description);
+        GdlRule rule = (GdlRule) GdlFactory.create("( <= ( pair ?x ?y ) ( index ?x ) ( index ?y ) ( true ( cell ?x ?y ) ) ( not ( blocked ?x ) ) ( distinct ?x ?y ) )");
+        GdlRule planned = RulePlan.create(rule, costModel).getRule();
+        assertEquals(GdlFactory.create("( <= ( pair ?x ?y ) ( true ( cell ?x ?y ) ) ( not ( blocked ?x ) ) ( distinct ?x ?y ) ( index ?x ) ( index ?y ) )"), planned);
+    }
+
+    @Test
+    public void testCopiesAreStablePerDepthAndDisjointAcrossDepths() throws Exception {
+        GdlRule rule = (GdlRule) GdlFactory.create("( <= ( next ( step ?y ) ) ( true ( step ?x ) ) ( succ ?x ?y ) )");
+        RulePlan plan = RulePlan.create(rule);
+        assertSame(plan.getCopy(3), plan.getCopy(3));
+        assertTrue(Collections.disjoint(GdlUtils.getVariablesSet(plan.getCopy(0)), GdlUtils.getVariablesSet(plan.getCopy(1))));
+        assertTrue(Collections.disjoint(GdlUtils.getVariablesSet(rule), GdlUtils.getVariablesSet(plan.getCopy(0))));
+
+        GdlRule groundRule = (GdlRule) GdlFactory.create("( <= terminal ( true ( step 5 ) ) )");
+        assertSame(groundRule, RulePlan.create(groundRule).getCopy(7));
+    }
+
+    @Test
+    public void testProverAgreesOnReversedRules() throws Exception {
+        // Reversing every body leaves the game the same, but gives the
+        // planner rules worth reordering
+        for (String gameKey : new String[] { "connectFour", "test_case_2a", "twoBoardLights" }) {
+            List<Gdl> description = new TestGameRepository().getGame(gameKey).getRules();
+            List<Gdl> reversed = new ArrayList<Gdl>();
+            for (Gdl gdl : description) {
+                if (gdl instanceof GdlRule) {
+                    GdlRule rule = (GdlRule) gdl;
+                    List<GdlLiteral> body = new ArrayList<GdlLiteral>(rule.getBody());
+                    Collections.reverse(body);
+                    gdl = GdlPool.getRule(rule.getHead(), body);
+                }
+                reversed.add(gdl);
+            }
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(description);
+            StateMachine subject = new ProverStateMachine();
+            subject.initialize(reversed);
+            assertTrue(gameKey, StateMachineVerifier.checkMachineConsistency(reference, subject, 1000));
+        }
+    }
+}
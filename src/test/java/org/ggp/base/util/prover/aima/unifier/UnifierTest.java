@@ -0,0 +1,44 @@
+package org.ggp.base.util.prover.aima.unifier;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.prover.aima.substituter.Substituter;
+import org.ggp.base.util.prover.aima.substitution.Substitution;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class UnifierTest extends Assert {
+
+    @Test
+    public void testUnifyInPlaceAndUndo() throws Exception {
+        GdlSentence x = (GdlSentence) GdlFactory.create("( cell ?x ( pair ?y ?x ) )");
+        GdlSentence y = (GdlSentence) GdlFactory.create("( cell ?a ( pair 2 ?b ) )");
+        GdlSentence z = (GdlSentence) GdlFactory.create("( cell 1 ?c )");
+
+        Substitution theta = new Substitution();
+        assertTrue(Unifier.unify(x, y, theta));
+        int mark = theta.mark();
+        assertTrue(Unifier.unify(y, z, theta));
+        assertEquals(GdlFactory.create("( cell 1 ( pair 2 1 ) )"), Substituter.substitute(x, theta));
+        assertEquals(GdlFactory.create("( cell 1 ( pair 2 1 ) )"), Substituter.substitute(z, theta));
+
+        theta.undo(mark);
+        assertFalse(theta.contains(GdlPool.getVariable("?c")));
+        assertFalse(Unifier.unify(z, (GdlSentence) GdlFactory.create("( cell 3 ( pair 2 3 ) )"), theta));
+        assertTrue(Unifier.unify(y, (GdlSentence) GdlFactory.create("( cell 3 ( pair 2 3 ) )"), theta));
+        assertEquals(GdlFactory.create("( cell 3 ( pair 2 3 ) )"), Substituter.substitute(x, theta));
+    }
+
+    @Test
+    public void testFailedUnifyLeavesSubstitutionUnchanged() throws Exception {
+        GdlSentence x = (GdlSentence) GdlFactory.create("( line ?a ?b ?a )");
+        GdlSentence y = (GdlSentence) GdlFactory.create("( line 1 2 3 )");
+
+        Substitution theta = new Substitution();
+        assertFalse(Unifier.unify(x, y, theta));
+        assertEquals(0, theta.mark());
+        assertEquals(new Substitution(), theta);
+        assertNull(Unifier.unify(x, y));
+    }
+}
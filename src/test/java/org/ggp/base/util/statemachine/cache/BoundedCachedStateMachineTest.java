@@ -0,0 +1,58 @@
+package org.ggp.base.util.statemachine.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.ConsistencyReport;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedCachedStateMachineTest extends Assert {
+
+    @Test
+    public void testStaysWithinCapacity() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        BoundedCachedStateMachine sm = new BoundedCachedStateMachine(new ProverStateMachine(), 50, 4);
+        sm.initialize(desc);
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+        assertTrue(StateMachineVerifier.checkMachineConsistency(reference, sm, 1000));
+        assertTrue(sm.getSize() <= 50);
+        assertTrue(sm.getEvictions() > 0);
+        assertTrue(sm.getMisses() > 0);
+
+        MachineState initialState = sm.getInitialState();
+        sm.isTerminal(initialState);
+        long hits = sm.getHits();
+        long misses = sm.getMisses();
+        sm.isTerminal(initialState);
+        assertEquals(hits + 1, sm.getHits());
+        assertEquals(misses, sm.getMisses());
+    }
+
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        // Threads walking the same games hit each other's entries, and
+        // evict them, while the stripes stay within capacity
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        BoundedCachedStateMachine sm = new BoundedCachedStateMachine(new ProverStateMachine(), 500, 8);
+        sm.initialize(desc);
+        List<StateMachine> references = new ArrayList<StateMachine>();
+        for (int i = 0; i < 4; i++) {
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(desc);
+            references.add(reference);
+        }
+        ConsistencyReport report = StateMachineVerifier.verifyConsistency(references, Collections.nCopies(4, sm), 1000);
+        assertTrue(report.isConsistent());
+        assertTrue(sm.getSize() <= 500);
+        assertTrue(sm.getHits() > 0);
+    }
+}
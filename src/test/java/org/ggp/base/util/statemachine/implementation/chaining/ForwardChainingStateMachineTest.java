@@ -0,0 +1,67 @@
+package org.ggp.base.util.statemachine.implementation.chaining;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ForwardChainingStateMachineTest extends Assert {
+
+    protected final StateMachine sm = new ForwardChainingStateMachine();
+
+    @Test
+    public void testForwardChainingOnTicTacToe() throws Exception {
+        List<Gdl> ticTacToeDesc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(ticTacToeDesc);
+        MachineState state = sm.getInitialState();
+        assertFalse(sm.isTerminal(state));
+        Role xRole = new Role(GdlPool.getConstant("xplayer"));
+        Role oRole = new Role(GdlPool.getConstant("oplayer"));
+        assertEquals(Arrays.asList(xRole, oRole), sm.getRoles());
+
+        assertEquals(9, sm.getLegalJointMoves(state).size());
+        assertEquals(1, sm.getLegalMoves(state, oRole).size());
+        Move noop = new Move(GdlPool.getConstant("noop"));
+        assertEquals(noop, sm.getLegalMoves(state, oRole).get(0));
+
+        // Play the x player's first legal move until the game ends; moves
+        // aren't listed in the same order as the prover's, so check the
+        // outcome against it rather than a fixed result
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(ticTacToeDesc);
+        while (!sm.isTerminal(state)) {
+            List<Move> jointMove = sm.getLegalJointMoves(state).get(0);
+            state = sm.getNextState(state, jointMove);
+        }
+        assertTrue(reference.isTerminal(state));
+        assertEquals(reference.getGoals(state), sm.getGoals(state));
+    }
+
+    @Test
+    public void testForwardChainingMatchesProver() throws Exception {
+        assertConsistentWithProver("ticTacToe");
+        assertConsistentWithProver("connectFour");
+        assertConsistentWithProver("test_case_2a");
+        assertConsistentWithProver("test_case_3d");
+        assertConsistentWithProver("twoBoardLights");
+    }
+
+    private void assertConsistentWithProver(String gameKey) {
+        List<Gdl> desc = new TestGameRepository().getGame(gameKey).getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+        StateMachine subject = new ForwardChainingStateMachine();
+        subject.initialize(desc);
+        assertTrue(gameKey, StateMachineVerifier.checkMachineConsistency(reference, subject, 1000));
+    }
+}
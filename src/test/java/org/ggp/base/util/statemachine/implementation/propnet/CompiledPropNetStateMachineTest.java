@@ -0,0 +1,242 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompiledPropNetStateMachineTest extends Assert {
+
+    protected final CompiledPropNetStateMachine sm = new CompiledPropNetStateMachine();
+
+    @Test
+    public void testCompiledPropNetOnTicTacToe() throws Exception {
+        List<Gdl> ticTacToeDesc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(ticTacToeDesc);
+        MachineState state = sm.getInitialState();
+        assertFalse(sm.isTerminal(state));
+        Role xRole = new Role(GdlPool.getConstant("xplayer"));
+        Role oRole = new Role(GdlPool.getConstant("oplayer"));
+        assertEquals(Arrays.asList(xRole, oRole), sm.getRoles());
+
+        assertEquals(9, sm.getLegalJointMoves(state).size());
+        assertEquals(1, sm.getLegalMoves(state, oRole).size());
+        Move noop = new Move(GdlPool.getConstant("noop"));
+        assertEquals(noop, sm.getLegalMoves(state, oRole).get(0));
+
+        // Play the x player's first legal move until the game ends
+        while (!sm.isTerminal(state)) {
+            List<Move> jointMove = sm.getLegalJointMoves(state).get(0);
+            state = sm.getNextState(state, jointMove);
+        }
+        assertEquals(Arrays.asList(new Integer[] {100, 0}), sm.getGoals(state));
+    }
+
+    @Test
+    public void testCompiledPropNetMatchesProver() throws Exception {
+        assertConsistentWithProver("ticTacToe", new CompiledPropNetStateMachine());
+        assertConsistentWithProver("connectFour", new CompiledPropNetStateMachine());
+        assertConsistentWithProver("test_case_2a", new CompiledPropNetStateMachine());
+        assertConsistentWithProver("test_case_3d", new CompiledPropNetStateMachine());
+    }
+
+    @Test
+    public void testDifferentialPropNetMatchesProver() throws Exception {
+        assertConsistentWithProver("ticTacToe", new DifferentialPropNetStateMachine());
+        assertConsistentWithProver("connectFour", new DifferentialPropNetStateMachine());
+        assertConsistentWithProver("test_case_2a", new DifferentialPropNetStateMachine());
+        assertConsistentWithProver("test_case_3d", new DifferentialPropNetStateMachine());
+    }
+
+    @Test
+    public void testBytecodePropNetMatchesProver() throws Exception {
+        BytecodePropNetStateMachine ticTacToeMachine = new BytecodePropNetStateMachine();
+        assertConsistentWithProver("ticTacToe", ticTacToeMachine);
+        assertTrue(ticTacToeMachine.isUsingGeneratedCode());
+        assertConsistentWithProver("connectFour", new BytecodePropNetStateMachine());
+        assertConsistentWithProver("test_case_2a", new BytecodePropNetStateMachine());
+        assertConsistentWithProver("test_case_3d", new BytecodePropNetStateMachine());
+    }
+
+    @Test
+    public void testBytecodeSplitIntoSegmentsMatchesOneClass() throws Exception {
+        CompiledPropNetStateMachine machine = new CompiledPropNetStateMachine();
+        machine.initialize(new TestGameRepository().getGame("connectFour").getRules());
+        CompiledPropNet net = machine.getCompiledPropNet();
+        // A tiny budget forces many segment classes, as a huge net would
+        PropNetEvaluator whole = PropNetBytecodeCompiler.compile(net);
+        PropNetEvaluator split = PropNetBytecodeCompiler.compile(net, 20);
+        Random random = new Random(0);
+        for (int trial = 0; trial < 100; trial++) {
+            boolean[] expected = net.createValues();
+            for (int c = 0; c < net.getFirstGateId(); c++) {
+                expected[c] = random.nextBoolean();
+            }
+            boolean[] actual = expected.clone();
+            whole.propagateState(expected);
+            whole.propagateMoves(expected);
+            split.propagateState(actual);
+            split.propagateMoves(actual);
+            assertTrue(Arrays.equals(expected, actual));
+        }
+    }
+
+    @Test
+    public void testLazyPropNetMatchesProver() throws Exception {
+        assertConsistentWithProver("ticTacToe", new LazyPropNetStateMachine());
+        assertConsistentWithProver("connectFour", new LazyPropNetStateMachine());
+        assertConsistentWithProver("test_case_2a", new LazyPropNetStateMachine());
+        assertConsistentWithProver("test_case_3d", new LazyPropNetStateMachine());
+    }
+
+    @Test
+    public void testForksRunConcurrently() throws Exception {
+        final List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        CompiledPropNetStateMachine[] parents = new CompiledPropNetStateMachine[] {
+                new CompiledPropNetStateMachine(), new DifferentialPropNetStateMachine(), new BytecodePropNetStateMachine(),
+                new LazyPropNetStateMachine(), new BitSlicedPropNetStateMachine() };
+        for (final CompiledPropNetStateMachine parent : parents) {
+            parent.initialize(desc);
+            final AtomicBoolean allConsistent = new AtomicBoolean(true);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 4; i++) {
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        StateMachine reference = new ProverStateMachine();
+                        reference.initialize(desc);
+                        if (!StateMachineVerifier.checkMachineConsistency(reference, parent.getThreadLocalMachine(), 500)) {
+                            allConsistent.set(false);
+                        }
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(parent.getClass().getSimpleName(), allConsistent.get());
+            assertNotSame(parent.fork(), parent.fork());
+            assertSame(parent.getThreadLocalMachine(), parent.getThreadLocalMachine());
+            assertEquals(parent.getInitialState(), parent.fork().getInitialState());
+        }
+    }
+
+    @Test
+    public void testDepthChargeMatchesRegularPlayout() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        CompiledPropNetStateMachine[] machines = new CompiledPropNetStateMachine[] {
+                new CompiledPropNetStateMachine(), new DifferentialPropNetStateMachine(), new BytecodePropNetStateMachine(),
+                new LazyPropNetStateMachine(), new BitSlicedPropNetStateMachine() };
+        for (CompiledPropNetStateMachine machine : machines) {
+            machine.initialize(desc);
+            int[] goals = new int[machine.getRoles().size()];
+            for (int seed = 0; seed < 100; seed++) {
+                // Both playouts draw one random index per role per ply, in the
+                // same order, so they should play the same game.
+                MachineState state = machine.getInitialState();
+                Random random = new Random(seed);
+                while (!machine.isTerminal(state)) {
+                    List<Move> jointMove = new ArrayList<Move>();
+                    for (Role role : machine.getRoles()) {
+                        List<Move> legals = machine.getLegalMoves(state, role);
+                        jointMove.add(legals.get(random.nextInt(legals.size())));
+                    }
+                    state = machine.getNextState(state, jointMove);
+                }
+                assertSame(goals, machine.depthCharge(machine.getInitialState(), new Random(seed), goals));
+                assertEquals(machine.getGoals(state), Arrays.asList(goals[0], goals[1]));
+            }
+        }
+    }
+
+    @Test
+    public void testBitSlicedDepthChargesMatchRegularPlayouts() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        BitSlicedPropNetStateMachine machine = new BitSlicedPropNetStateMachine();
+        machine.initialize(desc);
+        assertConsistentWithProver("connectFour", new BitSlicedPropNetStateMachine());
+        StateMachine reference = new CompiledPropNetStateMachine();
+        reference.initialize(desc);
+        MachineState state = machine.getInitialState();
+
+        // A count that isn't a multiple of the batch size leaves some lanes idle
+        int count = 50 * BitSlicedPropNetStateMachine.LANES + 17;
+        long[] totals = machine.depthCharges(state, new Random(), count, null);
+        // Every game of tic-tac-toe awards 100 points in total
+        assertEquals(100L * count, totals[0] + totals[1]);
+        long[] referenceTotals = reference.depthCharges(state, new Random(), count, null);
+        assertEquals((double) referenceTotals[0] / count, (double) totals[0] / count, 5.0);
+
+        // The totals array is overwritten, not added to
+        assertSame(totals, machine.depthCharges(state, new Random(), 1, totals));
+        assertEquals(100L, totals[0] + totals[1]);
+    }
+
+    @Test
+    public void testIncrementalHashesMatchProverStates() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        CompiledPropNetStateMachine machine = new CompiledPropNetStateMachine();
+        machine.initialize(desc);
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+        Random random = new Random(0);
+        for (int i = 0; i < 20; i++) {
+            MachineState state = machine.getInitialState();
+            MachineState referenceState = reference.getInitialState();
+            while (true) {
+                // Hashes agree across machines, so mixed states can share a table
+                assertEquals(referenceState.longHash(), state.longHash());
+                assertEquals(referenceState.hashCode(), state.hashCode());
+                assertEquals(referenceState, state);
+                MachineState fromContents = machine.getMachineStateFromSentenceList(state.getContents());
+                assertEquals(fromContents.longHash(), state.longHash());
+                if (machine.isTerminal(state)) {
+                    break;
+                }
+                List<Move> jointMove = machine.getRandomJointMove(state);
+                MachineState next = machine.getNextState(state, jointMove);
+                assertFalse(next.equals(state));
+                state = next;
+                referenceState = reference.getNextState(referenceState, jointMove);
+            }
+        }
+    }
+
+    @Test
+    public void testHashesSurviveDrainingThePool() throws Exception {
+        CompiledPropNetStateMachine machine = new CompiledPropNetStateMachine();
+        machine.initialize(new TestGameRepository().getGame("connectFour").getRules());
+        long before = machine.getInitialState().longHash();
+
+        // The sentences read in after the drain are new objects
+        GdlPool.drainPool();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(new TestGameRepository().getGame("connectFour").getRules());
+        assertEquals(before, reference.getInitialState().longHash());
+    }
+
+    private void assertConsistentWithProver(String gameKey, StateMachine subject) {
+        List<Gdl> desc = new TestGameRepository().getGame(gameKey).getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+        subject.initialize(desc);
+        assertTrue(gameKey, StateMachineVerifier.checkMachineConsistency(reference, subject, 1000));
+    }
+}
@@ -0,0 +1,115 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatchAnalysisTest extends Assert {
+
+    @Test
+    public void testFindsTicTacToeLatches() throws Exception {
+        PropNet propNet = createPropNet("ticTacToe");
+        LatchAnalysis analysis = LatchAnalysis.analyze(propNet);
+        // Marked cells stay marked, and blank cells never become blank again
+        assertTrue(analysis.getPositiveLatches().contains(getBase(propNet, "( true ( cell 1 1 x ) )")));
+        assertTrue(analysis.getNegativeLatches().contains(getBase(propNet, "( true ( cell 1 1 b ) )")));
+        assertFalse(analysis.getPositiveLatches().contains(getBase(propNet, "( true ( control xplayer ) )")));
+        assertFalse(analysis.getNegativeLatches().contains(getBase(propNet, "( true ( control xplayer ) )")));
+    }
+
+    @Test
+    public void testFindsGoalLatches() throws Exception {
+        LatchAnalysis analysis = LatchAnalysis.analyze(createPropNet("latchedButton"));
+        GdlSentence pressed = (GdlSentence) GdlFactory.create("( true pressed )");
+        assertEquals(2, analysis.getGoalLatches().size());
+        for (LatchAnalysis.GoalLatch latch : analysis.getGoalLatches()) {
+            assertEquals(pressed, latch.getBase());
+            assertTrue(latch.getValue());
+            assertEquals(latch.getRoleIndex() == 0 ? 100 : 0, latch.getGoal());
+        }
+    }
+
+    @Test
+    public void testOptimizedPropNetMatchesProver() throws Exception {
+        for (String gameKey : new String[] { "ticTacToe", "connectFour", "test_case_3d", "twoBoardLights", "latchedButton" }) {
+            CompiledPropNetStateMachine subject = new CompiledPropNetStateMachine();
+            subject.setOptimizeLatches(true);
+            subject.initialize(createPropNet(gameKey));
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(new TestGameRepository().getGame(gameKey).getRules());
+            checkAgainstReference(gameKey, reference, subject, 20);
+        }
+    }
+
+    @Test
+    public void testLatchedDepthChargesStopWithCorrectGoals() throws Exception {
+        for (CompiledPropNetStateMachine machine : new CompiledPropNetStateMachine[] { new CompiledPropNetStateMachine(), new BitSlicedPropNetStateMachine() }) {
+            machine.setOptimizeLatches(true);
+            machine.initialize(createPropNet("latchedButton"));
+            Random random = new Random(0);
+            MachineState pressed = machine.getNextState(machine.getInitialState(), Arrays.asList(Move.create("press"), Move.create("noop")));
+            assertArrayEquals(new int[] { 100, 0 }, machine.depthCharge(pressed, random, null));
+            assertArrayEquals(new long[] { 6400, 0 }, machine.depthCharges(pressed, random, 64, null));
+            // Every playout is won by exactly one of the roles
+            long[] totals = machine.depthCharges(machine.getInitialState(), random, 256, null);
+            assertEquals(25600, totals[0] + totals[1]);
+            assertTrue(totals[0] > 0 && totals[1] > 0);
+        }
+    }
+
+    /**
+     * Plays random games with the reference machine, and checks that the
+     * subject agrees on every state along the way. The subject may leave
+     * bases out of its states, so its states only need to be subsets.
+     */
+    private static void checkAgainstReference(String gameKey, StateMachine reference, StateMachine subject, int games) throws Exception {
+        for (int i = 0; i < games; i++) {
+            MachineState state = reference.getInitialState();
+            assertTrue(gameKey, state.getContents().containsAll(subject.getInitialState().getContents()));
+            while (true) {
+                MachineState subjectState = subject.getMachineStateFromSentenceList(state.getContents());
+                assertEquals(gameKey, reference.isTerminal(state), subject.isTerminal(subjectState));
+                if (reference.isTerminal(state)) {
+                    for (Role role : reference.getRoles()) {
+                        assertEquals(gameKey, reference.getGoal(state, role), subject.getGoal(subjectState, role));
+                    }
+                    break;
+                }
+                for (Role role : reference.getRoles()) {
+                    assertEquals(gameKey, new HashSet<Move>(reference.getLegalMoves(state, role)), new HashSet<Move>(subject.getLegalMoves(subjectState, role)));
+                }
+                List<Move> jointMove = reference.getRandomJointMove(state);
+                MachineState next = reference.getNextState(state, jointMove);
+                assertTrue(gameKey, next.getContents().containsAll(subject.getNextState(subjectState, jointMove).getContents()));
+                state = next;
+            }
+        }
+    }
+
+    private static Proposition getBase(PropNet propNet, String sentence) throws Exception {
+        Proposition base = propNet.getBasePropositions().get(GdlFactory.create(sentence));
+        assertNotNull(sentence, base);
+        return base;
+    }
+
+    private static PropNet createPropNet(String gameKey) throws InterruptedException {
+        List<Gdl> desc = new TestGameRepository().getGame(gameKey).getRules();
+        return OptimizingPropNetFactory.create(desc);
+    }
+}
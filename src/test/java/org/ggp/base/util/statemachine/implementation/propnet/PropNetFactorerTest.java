@@ -0,0 +1,80 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropNetFactorerTest extends Assert {
+
+    @Test
+    public void testSplitsIndependentBoards() throws Exception {
+        PropNet propNet = createPropNet("twoBoardLights");
+        assertEquals(2, PropNetFactorer.factor(propNet).size());
+        assertEquals(2, PropNetFactorer.countFactors(propNet));
+        List<CompiledPropNetStateMachine> factors = PropNetFactorer.createFactorMachines(propNet);
+        StateMachine game = new CompiledPropNetStateMachine();
+        game.initialize(new TestGameRepository().getGame("twoBoardLights").getRules());
+        Role robot = game.getRoles().get(0);
+
+        // Light up two lights on board a in the full game
+        MachineState state = game.getInitialState();
+        state = game.getNextState(state, Arrays.asList(Move.create("( press a 1 )")));
+        state = game.getNextState(state, Arrays.asList(Move.create("( press a 2 )")));
+
+        // Moves on the other board stay legal in each factor, but they only
+        // pass, and that board is frozen in its initial state
+        StateMachine boardA = factors.get(0);
+        StateMachine boardB = factors.get(1);
+        assertEquals(new HashSet<Move>(game.getLegalMoves(state, robot)), new HashSet<Move>(boardA.getLegalMoves(state, robot)));
+        assertEquals(7, boardB.getLegalMoves(state, robot).size());
+        MachineState finishA = boardA.getNextState(state, Arrays.asList(Move.create("( press a 3 )")));
+        assertTrue(boardA.isTerminal(finishA));
+        assertEquals(100, boardA.getGoal(finishA, robot));
+        MachineState passB = boardB.getNextState(state, Arrays.asList(Move.create("( press a 3 )")));
+        assertFalse(boardB.isTerminal(passB));
+        assertEquals(0, boardB.getGoal(passB, robot));
+        assertFalse(passB.getContents().contains(GdlFactory.create("( true ( on a 1 ) )")));
+        assertTrue(passB.getContents().contains(GdlFactory.create("( true ( step 4 ) )")));
+    }
+
+    @Test
+    public void testKeepsCoupledGamesWhole() throws Exception {
+        for (String gameKey : new String[] { "ticTacToe", "connectFour" }) {
+            PropNet propNet = createPropNet(gameKey);
+            assertEquals(gameKey, Arrays.asList(propNet), PropNetFactorer.factor(propNet));
+            assertEquals(gameKey, 1, PropNetFactorer.countFactors(propNet));
+        }
+    }
+
+    @Test
+    public void testPrunedPropNetMatchesProver() throws Exception {
+        for (String gameKey : new String[] { "ticTacToe", "twoBoardLights", "test_case_3d" }) {
+            PropNet propNet = createPropNet(gameKey);
+            PropNetFactorer.prune(propNet);
+            CompiledPropNetStateMachine subject = new CompiledPropNetStateMachine();
+            subject.initialize(propNet);
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(new TestGameRepository().getGame(gameKey).getRules());
+            assertTrue(gameKey, StateMachineVerifier.checkMachineConsistency(reference, subject, 500));
+        }
+    }
+
+    private static PropNet createPropNet(String gameKey) throws InterruptedException {
+        List<Gdl> desc = new TestGameRepository().getGame(gameKey).getRules();
+        return OptimizingPropNetFactory.create(desc);
+    }
+}
@@ -13,6 +13,9 @@ import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.verifier.ConsistencyReport;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -184,6 +187,22 @@ public class ProverStateMachineTest extends Assert {
         assertEquals(Collections.singletonList(100), sm.getGoals(state));
     }
 
+    @Test
+    public void testSharedAcrossThreads() throws Exception {
+        // Each thread walks games against its own reference, but all of
+        // them query the same prover
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        sm.initialize(desc);
+        List<StateMachine> references = new ArrayList<StateMachine>();
+        for (int i = 0; i < 4; i++) {
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(desc);
+            references.add(reference);
+        }
+        ConsistencyReport report = StateMachineVerifier.verifyConsistency(references, Collections.nCopies(4, sm), 1000);
+        assertTrue(report.isConsistent());
+    }
+
     protected Move move(String description) {
         String[] parts = description.split(" ");
         GdlConstant head = GdlPool.getConstant(parts[0]);
@@ -0,0 +1,53 @@
+package org.ggp.base.util.statemachine.verifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StateMachineVerifierTest extends Assert {
+
+    @Test
+    public void testParallelVerificationOfConsistentMachines() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("connectFour").getRules();
+        CompiledPropNetStateMachine subject = new CompiledPropNetStateMachine();
+        subject.initialize(desc);
+        List<StateMachine> references = new ArrayList<StateMachine>();
+        List<StateMachine> subjects = new ArrayList<StateMachine>();
+        for (int i = 0; i < 4; i++) {
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(desc);
+            references.add(reference);
+            subjects.add(subject.fork());
+        }
+        ConsistencyReport report = StateMachineVerifier.verifyConsistency(references, subjects, 2000);
+        assertTrue(report.toString(), report.isConsistent());
+        assertTrue(report.getNumWalks() > 0);
+        assertTrue(report.getReferenceStatesPerSecond() > 0);
+        assertTrue(report.getSubjectStatesPerSecond() > 0);
+    }
+
+    @Test
+    public void testWrongGoalIsReported() throws Exception {
+        List<Gdl> desc = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(desc);
+        StateMachine subject = new ProverStateMachine() {
+            @Override
+            public int getGoal(MachineState state, Role role) throws GoalDefinitionException {
+                return 100 - super.getGoal(state, role);
+            }
+        };
+        subject.initialize(desc);
+        assertFalse(StateMachineVerifier.checkMachineConsistency(reference, subject, 1000));
+    }
+}